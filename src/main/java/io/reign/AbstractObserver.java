@@ -27,6 +27,7 @@ public abstract class AbstractObserver implements Observer {
     private byte[] data;
     private List<String> childList = Collections.EMPTY_LIST;
     private String ownerId;
+    private volatile boolean debounced = true;
 
     @Override
     public void setOwnerId(String ownerId) {
@@ -38,6 +39,25 @@ public abstract class AbstractObserver implements Observer {
         return ownerId;
     }
 
+    /**
+     * 
+     * @return true if bursts of changes may be delivered as a single notification of the final state when
+     *         ObserverManager debouncing is enabled; false to be notified of every observed change. Observers not
+     *         extending AbstractObserver are never debounced.
+     */
+    public boolean isDebounced() {
+        return debounced;
+    }
+
+    /**
+     * 
+     * @param debounced
+     *            false to receive intermediate states even when ObserverManager debouncing is enabled
+     */
+    public void setDebounced(boolean debounced) {
+        this.debounced = debounced;
+    }
+
     @Override
     public String getPath() {
         return path;
@@ -80,6 +100,21 @@ public abstract class AbstractObserver implements Observer {
     public void nodeChildrenChanged(List<String> updatedChildList, List<String> previousChildList) {
     }
 
+    /**
+     * Called along with nodeChildrenChanged(updatedChildList, previousChildList) with the difference already worked
+     * out: the diff is computed once per change and shared by all observers of the path, so prefer this over comparing
+     * the full lists.
+     * 
+     * @param addedChildList
+     *            sorted; do not modify
+     * @param removedChildList
+     *            sorted; do not modify
+     * @param updatedChildList
+     */
+    public void nodeChildrenChanged(List<String> addedChildList, List<String> removedChildList,
+            List<String> updatedChildList) {
+    }
+
     @Override
     public void nodeDataChanged(byte[] updatedData, byte[] previousData) {
     }
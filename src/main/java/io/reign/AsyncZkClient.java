@@ -0,0 +1,108 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign;
+
+import io.reign.zk.PathReadResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous companion to ZkClient: operations return immediately with a future instead of holding the calling
+ * thread for the ZooKeeper round trip.
+ *
+ * Futures complete with the same results the blocking calls return (e.g. null Stat from exists() when the node does
+ * not exist, empty child list from getChildren() on NONODE) and fail with the KeeperException otherwise. Callbacks are
+ * run on the ZooKeeper event thread, so listeners attached to these futures should not block.
+ *
+ * @author ypai
+ *
+ */
+public interface AsyncZkClient {
+
+    public ListenableFuture<Stat> existsAsync(final String path, final boolean watch);
+
+    /**
+     *
+     * @param path
+     * @param watch
+     * @param stat
+     *            if not null, populated with node Stat before the future completes
+     * @return
+     */
+    public ListenableFuture<byte[]> getDataAsync(final String path, final boolean watch, final Stat stat);
+
+    /**
+     *
+     * @param path
+     * @param watch
+     * @param stat
+     *            if not null, populated with node Stat before the future completes
+     * @return
+     */
+    public ListenableFuture<List<String>> getChildrenAsync(final String path, final boolean watch, final Stat stat);
+
+    public ListenableFuture<String> createAsync(final String path, final byte[] data, final List<ACL> acl,
+            final CreateMode createMode);
+
+    public ListenableFuture<Stat> setDataAsync(final String path, final byte[] data, final int version);
+
+    public ListenableFuture<Void> deleteAsync(final String path, final int version);
+
+    public ListenableFuture<Void> syncAsync(final String path);
+
+    /**
+     * 
+     * @param path
+     * @param maxAgeMillis
+     *            completes without a round trip if a sync on path issued within the last maxAgeMillis has completed; 0
+     *            to always sync
+     * @return future failing with OperationTimeoutException if the sync does not complete in time
+     */
+    public ListenableFuture<Void> syncAsync(final String path, final long maxAgeMillis);
+
+    /**
+     * Pipelined bulk getData(): all reads are issued without waiting on one another, then the call blocks until every
+     * read has completed.
+     * 
+     * @param paths
+     * @param watch
+     * @return map of path to result in iteration order of paths; a failed read is reported in its PathReadResult
+     *         rather than failing the batch
+     * @throws InterruptedException
+     */
+    public Map<String, PathReadResult> getDataBatch(final Collection<String> paths, final boolean watch)
+            throws InterruptedException;
+
+    /**
+     * Pipelined bulk getChildren(); see getDataBatch().
+     * 
+     * @param paths
+     * @param watch
+     * @return
+     * @throws InterruptedException
+     */
+    public Map<String, PathReadResult> getChildrenBatch(final Collection<String> paths, final boolean watch)
+            throws InterruptedException;
+}
@@ -0,0 +1,136 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Children added and removed between two child lists, independent of order.
+ * 
+ * @author ypai
+ * 
+ */
+public class ChildListDiff {
+
+    private static final String[] EMPTY_ARRAY = new String[0];
+
+    public static final ChildListDiff EMPTY = new ChildListDiff(Collections.EMPTY_LIST, Collections.EMPTY_LIST);
+
+    private final List<String> addedChildList;
+
+    private final List<String> removedChildList;
+
+    ChildListDiff(List<String> addedChildList, List<String> removedChildList) {
+        this.addedChildList = addedChildList;
+        this.removedChildList = removedChildList;
+    }
+
+    /**
+     * 
+     * @return children in updated list but not previous list, sorted
+     */
+    public List<String> getAddedChildList() {
+        return addedChildList;
+    }
+
+    /**
+     * 
+     * @return children in previous list but not updated list, sorted
+     */
+    public List<String> getRemovedChildList() {
+        return removedChildList;
+    }
+
+    public boolean isEmpty() {
+        return addedChildList.isEmpty() && removedChildList.isEmpty();
+    }
+
+    /**
+     * 
+     * @param updatedChildList
+     *            may be null
+     * @param previousChildList
+     *            may be null
+     * @return
+     */
+    public static ChildListDiff diff(List<String> updatedChildList, List<String> previousChildList) {
+        if (updatedChildList == previousChildList) {
+            return EMPTY;
+        }
+        return diff(toSortedArray(updatedChildList), toSortedArray(previousChildList));
+    }
+
+    /**
+     * Merge two sorted arrays of child names.
+     */
+    static ChildListDiff diff(String[] sortedUpdatedChildren, String[] sortedPreviousChildren) {
+        List<String> addedChildList = null;
+        List<String> removedChildList = null;
+        int u = 0;
+        int p = 0;
+        while (u < sortedUpdatedChildren.length || p < sortedPreviousChildren.length) {
+            int comparison;
+            if (u == sortedUpdatedChildren.length) {
+                comparison = 1;
+            } else if (p == sortedPreviousChildren.length) {
+                comparison = -1;
+            } else {
+                comparison = sortedUpdatedChildren[u].compareTo(sortedPreviousChildren[p]);
+            }
+
+            if (comparison == 0) {
+                u++;
+                p++;
+            } else if (comparison < 0) {
+                if (addedChildList == null) {
+                    addedChildList = new ArrayList<String>();
+                }
+                addedChildList.add(sortedUpdatedChildren[u++]);
+            } else {
+                if (removedChildList == null) {
+                    removedChildList = new ArrayList<String>();
+                }
+                removedChildList.add(sortedPreviousChildren[p++]);
+            }
+        }
+
+        if (addedChildList == null && removedChildList == null) {
+            return EMPTY;
+        }
+        return new ChildListDiff(addedChildList == null ? Collections.EMPTY_LIST
+                : Collections.unmodifiableList(addedChildList), removedChildList == null ? Collections.EMPTY_LIST
+                : Collections.unmodifiableList(removedChildList));
+    }
+
+    static String[] toSortedArray(List<String> childList) {
+        if (childList == null || childList.isEmpty()) {
+            return EMPTY_ARRAY;
+        }
+        String[] children = childList.toArray(new String[childList.size()]);
+        Arrays.sort(children);
+        return children;
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + addedChildList + "; removed=" + removedChildList;
+    }
+}
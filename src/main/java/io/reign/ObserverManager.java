@@ -16,34 +16,56 @@
 
 package io.reign;
 
+import io.reign.metrics.MetricRegistryManager;
+import io.reign.util.StripedDispatcher;
 import io.reign.util.ZkClientUtil;
+import io.reign.zk.PathReadResult;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Class for managing observers for services. Deals with multiple observers for
  * a single path, etc.
  * 
  * Has a separate thread pool for dealing with observer callbacks, so as not to
- * tie up the ZooKeeper event thread.
+ * tie up the ZooKeeper event thread: callbacks for the same path run in order
+ * of notification, callbacks for different paths may run in parallel.
  * 
  * @author ypai
  * 
@@ -68,16 +90,59 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 	private final ZkClientUtil zkClientUtil = new ZkClientUtil();
 
+	public static final int DEFAULT_DISPATCHER_THREADS = 4;
+
+	/**
+	 * delegates observer callbacks so as not to tie up ZK event thread:
+	 * notifications for a path run in order, different paths in parallel;
+	 * created on first use
+	 */
+	private volatile StripedDispatcher dispatcher;
+
+	private volatile int dispatcherThreads = DEFAULT_DISPATCHER_THREADS;
+
+	private volatile MetricRegistryManager metricRegistryManager;
+
+	/**
+	 * quiet period after a change before debounced observers are notified;
+	 * <= 0 to notify of every change right away
+	 */
+	private volatile long debounceMillis = 0;
+
+	/** max delay from first change in a burst until notification */
+	private volatile long debounceMaxDelayMillis = 0;
+
+	/** paths with changes waiting to be delivered to debounced observers */
+	private final Map<String, DebounceWindow> debounceWindowMap = new HashMap<String, DebounceWindow>();
+
+	private final AtomicLong debouncedEventCount = new AtomicLong(0);
+
+	private final AtomicLong debounceFlushCount = new AtomicLong(0);
+
 	/**
-	 * single threaded executor for delegation of observer callbacks to not tie
-	 * up ZK event thread but still execute notifications in order
+	 * rechecks fire within a tick of being due
 	 */
-	private final ExecutorService delegatorExecutorService = Executors
-			.newSingleThreadExecutor();
+	static final long RECHECK_TICK_MILLIS = 100;
+
+	/**
+	 * max paths read in one pipelined recheck batch
+	 */
+	static final int RECHECK_BATCH_SIZE = 256;
 
 	/**
 	 * for recheck after receiving an event, in case there was another change in
-	 * btw. being notified and resetting the watch
+	 * btw. being notified and resetting the watch: created on first use
+	 */
+	private volatile Timer recheckTimer;
+
+	/** paths with rechecks that have come due */
+	private final Queue<String> dueRecheckQueue = new ConcurrentLinkedQueue<String>();
+
+	private final AtomicBoolean recheckBatchScheduled = new AtomicBoolean(
+			false);
+
+	/**
+	 * runs recheck batches and debounce flushes
 	 */
 	private final ScheduledExecutorService scheduledExecutorService = new ScheduledThreadPoolExecutor(
 			2);
@@ -96,12 +161,113 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 		this.sweeperIntervalMillis = sweeperIntervalMillis;
 	}
 
+	public int getDispatcherThreads() {
+		return dispatcherThreads;
+	}
+
+	/**
+	 * 
+	 * @param dispatcherThreads
+	 *            number of threads running observer callbacks; must be set
+	 *            before first notification
+	 */
+	public void setDispatcherThreads(int dispatcherThreads) {
+		if (dispatcher != null) {
+			throw new IllegalStateException(
+					"Cannot set after notifications have started!");
+		}
+		this.dispatcherThreads = dispatcherThreads;
+	}
+
+	/**
+	 * Record observer callback latency, queue time and queue depth metrics
+	 * (see StripedDispatcher) with prefix "observer.dispatch.".
+	 * 
+	 * @param metricRegistryManager
+	 *            null to stop recording
+	 */
+	public void setMetricRegistryManager(
+			MetricRegistryManager metricRegistryManager) {
+		this.metricRegistryManager = metricRegistryManager;
+		StripedDispatcher currentDispatcher = dispatcher;
+		if (currentDispatcher != null) {
+			currentDispatcher.setMetricRegistryManager(metricRegistryManager);
+		}
+	}
+
+	public StripedDispatcher getDispatcher() {
+		if (dispatcher == null) {
+			synchronized (this) {
+				if (dispatcher == null) {
+					StripedDispatcher newDispatcher = new StripedDispatcher(
+							getClass().getSimpleName() + ".dispatcher",
+							dispatcherThreads, "observer.dispatch.");
+					newDispatcher
+							.setMetricRegistryManager(metricRegistryManager);
+					dispatcher = newDispatcher;
+				}
+			}
+		}
+		return dispatcher;
+	}
+
+	/**
+	 * Coalesce bursts of changes: for observers that allow it (see
+	 * AbstractObserver.isDebounced()), changes to a path are delivered once
+	 * the path has been quiet for debounceMillis, or debounceMaxDelayMillis
+	 * after the first change, whichever comes first, with one read of the
+	 * path's state. Observers are notified of the final state rather than each
+	 * intermediate state.
+	 * 
+	 * @param debounceMillis
+	 *            <= 0 to disable
+	 * @param debounceMaxDelayMillis
+	 */
+	public void setDebounce(long debounceMillis, long debounceMaxDelayMillis) {
+		this.debounceMaxDelayMillis = Math.max(debounceMillis,
+				debounceMaxDelayMillis);
+		this.debounceMillis = debounceMillis;
+	}
+
+	public long getDebounceMillis() {
+		return debounceMillis;
+	}
+
+	public long getDebounceMaxDelayMillis() {
+		return debounceMaxDelayMillis;
+	}
+
+	/**
+	 * 
+	 * @return number of watch events absorbed into an already open debounce
+	 *         window
+	 */
+	public long getDebouncedEventCount() {
+		return debouncedEventCount.get();
+	}
+
+	/**
+	 * 
+	 * @return number of times debounced changes were delivered
+	 */
+	public long getDebounceFlushCount() {
+		return debounceFlushCount.get();
+	}
+
 	public void init() {
 		this.zkClient.register(this);
 	}
 
 	public void destroy() {
+		Timer currentRecheckTimer = recheckTimer;
+		if (currentRecheckTimer != null) {
+			currentRecheckTimer.stop();
+		}
 		scheduledExecutorService.shutdown();
+		StripedDispatcher currentDispatcher = dispatcher;
+		if (currentDispatcher != null) {
+			currentDispatcher.shutdown();
+		}
 	}
 
 	void updateObserver(String path, T observer) {
@@ -111,7 +277,6 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 	}
 
 	public void put(String path, T observer) {
-		String ownerId = observer.getOwnerId();
 		Set<T> observerSet = getObserverSet(path, true);
 		try {
 			// decorate observer with data about the path so we can handle
@@ -119,17 +284,7 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 			byte[] data = zkClient.getData(path, true, new Stat());
 			List<String> childList = zkClient.getChildren(path, true);
 
-			observer.setPath(path);
-			observer.setData(data);
-			observer.setChildList(childList);
-			observerSet.add(observer);
-
-			// register with owner (so we can remove all later if a client
-			// disconnects, etc.)
-			if (ownerId != null) {
-				Set<T> ownerObserverSet = getOwnerObserverSet(ownerId, true);
-				ownerObserverSet.add(observer);
-			}
+			addObserver(path, observer, observerSet, data, childList);
 
 			logger.info(
 					"Added observer:  observer.hashCode()={}; observer.ownerId={}; path={}; pathObserverCount={}",
@@ -139,18 +294,8 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 			if (e.code() == Code.NONODE) {
 				// set up watch on that node
 				try {
-					observer.setPath(path);
-					observer.setData(null);
-					observer.setChildList(Collections.EMPTY_LIST);
-					observerSet.add(observer);
-
-					// register with owner (so we can remove all later if a
-					// client disconnects, etc.)
-					if (ownerId != null) {
-						Set<T> ownerObserverSet = getOwnerObserverSet(ownerId,
-								true);
-						ownerObserverSet.add(observer);
-					}
+					addObserver(path, observer, observerSet, null,
+							Collections.EMPTY_LIST);
 
 					zkClient.exists(path, true);
 
@@ -177,90 +322,541 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 	}
 
+	/**
+	 * Add observers in bulk: initial state is read once per distinct path with
+	 * pipelined reads, so time taken depends on the number of paths rather
+	 * than the number of observers.
+	 * 
+	 * @param pathObserverMap
+	 */
+	public void putAll(Map<String, ? extends T> pathObserverMap) {
+		putAll(Multimaps.forMap(pathObserverMap));
+	}
+
+	/**
+	 * Add observers in bulk; see putAll(Map).
+	 * 
+	 * @param pathObserverMultimap
+	 *            observers by path: multiple observers of a path share reads
+	 */
+	public void putAll(Multimap<String, ? extends T> pathObserverMultimap) {
+		Set<String> pathSet = pathObserverMultimap.keySet();
+		if (pathSet.isEmpty()) {
+			return;
+		}
+
+		Map<String, PathReadResult> dataResultMap;
+		Map<String, PathReadResult> childResultMap;
+		try {
+			dataResultMap = zkClientUtil.getDataBatch(zkClient, pathSet, true);
+			childResultMap = zkClientUtil.getChildrenBatch(zkClient, pathSet,
+					true);
+		} catch (InterruptedException e) {
+			logger.error("putAll():  " + e, e);
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		int nonexistentPathCount = 0;
+		for (String path : pathSet) {
+			PathReadResult dataResult = dataResultMap.get(path);
+			PathReadResult childResult = childResultMap.get(path);
+			Collection<? extends T> observers = pathObserverMultimap.get(path);
+
+			byte[] data;
+			List<String> childList;
+			if (dataResult.isOk() && childResult.isOk()) {
+				data = dataResult.getData();
+				childList = childResult.getChildList();
+
+			} else if (dataResult.isNoNode() || childResult.isNoNode()) {
+				// set up watch on that node
+				if (zkClient instanceof AsyncZkClient) {
+					((AsyncZkClient) zkClient).existsAsync(path, true);
+				} else {
+					try {
+						zkClient.exists(path, true);
+					} catch (Exception e) {
+						logger.error("Unable to add observers:  path=" + path,
+								e);
+						continue;
+					}
+				}
+				data = null;
+				childList = Collections.EMPTY_LIST;
+				nonexistentPathCount++;
+
+			} else {
+				// let put() retry and report
+				for (T observer : observers) {
+					put(path, observer);
+				}
+				continue;
+			}
+
+			Set<T> observerSet = getObserverSet(path, true);
+			for (T observer : observers) {
+				addObserver(path, observer, observerSet, data, childList);
+			}
+
+			logger.debug("Added observers:  path={}; pathObserverCount={}",
+					path, observerSet.size());
+		}
+
+		logger.info(
+				"Added observers:  pathCount={}; nonexistentPathCount={}; observerCount={}",
+				new Object[] { pathSet.size(), nonexistentPathCount,
+						pathObserverMultimap.size() });
+	}
+
+	/**
+	 * Observe rootPath and every node below it with a single observer. The
+	 * subtree is mirrored locally and kept up to date incrementally from data
+	 * and child watches; rootPath need not exist yet.
+	 * 
+	 * @param rootPath
+	 * @param subtreeObserver
+	 * @return mirror of the subtree: close() to stop observing
+	 */
+	@SuppressWarnings("unchecked")
+	public SubtreeMirror observeSubtree(String rootPath,
+			SubtreeObserver subtreeObserver) {
+		// the mirror only registers AbstractObservers of its own, which are
+		// dispatched through the Observer interface like any other
+		SubtreeMirror subtreeMirror = new SubtreeMirror(
+				(ObserverManager<? super AbstractObserver>) this, rootPath,
+				subtreeObserver);
+		subtreeMirror.start();
+		return subtreeMirror;
+	}
+
+	void addObserver(String path, T observer, Set<T> observerSet,
+			byte[] data, List<String> childList) {
+		// decorate observer with data about the path so we can handle
+		// notifications correctly
+		synchronized (observer) {
+			observer.setPath(path);
+			observer.setData(data);
+			observer.setChildList(childList);
+		}
+		observerSet.add(observer);
+
+		// register with owner (so we can remove all later if a client
+		// disconnects, etc.)
+		String ownerId = observer.getOwnerId();
+		if (ownerId != null) {
+			Set<T> ownerObserverSet = getOwnerObserverSet(ownerId, true);
+			ownerObserverSet.add(observer);
+		}
+	}
+
 	void scheduleCheck(final WatchedEvent event) {
 		final String path = event.getPath();
 
 		// do not schedule a check if we have scheduled a check recently
-		synchronized (observerScheduledCheckTimestampMap) {
+		long currentTimestamp = System.currentTimeMillis();
+		Long checkTimestamp = currentTimestamp + sweeperIntervalMillis;
+		while (true) {
 			Long scheduledCheckTimestamp = observerScheduledCheckTimestampMap
 					.get(path);
-			if (scheduledCheckTimestamp != null) {
-				long timeToCheck = scheduledCheckTimestamp
-						- System.currentTimeMillis();
+			if (scheduledCheckTimestamp == null) {
+				if (observerScheduledCheckTimestampMap.putIfAbsent(path,
+						checkTimestamp) == null) {
+					break;
+				}
+			} else {
+				long timeToCheck = scheduledCheckTimestamp - currentTimestamp;
 				if (timeToCheck > this.sweeperIntervalMillis / 2) {
 					logger.trace(
 							"Ignoring:  re-check already scheduled:  path={}; eventType={}; timeToCheckMillis={}",
 							event.getPath(), event.getType(), timeToCheck);
 					return;
 				}
+				if (observerScheduledCheckTimestampMap.replace(path,
+						scheduledCheckTimestamp, checkTimestamp)) {
+					break;
+				}
 			}
-
-			// update scheduled timestamp
-			observerScheduledCheckTimestampMap.put(path,
-					System.currentTimeMillis() + sweeperIntervalMillis);
 		}
 
 		logger.debug(
 				"Scheduling re-check after watch triggered:  path={}; eventType={}; timeToCheckMillis={}",
 				event.getPath(), event.getType(), sweeperIntervalMillis);
 
-		this.scheduledExecutorService.schedule(new Runnable() {
+		try {
+			getRecheckTimer().newTimeout(new TimerTask() {
+				@Override
+				public void run(Timeout timeout) {
+					// timer thread only queues: reads are done in batches
+					dueRecheckQueue.add(path);
+					scheduleRecheckBatch();
+				}
+			}, this.sweeperIntervalMillis, TimeUnit.MILLISECONDS);
+		} catch (IllegalStateException e) {
+			logger.debug("Ignoring:  re-check timer stopped:  path={}", path);
+		}
+	}
+
+	Timer getRecheckTimer() {
+		if (recheckTimer == null) {
+			synchronized (this) {
+				if (recheckTimer == null) {
+					recheckTimer = new HashedWheelTimer(
+							new ThreadFactoryBuilder()
+									.setNameFormat(
+											getClass().getSimpleName()
+													+ ".recheck-%d")
+									.setDaemon(true).build(),
+							RECHECK_TICK_MILLIS, TimeUnit.MILLISECONDS, 512);
+				}
+			}
+		}
+		return recheckTimer;
+	}
+
+	void scheduleRecheckBatch() {
+		if (recheckBatchScheduled.compareAndSet(false, true)) {
+			try {
+				this.scheduledExecutorService.execute(new Runnable() {
+					@Override
+					public void run() {
+						recheckDuePaths();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.debug("Ignoring:  re-check after shutdown");
+			}
+		}
+	}
+
+	/**
+	 * Re-read paths whose checks have come due, up to RECHECK_BATCH_SIZE at a
+	 * time with pipelined reads.
+	 */
+	void recheckDuePaths() {
+		do {
+			Set<String> pathSet;
+			do {
+				pathSet = new LinkedHashSet<String>();
+				String path;
+				while (pathSet.size() < RECHECK_BATCH_SIZE
+						&& (path = dueRecheckQueue.poll()) != null) {
+					pathSet.add(path);
+				}
+				if (pathSet.size() > 0) {
+					recheck(pathSet);
+				}
+			} while (pathSet.size() > 0);
+
+			recheckBatchScheduled.set(false);
+
+			// pick up paths that came due after queue was drained
+		} while (!dueRecheckQueue.isEmpty()
+				&& recheckBatchScheduled.compareAndSet(false, true));
+	}
+
+	void recheck(Set<String> pathSet) {
+		logger.debug("Re-checking paths:  pathCount={}", pathSet.size());
+
+		long currentTimestamp = System.currentTimeMillis();
+		for (String path : pathSet) {
+			// check is no longer scheduled unless rescheduled since
+			Long scheduledCheckTimestamp = observerScheduledCheckTimestampMap
+					.get(path);
+			if (scheduledCheckTimestamp != null
+					&& scheduledCheckTimestamp <= currentTimestamp) {
+				observerScheduledCheckTimestampMap.remove(path,
+						scheduledCheckTimestamp);
+			}
+
+			// sync data to get most recent: ZooKeeper processes a session's
+			// requests in order, so no need to wait before reading
+			if (zkClient instanceof AsyncZkClient) {
+				((AsyncZkClient) zkClient).syncAsync(path);
+			} else {
+				zkClientUtil.syncPath(zkClient, path, 0,
+						ZkClientUtil.DEFAULT_SYNC_TIMEOUT_MILLIS);
+			}
+		}
+
+		final Map<String, PathReadResult> dataResultMap;
+		final Map<String, PathReadResult> childResultMap;
+		try {
+			dataResultMap = zkClientUtil.getDataBatch(zkClient, pathSet, true);
+			childResultMap = zkClientUtil.getChildrenBatch(zkClient, pathSet,
+					true);
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while re-checking paths:  " + e, e);
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		for (final String path : pathSet) {
+			getDispatcher().dispatch(path, new Runnable() {
+				@Override
+				public void run() {
+					recheck(path, dataResultMap.get(path),
+							childResultMap.get(path));
+				}
+			});
+		}
+	}
+
+	void recheck(String path, PathReadResult dataResult,
+			PathReadResult childResult) {
+		boolean exists = dataResult.isOk() && childResult.isOk();
+		if (!exists) {
+			KeeperException error = dataResult.isOk() ? childResult.getError()
+					: dataResult.getError();
+			if (error == null || error.code() != Code.NONODE) {
+				logger.warn("Unable to check event:  path=" + path, error);
+				return;
+			}
+
+			// set up watch for when path comes back
+			try {
+				zkClient.exists(path, true);
+			} catch (Exception e) {
+				logger.warn("Unable to check event:  path=" + path, e);
+			}
+		}
+
+		byte[] zkData = dataResult.getData();
+		Stat updatedStat = dataResult.getStat();
+		List<String> zkChildList = childResult.getChildList();
+		ChildListDiffer childListDiffer = exists ? new ChildListDiffer(
+				zkChildList) : null;
+
+		Set<T> observerSet = getObserverSet(path, false);
+		for (T observer : observerSet) {
+			synchronized (observer) {
+				List<String> observerChildList = observer.getChildList();
+				byte[] observerData = observer.getData();
+				if (exists) {
+					// check children
+					ChildListDiff childListDiff = childListDiffer
+							.diff(observerChildList);
+					if (!childListDiff.isEmpty()) {
+						observer.setChildList(zkChildList);
+						updateObserver(path, observer);
+						logger.warn(
+								"RECHECK:  NODE CHILDREN CHANGED:  updated={}; previous={}",
+								zkChildList, observerChildList);
+						notifyChildrenChanged(observer, zkChildList,
+								observerChildList, childListDiff);
+					}
+
+					// check data
+					if (!Arrays.equals(observerData, zkData)) {
+						observer.setData(zkData);
+						updateObserver(path, observer);
+						logger.warn(
+								"RECHECK:  NODE DATA CHANGED:  updated={}; previous={}",
+								zkData, observerData);
+						observer.nodeDataChanged(zkData, observerData);
+						observer.nodeDataChanged(zkData, observerData,
+								updatedStat);
+					}
+				} else if (observerData != null
+						|| observerChildList != Collections.EMPTY_LIST) {
+					// node deleted
+					logger.warn("RECHECK:  NODE DELETED:  path={}", path);
+					observer.setData(null);
+					observer.setChildList(Collections.EMPTY_LIST);
+					updateObserver(path, observer);
+					observer.nodeDeleted(observerData, observerChildList);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param path
+	 * @param eventType
+	 * @return observers to notify of the event right away; debounced observers
+	 *         are notified when the path's debounce window closes
+	 */
+	static boolean isDebounced(Observer observer) {
+		return observer instanceof AbstractObserver
+				&& ((AbstractObserver) observer).isDebounced();
+	}
+
+	Set<T> getUndebouncedObserverSet(String path, EventType eventType) {
+		Set<T> observerSet = getObserverSet(path, false);
+		if (debounceMillis <= 0 || observerSet.isEmpty()) {
+			return observerSet;
+		}
 
+		Set<T> undebouncedObserverSet = Collections.EMPTY_SET;
+		boolean debounce = false;
+		for (T observer : observerSet) {
+			if (isDebounced(observer)) {
+				debounce = true;
+			} else {
+				if (undebouncedObserverSet == Collections.EMPTY_SET) {
+					undebouncedObserverSet = new HashSet<T>(4);
+				}
+				undebouncedObserverSet.add(observer);
+			}
+		}
+		if (debounce) {
+			debounce(path, eventType);
+		}
+		return undebouncedObserverSet;
+	}
+
+	void debounce(String path, EventType eventType) {
+		long currentTimestamp = System.currentTimeMillis();
+		synchronized (debounceWindowMap) {
+			DebounceWindow window = debounceWindowMap.get(path);
+			if (window != null) {
+				window.update(currentTimestamp, eventType);
+				debouncedEventCount.incrementAndGet();
+				return;
+			}
+			window = new DebounceWindow(currentTimestamp);
+			window.update(currentTimestamp, eventType);
+			debounceWindowMap.put(path, window);
+		}
+		scheduleDebounceFlush(path, debounceMillis);
+	}
+
+	void scheduleDebounceFlush(final String path, long delayMillis) {
+		this.scheduledExecutorService.schedule(new Runnable() {
 			@Override
 			public void run() {
-				try {
-					// sync data to get most recent
-					zkClientUtil.syncPath(zkClient, path, this);
+				flushDebounceWindow(path);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
 
-					// fetch info about node
-					Stat zkStat = zkClient.exists(path, true);
-					Stat updatedStat = new Stat();
-					byte[] zkData = zkClient.getData(path, true, updatedStat);
-					List<String> zkChildList = zkClient.getChildren(path, true);
+	void flushDebounceWindow(final String path) {
+		final DebounceWindow window;
+		synchronized (debounceWindowMap) {
+			window = debounceWindowMap.get(path);
+			if (window == null) {
+				return;
+			}
+			long dueTimestamp = Math.min(window.lastEventTimestamp
+					+ debounceMillis, window.firstEventTimestamp
+					+ debounceMaxDelayMillis);
+			long delayMillis = dueTimestamp - System.currentTimeMillis();
+			if (delayMillis > 0) {
+				// more changes arrived: wait for path to be quiet
+				scheduleDebounceFlush(path, delayMillis);
+				return;
+			}
 
-					Set<T> observerSet = getObserverSet(path, false);
-					for (T observer : observerSet) {
-						List<String> observerChildList = observer
-								.getChildList();
-						byte[] observerData = observer.getData();
-						if (zkStat != null) {
-							// check children
-							if (childListsDiffer(observerChildList, zkChildList)) {
-								observer.setChildList(zkChildList);
-								updateObserver(path, observer);
-								logger.warn(
-										"RECHECK:  NODE CHILDREN CHANGED:  updated={}; previous={}",
-										zkChildList, observerChildList);
-								observer.nodeChildrenChanged(zkChildList,
-										observerChildList);
-							}
+			// later changes open a new window
+			debounceWindowMap.remove(path);
+		}
 
-							// check data
-							if (!Arrays.equals(observerData, zkData)) {
-								observer.setData(zkData);
-								updateObserver(path, observer);
-								logger.warn(
-										"RECHECK:  NODE DATA CHANGED:  updated={}; previous={}",
-										zkData, observerData);
-								observer.nodeDataChanged(zkData, observerData);
-								observer.nodeDataChanged(zkData, observerData,
-										updatedStat);
-							}
-						} else {
-							// node deleted
-							observer.setData(null);
-							observer.setChildList(Collections.EMPTY_LIST);
-							observer.nodeDeleted(observerData,
-									observerChildList);
-						}
-					}
-				} catch (Exception e) {
-					logger.warn("Unable to check event:  path=" + path, e);
+		debounceFlushCount.incrementAndGet();
+		getDispatcher().dispatch(path, new Runnable() {
+			@Override
+			public void run() {
+				notifyDebouncedObservers(path, window);
+			}
+		});
+	}
+
+	/**
+	 * Read current state of path once and notify debounced observers of any
+	 * difference from the state they last saw.
+	 */
+	void notifyDebouncedObservers(String path, DebounceWindow window) {
+		List<T> debouncedObserverList = new ArrayList<T>();
+		boolean previouslyAbsent = false;
+		for (T observer : getObserverSet(path, false)) {
+			if (isDebounced(observer)) {
+				debouncedObserverList.add(observer);
+				previouslyAbsent = previouslyAbsent
+						|| (observer.getData() == null && observer
+								.getChildList() == Collections.EMPTY_LIST);
+			}
+		}
+		if (debouncedObserverList.isEmpty()) {
+			return;
+		}
+
+		logger.debug(
+				"Notifying debounced observers:  path={}; observerCount={}",
+				path, debouncedObserverList.size());
+
+		// only read what may have changed
+		boolean readData = window.dataChanged || previouslyAbsent;
+		boolean readChildren = window.childrenChanged || previouslyAbsent;
+		Stat updatedStat = new Stat();
+		byte[] updatedData = null;
+		List<String> updatedChildList = null;
+		boolean exists = true;
+		try {
+			try {
+				if (readData) {
+					updatedData = zkClient.getData(path, true, updatedStat);
+				}
+				if (readChildren) {
+					updatedChildList = zkClient.getChildren(path, true);
 				}
+			} catch (KeeperException e) {
+				if (e.code() != Code.NONODE) {
+					throw e;
+				}
+				exists = false;
+
+				// set up watch for when path comes back
+				zkClient.exists(path, true);
 			}
+		} catch (Exception e) {
+			logger.warn("Unable to notify observers:  path=" + path, e);
+			return;
+		}
 
-		}, this.sweeperIntervalMillis, TimeUnit.MILLISECONDS);
+		ChildListDiffer childListDiffer = readChildren ? new ChildListDiffer(
+				updatedChildList) : null;
+		for (T observer : debouncedObserverList) {
+			synchronized (observer) {
+				byte[] previousData = observer.getData();
+				List<String> previousChildList = observer.getChildList();
+				boolean observerPreviouslyAbsent = previousData == null
+						&& previousChildList == Collections.EMPTY_LIST;
+
+				if (!exists) {
+					if (!observerPreviouslyAbsent) {
+						observer.setData(null);
+						observer.setChildList(Collections.EMPTY_LIST);
+						updateObserver(path, observer);
+						observer.nodeDeleted(previousData, previousChildList);
+					}
 
+				} else if (observerPreviouslyAbsent) {
+					observer.setData(updatedData);
+					observer.setChildList(updatedChildList);
+					updateObserver(path, observer);
+					observer.nodeCreated(updatedData, updatedChildList);
+					observer.nodeCreated(updatedData, updatedChildList,
+							updatedStat);
+
+				} else {
+					ChildListDiff childListDiff = readChildren ? childListDiffer
+							.diff(previousChildList) : ChildListDiff.EMPTY;
+					if (!childListDiff.isEmpty()) {
+						observer.setChildList(updatedChildList);
+						updateObserver(path, observer);
+						notifyChildrenChanged(observer, updatedChildList,
+								previousChildList, childListDiff);
+					}
+					if (readData && !Arrays.equals(previousData, updatedData)) {
+						observer.setData(updatedData);
+						updateObserver(path, observer);
+						observer.nodeDataChanged(updatedData, previousData);
+						observer.nodeDataChanged(updatedData, previousData,
+								updatedStat);
+					}
+				}
+			}
+		}
 	}
 
 	@Override
@@ -274,14 +870,15 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 	@Override
 	public void nodeChildrenChanged(final WatchedEvent event) {
-		delegatorExecutorService.submit(new Runnable() {
+		getDispatcher().dispatch(event.getPath(), new Runnable() {
 			public void run() {
 				String path = event.getPath();
 				logger.debug(
 						"Notifying ALL observers:  nodeChildrenChanged:  path={}",
 						path);
 				try {
-					Set<T> observerSet = getObserverSet(path, false);
+					Set<T> observerSet = getUndebouncedObserverSet(path,
+							event.getType());
 					if (observerSet.size() > 0) {
 						List<String> updatedChildList = null;
 						try {
@@ -295,6 +892,9 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 							updatedChildList = Collections.EMPTY_LIST;
 						}
 
+						// diff once, not once per observer
+						ChildListDiffer childListDiffer = new ChildListDiffer(
+								updatedChildList);
 						for (final T observer : observerSet) {
 
 							logger.trace(
@@ -304,16 +904,17 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 							synchronized (observer) {
 								final List<String> previousChildList = observer
 										.getChildList();
-								boolean updatedValueDiffers = childListsDiffer(
-										updatedChildList, previousChildList);
+								ChildListDiff childListDiff = childListDiffer
+										.diff(previousChildList);
 
 								observer.setChildList(updatedChildList);
 
 								updateObserver(path, observer);
 
-								if (updatedValueDiffers) {
-									observer.nodeChildrenChanged(
-											updatedChildList, previousChildList);
+								if (!childListDiff.isEmpty()) {
+									notifyChildrenChanged(observer,
+											updatedChildList, previousChildList,
+											childListDiff);
 								}
 							}
 						}// for
@@ -333,40 +934,31 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 	static boolean childListsDiffer(List<String> updatedChildList,
 			List<String> previousChildList) {
-		if (previousChildList == null) {
-			previousChildList = Collections.EMPTY_LIST;
-		}
-		if (updatedChildList == null) {
-			updatedChildList = Collections.EMPTY_LIST;
-		}
-
-		boolean updatedValueDiffers = previousChildList.size() != updatedChildList
-				.size();
-		if (!updatedValueDiffers) {
-			// if sizes are the same, compare contents independent of order
-			Set<String> childListSet = new HashSet<String>(
-					previousChildList.size() + 1, 1.0f);
-			childListSet.addAll(previousChildList);
-
-			Set<String> updatedChildListSet = new HashSet<String>(
-					updatedChildList.size() + 1, 1.0f);
-			updatedChildListSet.addAll(updatedChildList);
+		return !ChildListDiff.diff(updatedChildList, previousChildList)
+				.isEmpty();
+	}
 
-			updatedValueDiffers = !childListSet.equals(updatedChildListSet);
+	static void notifyChildrenChanged(Observer observer,
+			List<String> updatedChildList, List<String> previousChildList,
+			ChildListDiff childListDiff) {
+		observer.nodeChildrenChanged(updatedChildList, previousChildList);
+		if (observer instanceof AbstractObserver) {
+			((AbstractObserver) observer).nodeChildrenChanged(
+					childListDiff.getAddedChildList(),
+					childListDiff.getRemovedChildList(), updatedChildList);
 		}
-
-		return updatedValueDiffers;
 	}
 
 	@Override
 	public void nodeCreated(final WatchedEvent event) {
-		delegatorExecutorService.submit(new Runnable() {
+		getDispatcher().dispatch(event.getPath(), new Runnable() {
 			public void run() {
 				String path = event.getPath();
 				logger.debug("Notifying ALL observers:  nodeCreated:  path={}",
 						path);
 				try {
-					Set<T> observerSet = getObserverSet(path, false);
+					Set<T> observerSet = getUndebouncedObserverSet(path,
+							event.getType());
 					if (observerSet.size() > 0) {
 						// get children just to get a child watch
 						List<String> childList = zkClient.getChildren(path,
@@ -409,14 +1001,15 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 	@Override
 	public void nodeDataChanged(final WatchedEvent event) {
-		delegatorExecutorService.submit(new Runnable() {
+		getDispatcher().dispatch(event.getPath(), new Runnable() {
 			public void run() {
 				String path = event.getPath();
 				logger.debug(
 						"Notifying ALL observers:  nodeDataChanged:  path={}",
 						path);
 				try {
-					Set<T> observerSet = getObserverSet(path, false);
+					Set<T> observerSet = getUndebouncedObserverSet(path,
+							event.getType());
 					if (observerSet.size() > 0) {
 						Stat updatedStat = new Stat();
 						byte[] updatedData = zkClient.getData(path, true,
@@ -455,13 +1048,14 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 	@Override
 	public void nodeDeleted(final WatchedEvent event) {
-		delegatorExecutorService.submit(new Runnable() {
+		getDispatcher().dispatch(event.getPath(), new Runnable() {
 			public void run() {
 				String path = event.getPath();
 				logger.debug("Notifying ALL observers:  nodeDeleted:  path={}",
 						path);
 
-				Set<T> observerSet = getObserverSet(path, false);
+				Set<T> observerSet = getUndebouncedObserverSet(path,
+						event.getType());
 				if (observerSet.size() > 0) {
 					// set up watch for when path comes back if there are
 					// observers
@@ -503,31 +1097,33 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 	}
 
 	public void signalStateReset(final Object o) {
-		delegatorExecutorService.submit(new Runnable() {
-			public void run() {
-				logger.warn("Notifying ALL observers:  signalStateReset");
-				for (String path : observerMap.keySet()) {
+		logger.warn("Notifying ALL observers:  signalStateReset");
+		for (final String path : observerMap.keySet()) {
+			// in order with other notifications for the path
+			getDispatcher().dispatch(path, new Runnable() {
+				public void run() {
 					Set<T> observerSet = getObserverSet(path, false);
 					for (T observer : observerSet) {
 						observer.stateReset(o);
 					}
 				}
-			}
-		});
+			});
+		}
 	}
 
 	public void signalStateUnknown(final Object o) {
-		delegatorExecutorService.submit(new Runnable() {
-			public void run() {
-				logger.warn("Notifying ALL observers:  signalStateUnknown");
-				for (String path : observerMap.keySet()) {
+		logger.warn("Notifying ALL observers:  signalStateUnknown");
+		for (final String path : observerMap.keySet()) {
+			// in order with other notifications for the path
+			getDispatcher().dispatch(path, new Runnable() {
+				public void run() {
 					Set<T> observerSet = getObserverSet(path, false);
 					for (T observer : observerSet) {
 						observer.stateUnknown(o);
 					}
 				}
-			}
-		});
+			});
+		}
 
 	}
 
@@ -644,4 +1240,66 @@ public class ObserverManager<T extends Observer> extends AbstractZkEventHandler
 
 		return observerSet;
 	}
+
+	/**
+	 * Diffs an updated child list against observers' previous child lists.
+	 * Observers of a path are normally updated together, so they share the
+	 * same previous list: sort the updated list once and compute each
+	 * distinct previous list's diff once.
+	 */
+	static class ChildListDiffer {
+		private final List<String> updatedChildList;
+		private String[] sortedUpdatedChildren;
+		private final Map<List<String>, ChildListDiff> diffMap = new IdentityHashMap<List<String>, ChildListDiff>(
+				4);
+
+		ChildListDiffer(List<String> updatedChildList) {
+			this.updatedChildList = updatedChildList;
+		}
+
+		ChildListDiff diff(List<String> previousChildList) {
+			if (previousChildList == updatedChildList) {
+				return ChildListDiff.EMPTY;
+			}
+			ChildListDiff childListDiff = diffMap.get(previousChildList);
+			if (childListDiff == null) {
+				if (sortedUpdatedChildren == null) {
+					sortedUpdatedChildren = ChildListDiff
+							.toSortedArray(updatedChildList);
+				}
+				childListDiff = ChildListDiff.diff(sortedUpdatedChildren,
+						ChildListDiff.toSortedArray(previousChildList));
+				diffMap.put(previousChildList, childListDiff);
+			}
+			return childListDiff;
+		}
+	}
+
+	/**
+	 * Changes to a path not yet delivered to debounced observers.
+	 */
+	static class DebounceWindow {
+		final long firstEventTimestamp;
+		long lastEventTimestamp;
+		boolean dataChanged = false;
+		boolean childrenChanged = false;
+
+		DebounceWindow(long firstEventTimestamp) {
+			this.firstEventTimestamp = firstEventTimestamp;
+			this.lastEventTimestamp = firstEventTimestamp;
+		}
+
+		void update(long eventTimestamp, EventType eventType) {
+			lastEventTimestamp = eventTimestamp;
+			if (eventType == EventType.NodeChildrenChanged) {
+				childrenChanged = true;
+			} else if (eventType == EventType.NodeDataChanged) {
+				dataChanged = true;
+			} else {
+				// created or deleted
+				childrenChanged = true;
+				dataChanged = true;
+			}
+		}
+	}
 }
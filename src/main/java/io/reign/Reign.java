@@ -14,12 +14,18 @@
 package io.reign;
 
 import io.reign.presence.PresenceService;
+import io.reign.zk.PathCacheSnapshot;
+import io.reign.zk.ResilientZkClientWithCache;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
@@ -84,6 +90,14 @@ public class Reign implements Watcher {
     /** executed on completion of stop() */
     private Runnable stopHook;
 
+    /** path cache contents are saved here on stop() and loaded on start() */
+    private PathCacheSnapshot pathCacheSnapshot;
+
+    /** also save snapshot periodically if > 0 */
+    private long pathCacheSnapshotIntervalMillis = -1;
+
+    private ScheduledExecutorService pathCacheSnapshotExecutorService;
+
     public static ReignMaker maker() {
         return new ReignMaker();
     }
@@ -116,6 +130,47 @@ public class Reign implements Watcher {
         this.stopHook = stopHook;
     }
 
+    /**
+     * Persist path cache across restarts: only applies when zkClient is a ResilientZkClientWithCache.
+     * 
+     * @param pathCacheSnapshot
+     * @param pathCacheSnapshotIntervalMillis
+     *            interval at which to save snapshot in addition to on stop(); <= 0 to only save on stop()
+     */
+    public synchronized void setPathCacheSnapshot(PathCacheSnapshot pathCacheSnapshot,
+            long pathCacheSnapshotIntervalMillis) {
+        if (started) {
+            throw new IllegalStateException("Cannot set after framework is started!");
+        }
+        this.pathCacheSnapshot = pathCacheSnapshot;
+        this.pathCacheSnapshotIntervalMillis = pathCacheSnapshotIntervalMillis;
+    }
+
+    /**
+     * 
+     * @param observerDispatcherThreads
+     *            number of threads running observer callbacks
+     * @see ObserverManager#setDispatcherThreads(int)
+     */
+    public synchronized void setObserverDispatcherThreads(int observerDispatcherThreads) {
+        if (started) {
+            throw new IllegalStateException("Cannot set after framework is started!");
+        }
+        observerManager.setDispatcherThreads(observerDispatcherThreads);
+    }
+
+    /**
+     * Coalesce bursts of changes to a path into one notification of the final state for observers that allow it.
+     * 
+     * @param debounceMillis
+     *            quiet period before notifying; <= 0 to disable
+     * @param debounceMaxDelayMillis
+     *            max delay from first change in a burst until notification
+     */
+    public void setObserverDebounce(long debounceMillis, long debounceMaxDelayMillis) {
+        observerManager.setDebounce(debounceMillis, debounceMaxDelayMillis);
+    }
+
     public synchronized NodeIdProvider getCanonicalIdProvider() {
         if (!started) {
             throw new IllegalStateException("Cannot get provider before framework is started!");
@@ -253,6 +308,9 @@ public class Reign implements Watcher {
         // logger.info("START:  initializing pathCache...");
         // pathCache.init();
 
+        /** warm path cache from snapshot **/
+        startPathCacheSnapshot();
+
         /** create context object **/
         logger.info("START:  creating ReignContext...");
         final List<ACL> finalDefaultZkAclList = defaultZkAclList;
@@ -396,6 +454,9 @@ public class Reign implements Watcher {
         // logger.info("SHUTDOWN:  stopping pathCache...");
         // pathCache.destroy();
 
+        /** save path cache snapshot **/
+        stopPathCacheSnapshot();
+
         /** clean up zk client **/
         logger.info("SHUTDOWN:  closing Zookeeper client");
         this.zkClient.close();
@@ -418,6 +479,60 @@ public class Reign implements Watcher {
         }
     }
 
+    void startPathCacheSnapshot() {
+        if (pathCacheSnapshot == null || !(zkClient instanceof ResilientZkClientWithCache)) {
+            return;
+        }
+
+        final ResilientZkClientWithCache zkClientWithCache = (ResilientZkClientWithCache) zkClient;
+
+        logger.info("START:  loading path cache snapshot:  file={}", pathCacheSnapshot.getFile());
+        try {
+            zkClientWithCache.loadSnapshot(pathCacheSnapshot);
+        } catch (Exception e) {
+            // start cold
+            logger.warn("START:  could not load path cache snapshot:  " + e, e);
+        }
+
+        if (pathCacheSnapshotIntervalMillis > 0) {
+            pathCacheSnapshotExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "reign-path-cache-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            pathCacheSnapshotExecutorService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        zkClientWithCache.saveSnapshot(pathCacheSnapshot);
+                    } catch (Exception e) {
+                        logger.warn("Could not save path cache snapshot:  " + e, e);
+                    }
+                }
+            }, pathCacheSnapshotIntervalMillis, pathCacheSnapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stopPathCacheSnapshot() {
+        if (pathCacheSnapshot == null || !(zkClient instanceof ResilientZkClientWithCache)) {
+            return;
+        }
+
+        if (pathCacheSnapshotExecutorService != null) {
+            pathCacheSnapshotExecutorService.shutdown();
+        }
+
+        logger.info("SHUTDOWN:  saving path cache snapshot:  file={}", pathCacheSnapshot.getFile());
+        try {
+            ((ResilientZkClientWithCache) zkClient).saveSnapshot(pathCacheSnapshot);
+        } catch (Exception e) {
+            logger.error("SHUTDOWN:  could not save path cache snapshot:  " + e, e);
+        }
+    }
+
     private void throwExceptionIfNotOkayToRegister() {
         if (started) {
             throw new IllegalStateException("Cannot register services once started!");
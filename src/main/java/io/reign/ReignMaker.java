@@ -18,11 +18,18 @@ import io.reign.coord.CoordinationService;
 import io.reign.data.DataService;
 import io.reign.mesg.DefaultMessagingService;
 import io.reign.mesg.MessagingService;
+import io.reign.metrics.MetricRegistryManager;
 import io.reign.metrics.MetricsService;
 import io.reign.presence.PresenceService;
+import io.reign.zk.HotPathTracker;
 import io.reign.zk.PathCache;
+import io.reign.zk.PathCacheSnapshot;
 import io.reign.zk.ResilientZkClient;
+import io.reign.zk.ResilientZkClientWithCache;
 import io.reign.zk.SimplePathCache;
+import io.reign.zk.StripedZkClient;
+import io.reign.zk.ZkRateLimiter;
+import io.reign.zk.ZkRateLimiter.Priority;
 
 import java.io.File;
 import java.io.IOException;
@@ -49,8 +56,34 @@ public class ReignMaker {
 
 	private int pathCacheMaxSize = 1024;
 	private int pathCacheMaxConcurrencyLevel = 2;
+	private long pathCacheMaxBytes = -1;
+
+	private boolean coherentPathCache = false;
 
 	private PathCache pathCache = null;
+
+	private String pathCacheSnapshotFilePath = null;
+
+	private long pathCacheSnapshotIntervalMillis = -1;
+
+	private int zkSessionCount = 1;
+
+	private long serveStaleMaxMillis = -1;
+
+	private long zkOperationTimeoutMillis = Long.MIN_VALUE;
+
+	private HotPathTracker hotPathTracker = null;
+
+	private ZkRateLimiter zkRateLimiter = null;
+
+	private MetricRegistryManager zkMetricRegistryManager = null;
+
+	private int observerDispatcherThreads = -1;
+
+	private long observerDebounceMillis = 0;
+
+	private long observerDebounceMaxDelayMillis = 0;
+
 	private ZkClient zkClient = null;
 
 	private PathScheme pathScheme = null;
@@ -207,6 +240,15 @@ public class ReignMaker {
 		return this;
 	}
 
+	/**
+	 * Open sessionCount ZooKeeper sessions and spread reads across them by path; writes and coordination go through one
+	 * primary session. Only applies to the default ZkClient without coherent path cache.
+	 */
+	public ReignMaker zkSessionCount(int zkSessionCount) {
+		this.zkSessionCount = zkSessionCount;
+		return this;
+	}
+
 	public String zkConnectString() {
 		return this.zkConnectString;
 	}
@@ -247,11 +289,122 @@ public class ReignMaker {
 		return this;
 	}
 
+	/**
+	 * 
+	 * @param maxSize
+	 *            expected max number of entries
+	 * @param concurrencyLevel
+	 * @param maxBytes
+	 *            heap budget for cached data and child lists; least recently used entries are evicted beyond this
+	 * @return
+	 */
+	public ReignMaker pathCache(int maxSize, int concurrencyLevel, long maxBytes) {
+		this.pathCacheMaxSize = maxSize;
+		this.pathCacheMaxConcurrencyLevel = concurrencyLevel;
+		this.pathCacheMaxBytes = maxBytes;
+		return this;
+	}
+
 	public ReignMaker pathCache(PathCache pathCache) {
 		this.pathCache = pathCache;
 		return this;
 	}
 
+	/**
+	 * Serve ZooKeeper reads from a path cache kept coherent by watches: entries are invalidated by watch events, so
+	 * reads that request a watch can also be served from cache. Only applies to the default ZkClient.
+	 */
+	public ReignMaker coherentPathCache(boolean coherentPathCache) {
+		this.coherentPathCache = coherentPathCache;
+		return this;
+	}
+
+	/**
+	 * Save path cache contents to a local file on shutdown (and every intervalMillis if > 0) and load them on start-up
+	 * so restarts begin with a warm cache. Loaded entries are revalidated against ZooKeeper on first read. Only applies
+	 * when the ZkClient is a ResilientZkClientWithCache.
+	 */
+	public ReignMaker pathCacheSnapshot(String filePath, long intervalMillis) {
+		this.pathCacheSnapshotFilePath = filePath;
+		this.pathCacheSnapshotIntervalMillis = intervalMillis;
+		return this;
+	}
+
+	/**
+	 * While disconnected from ZooKeeper, serve reads of cached paths from cache for up to maxStalenessMillis instead of
+	 * blocking. The default ZkClient is then a ResilientZkClientWithCache; a ZkClient set with zkClient() must be one,
+	 * or get() throws IllegalStateException.
+	 */
+	public ReignMaker serveStaleReads(long maxStalenessMillis) {
+		this.serveStaleMaxMillis = maxStalenessMillis;
+		return this;
+	}
+
+	/**
+	 * Count ZooKeeper reads, writes and watch notifications per path; the hottest paths are reported by the metrics
+	 * service (meta "hotpaths"). If zkMetricRegistryManager is also set, skew gauges are registered there (see
+	 * HotPathTracker.registerGauges()). Applies to ResilientZkClient, ResilientZkClientWithCache and StripedZkClient.
+	 */
+	public ReignMaker hotPathTracker(HotPathTracker hotPathTracker) {
+		this.hotPathTracker = hotPathTracker;
+		return this;
+	}
+
+	/**
+	 * Record per-operation ZooKeeper latency, outcome and retry metrics (see ZkClientMetrics) into
+	 * zkMetricRegistryManager; export them with MetricsService.scheduleExport(). Applies to ResilientZkClient,
+	 * ResilientZkClientWithCache and StripedZkClient.
+	 */
+	public ReignMaker zkMetricRegistryManager(MetricRegistryManager zkMetricRegistryManager) {
+		this.zkMetricRegistryManager = zkMetricRegistryManager;
+		return this;
+	}
+
+	/**
+	 * Limit the rate of ZooKeeper reads, writes and creates. Unless already assigned in zkRateLimiter, coordination
+	 * and presence paths get HIGH priority and data and metrics paths LOW priority. Throttling counts are reported by
+	 * the metrics service (meta "throttle"). Applies to ResilientZkClient, ResilientZkClientWithCache and
+	 * StripedZkClient.
+	 */
+	public ReignMaker zkRateLimiter(ZkRateLimiter zkRateLimiter) {
+		this.zkRateLimiter = zkRateLimiter;
+		return this;
+	}
+
+	/**
+	 * How long a ZooKeeper operation waits for a usable connection before failing with ConnectionLossException; 0 to
+	 * fail fast, < 0 to wait indefinitely. Defaults to the session timeout. Applies to ResilientZkClient,
+	 * ResilientZkClientWithCache and StripedZkClient.
+	 */
+	public ReignMaker zkOperationTimeoutMillis(long zkOperationTimeoutMillis) {
+		this.zkOperationTimeoutMillis = zkOperationTimeoutMillis;
+		return this;
+	}
+
+	/**
+	 * Number of threads running observer callbacks: callbacks for the same path run in order, different paths in
+	 * parallel. Defaults to ObserverManager.DEFAULT_DISPATCHER_THREADS.
+	 */
+	public ReignMaker observerDispatcherThreads(int observerDispatcherThreads) {
+		this.observerDispatcherThreads = observerDispatcherThreads;
+		return this;
+	}
+
+	/**
+	 * 
+	 * @param debounceMillis
+	 *            quiet period before debounced observers are notified of
+	 *            changes to a path; <= 0 to disable
+	 * @param maxDelayMillis
+	 *            max delay from first change in a burst until notification
+	 * @return
+	 */
+	public ReignMaker observerDebounce(long debounceMillis, long maxDelayMillis) {
+		this.observerDebounceMillis = debounceMillis;
+		this.observerDebounceMaxDelayMillis = maxDelayMillis;
+		return this;
+	}
+
 	public ReignMaker zkClient(ZkClient zkClient) {
 		this.zkClient = zkClient;
 		return this;
@@ -294,11 +447,47 @@ public class ReignMaker {
 			canonicalIdMaker = defaultCanonicalIdMaker();
 		}
 
+		if (serveStaleMaxMillis >= 0) {
+			if (!(zkClient instanceof ResilientZkClientWithCache)) {
+				throw new IllegalStateException("serveStaleReads requires a ResilientZkClientWithCache:  zkClient="
+				        + zkClient.getClass().getName());
+			}
+			((ResilientZkClientWithCache) zkClient).setServeStaleMaxMillis(serveStaleMaxMillis);
+		}
+
+		configureWatchRestorePriority(zkClient, pathScheme);
+		if (hotPathTracker != null) {
+			configureHotPathTracker(zkClient, hotPathTracker);
+		}
+		if (zkRateLimiter != null) {
+			configureRateLimiter(zkClient, pathScheme, zkRateLimiter);
+		}
+		if (zkMetricRegistryManager != null) {
+			configureZkClientMetrics(zkClient, zkMetricRegistryManager);
+			if (hotPathTracker != null) {
+				hotPathTracker.registerGauges(zkMetricRegistryManager);
+			}
+		}
+		if (zkOperationTimeoutMillis != Long.MIN_VALUE) {
+			configureOperationTimeout(zkClient, zkOperationTimeoutMillis);
+		}
+
 		// build
 		s = new Reign(zkClient, pathScheme, canonicalIdMaker, zkTestServer);
 		s.registerServices(serviceMap);
 		s.setStartHook(startHook);
 		s.setStopHook(stopHook);
+		if (observerDispatcherThreads > 0) {
+			s.setObserverDispatcherThreads(observerDispatcherThreads);
+		}
+		if (observerDebounceMillis > 0) {
+			s.setObserverDebounce(observerDebounceMillis,
+			        observerDebounceMaxDelayMillis);
+		}
+		if (pathCacheSnapshotFilePath != null) {
+			s.setPathCacheSnapshot(new PathCacheSnapshot(new File(pathCacheSnapshotFilePath)),
+			        pathCacheSnapshotIntervalMillis);
+		}
 
 		return s;
 	}
@@ -310,19 +499,117 @@ public class ReignMaker {
 
 		ZkClient zkClient = null;
 		try {
-			zkClient = new ResilientZkClient(zkConnectString, zkSessionTimeout);
+			if (coherentPathCache || serveStaleMaxMillis >= 0) {
+				// stale reads are served from the cache
+				zkClient = new ResilientZkClientWithCache(zkConnectString, zkSessionTimeout, pathCache,
+				        coherentPathCache);
+			} else if (zkSessionCount > 1) {
+				zkClient = new StripedZkClient(zkConnectString, zkSessionTimeout, zkSessionCount);
+			} else {
+				zkClient = new ResilientZkClient(zkConnectString, zkSessionTimeout);
+			}
 		} catch (IOException e) {
 			throw new ReignException("Fatal error:  could not initialize Zookeeper client!", e);
 		}
 		return zkClient;
 	}
 
+	/**
+	 * After session loss, restore coordination and presence watches first and metrics watches last.
+	 */
+	void configureWatchRestorePriority(ZkClient zkClient, PathScheme pathScheme) {
+		if (zkClient instanceof StripedZkClient) {
+			StripedZkClient stripedZkClient = (StripedZkClient) zkClient;
+			stripedZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.COORD), 10);
+			stripedZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.PRESENCE), 20);
+			stripedZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.CONF), 30);
+			stripedZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.DATA), 40);
+			stripedZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.METRICS), 90);
+
+			// locks and barriers must see their own nodes
+			stripedZkClient.addPrimaryPathPrefix(pathScheme.getAbsolutePath(PathType.COORD));
+			return;
+		}
+
+		ResilientZkClient resilientZkClient = null;
+		if (zkClient instanceof ResilientZkClient) {
+			resilientZkClient = (ResilientZkClient) zkClient;
+		} else if (zkClient instanceof ResilientZkClientWithCache) {
+			resilientZkClient = ((ResilientZkClientWithCache) zkClient).getResilientZkClient();
+		}
+		if (resilientZkClient == null) {
+			return;
+		}
+
+		resilientZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.COORD), 10);
+		resilientZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.PRESENCE), 20);
+		resilientZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.CONF), 30);
+		resilientZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.DATA), 40);
+		resilientZkClient.setWatchRestorePriority(pathScheme.getAbsolutePath(PathType.METRICS), 90);
+	}
+
+	void configureHotPathTracker(ZkClient zkClient, HotPathTracker hotPathTracker) {
+		if (zkClient instanceof ResilientZkClient) {
+			((ResilientZkClient) zkClient).setHotPathTracker(hotPathTracker);
+		} else if (zkClient instanceof ResilientZkClientWithCache) {
+			((ResilientZkClientWithCache) zkClient).setHotPathTracker(hotPathTracker);
+		} else if (zkClient instanceof StripedZkClient) {
+			((StripedZkClient) zkClient).setHotPathTracker(hotPathTracker);
+		} else {
+			logger.warn("Hot path tracking not supported by ZkClient:  {}", zkClient.getClass().getName());
+		}
+	}
+
+	void configureZkClientMetrics(ZkClient zkClient, MetricRegistryManager metricRegistryManager) {
+		if (zkClient instanceof ResilientZkClient) {
+			((ResilientZkClient) zkClient).setMetricRegistryManager(metricRegistryManager);
+		} else if (zkClient instanceof ResilientZkClientWithCache) {
+			((ResilientZkClientWithCache) zkClient).setMetricRegistryManager(metricRegistryManager);
+		} else if (zkClient instanceof StripedZkClient) {
+			((StripedZkClient) zkClient).setMetricRegistryManager(metricRegistryManager);
+		} else {
+			logger.warn("ZooKeeper operation metrics not supported by ZkClient:  {}", zkClient.getClass().getName());
+		}
+	}
+
+	void configureRateLimiter(ZkClient zkClient, PathScheme pathScheme, ZkRateLimiter zkRateLimiter) {
+		zkRateLimiter.setPriorityIfAbsent(pathScheme.getAbsolutePath(PathType.COORD), Priority.HIGH);
+		zkRateLimiter.setPriorityIfAbsent(pathScheme.getAbsolutePath(PathType.PRESENCE), Priority.HIGH);
+		zkRateLimiter.setPriorityIfAbsent(pathScheme.getAbsolutePath(PathType.DATA), Priority.LOW);
+		zkRateLimiter.setPriorityIfAbsent(pathScheme.getAbsolutePath(PathType.METRICS), Priority.LOW);
+
+		if (zkClient instanceof ResilientZkClient) {
+			((ResilientZkClient) zkClient).setRateLimiter(zkRateLimiter);
+		} else if (zkClient instanceof ResilientZkClientWithCache) {
+			((ResilientZkClientWithCache) zkClient).setRateLimiter(zkRateLimiter);
+		} else if (zkClient instanceof StripedZkClient) {
+			((StripedZkClient) zkClient).setRateLimiter(zkRateLimiter);
+		} else {
+			logger.warn("Rate limiting not supported by ZkClient:  {}", zkClient.getClass().getName());
+		}
+	}
+
+	void configureOperationTimeout(ZkClient zkClient, long operationTimeoutMillis) {
+		if (zkClient instanceof ResilientZkClient) {
+			((ResilientZkClient) zkClient).setOperationTimeoutMillis(operationTimeoutMillis);
+		} else if (zkClient instanceof ResilientZkClientWithCache) {
+			((ResilientZkClientWithCache) zkClient).setOperationTimeoutMillis(operationTimeoutMillis);
+		} else if (zkClient instanceof StripedZkClient) {
+			((StripedZkClient) zkClient).setOperationTimeoutMillis(operationTimeoutMillis);
+		} else {
+			logger.warn("Operation timeout not supported by ZkClient:  {}", zkClient.getClass().getName());
+		}
+	}
+
 	PathCache defaultPathCache() {
 		if (pathCacheMaxSize < 1 || pathCacheMaxConcurrencyLevel < 1) {
 			throw new ReignException(
 			        "zkClient, pathCacheMaxSize, and pathCacheMaxConcurrencyLevel must be configured to create default path cache!");
 		}
 
+		if (pathCacheMaxBytes > 0) {
+			return new SimplePathCache(this.pathCacheMaxSize, this.pathCacheMaxConcurrencyLevel, this.pathCacheMaxBytes);
+		}
 		return new SimplePathCache(this.pathCacheMaxSize, this.pathCacheMaxConcurrencyLevel);
 	}
 
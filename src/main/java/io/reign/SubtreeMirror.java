@@ -0,0 +1,310 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local mirror of a ZooKeeper subtree kept up to date from data and child watches, reporting changes to a single
+ * SubtreeObserver.
+ * 
+ * Each mirrored node is watched through ObserverManager, so watches are not duplicated for nodes also observed
+ * elsewhere. Nodes are loaded a level at a time with pipelined reads, and added or removed children are found from the
+ * parent's child list diff rather than by re-listing.
+ * 
+ * @author ypai
+ * 
+ */
+public class SubtreeMirror {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubtreeMirror.class);
+
+    private final ObserverManager<? super NodeObserver> observerManager;
+
+    private final String rootPath;
+
+    private final SubtreeObserver subtreeObserver;
+
+    /**
+     * observer of each mirrored node: sorted by path so a subtree is a key range
+     */
+    private final ConcurrentNavigableMap<String, NodeObserver> nodeObserverMap =
+            new ConcurrentSkipListMap<String, NodeObserver>();
+
+    private volatile boolean closed = false;
+
+    SubtreeMirror(ObserverManager<? super NodeObserver> observerManager, String rootPath,
+            SubtreeObserver subtreeObserver) {
+        if (rootPath.length() > 1 && rootPath.endsWith("/")) {
+            rootPath = rootPath.substring(0, rootPath.length() - 1);
+        }
+        this.observerManager = observerManager;
+        this.rootPath = rootPath;
+        this.subtreeObserver = subtreeObserver;
+    }
+
+    void start() {
+        logger.info("Mirroring subtree:  rootPath={}", rootPath);
+        addNodes(Collections.singletonList(rootPath));
+    }
+
+    /**
+     * Stop mirroring: no further changes are reported.
+     */
+    public void close() {
+        closed = true;
+        for (Map.Entry<String, NodeObserver> entry : nodeObserverMap.entrySet()) {
+            observerManager.remove(entry.getKey(), entry.getValue());
+        }
+        nodeObserverMap.clear();
+        logger.info("Stopped mirroring subtree:  rootPath={}", rootPath);
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * 
+     * @return paths of nodes currently in the subtree, sorted
+     */
+    public Set<String> getPaths() {
+        Set<String> pathSet = new TreeSet<String>();
+        for (NodeObserver nodeObserver : nodeObserverMap.values()) {
+            if (nodeObserver.present.get()) {
+                pathSet.add(nodeObserver.getPath());
+            }
+        }
+        return pathSet;
+    }
+
+    /**
+     * 
+     * @param path
+     * @return mirrored data; null if path is not in the subtree
+     */
+    public byte[] getData(String path) {
+        NodeObserver nodeObserver = nodeObserverMap.get(path);
+        if (nodeObserver == null) {
+            return null;
+        }
+        synchronized (nodeObserver) {
+            return nodeObserver.getData();
+        }
+    }
+
+    /**
+     * 
+     * @param path
+     * @return mirrored child list; empty if path is not in the subtree
+     */
+    public List<String> getChildList(String path) {
+        NodeObserver nodeObserver = nodeObserverMap.get(path);
+        if (nodeObserver == null) {
+            return Collections.emptyList();
+        }
+        synchronized (nodeObserver) {
+            return nodeObserver.getChildList();
+        }
+    }
+
+    /**
+     * Start mirroring paths and everything below them, a level at a time.
+     */
+    void addNodes(Collection<String> pathList) {
+        while (!pathList.isEmpty() && !closed) {
+            Map<String, NodeObserver> newObserverMap = new LinkedHashMap<String, NodeObserver>(pathList.size() + 1,
+                    1.0f);
+            for (String path : pathList) {
+                NodeObserver nodeObserver = new NodeObserver();
+                if (nodeObserverMap.putIfAbsent(path, nodeObserver) == null) {
+                    newObserverMap.put(path, nodeObserver);
+                }
+            }
+            if (newObserverMap.isEmpty()) {
+                return;
+            }
+
+            observerManager.putAll(newObserverMap);
+
+            List<String> childPathList = new ArrayList<String>();
+            for (Map.Entry<String, NodeObserver> entry : newObserverMap.entrySet()) {
+                String path = entry.getKey();
+                NodeObserver nodeObserver = entry.getValue();
+                byte[] data;
+                List<String> childList;
+                synchronized (nodeObserver) {
+                    data = nodeObserver.getData();
+                    childList = nodeObserver.getChildList();
+                }
+
+                if (data == null && childList == Collections.EMPTY_LIST) {
+                    // gone before it could be read: root is still watched so it is mirrored when created
+                    if (!path.equals(rootPath)) {
+                        nodeObserverMap.remove(path, nodeObserver);
+                        observerManager.remove(path, nodeObserver);
+                    }
+                    continue;
+                }
+
+                notifyAdded(nodeObserver, data);
+                for (String child : childList) {
+                    childPathList.add(joinPath(path, child));
+                }
+            }
+            pathList = childPathList;
+        }
+    }
+
+    /**
+     * Stop mirroring everything below path, reporting removals children first.
+     */
+    void removeDescendants(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        NavigableMap<String, NodeObserver> descendantMap = nodeObserverMap.subMap(prefix, !prefix.equals(path),
+                prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1), false);
+
+        // children sort after their parents
+        for (Map.Entry<String, NodeObserver> entry : descendantMap.descendingMap().entrySet()) {
+            removeNode(entry.getKey(), entry.getValue());
+        }
+    }
+
+    void removeNode(String path, NodeObserver nodeObserver) {
+        if (nodeObserverMap.remove(path, nodeObserver)) {
+            observerManager.remove(path, nodeObserver);
+            byte[] data;
+            synchronized (nodeObserver) {
+                data = nodeObserver.getData();
+            }
+            notifyRemoved(nodeObserver, data);
+        }
+    }
+
+    void notifyAdded(NodeObserver nodeObserver, byte[] data) {
+        if (!closed && nodeObserver.present.compareAndSet(false, true)) {
+            synchronized (subtreeObserver) {
+                subtreeObserver.nodeAdded(nodeObserver.getPath(), data);
+            }
+        }
+    }
+
+    void notifyRemoved(NodeObserver nodeObserver, byte[] previousData) {
+        if (!closed && nodeObserver.present.compareAndSet(true, false)) {
+            synchronized (subtreeObserver) {
+                subtreeObserver.nodeRemoved(nodeObserver.getPath(), previousData);
+            }
+        }
+    }
+
+    static String joinPath(String path, String child) {
+        return path.endsWith("/") ? path + child : path + "/" + child;
+    }
+
+    /**
+     * Watches one node of the subtree.
+     */
+    class NodeObserver extends AbstractObserver {
+
+        /** reported to subtreeObserver as added and not yet as removed */
+        final AtomicBoolean present = new AtomicBoolean(false);
+
+        @Override
+        public void nodeChildrenChanged(List<String> addedChildList, List<String> removedChildList,
+                List<String> updatedChildList) {
+            String path = getPath();
+            for (String child : removedChildList) {
+                String childPath = joinPath(path, child);
+                removeDescendants(childPath);
+                NodeObserver childObserver = nodeObserverMap.get(childPath);
+                if (childObserver != null) {
+                    removeNode(childPath, childObserver);
+                }
+            }
+
+            if (addedChildList.size() > 0) {
+                List<String> childPathList = new ArrayList<String>(addedChildList.size());
+                for (String child : addedChildList) {
+                    childPathList.add(joinPath(path, child));
+                }
+                addNodes(childPathList);
+            }
+        }
+
+        @Override
+        public void nodeDataChanged(byte[] updatedData, byte[] previousData) {
+            if (!closed && present.get()) {
+                synchronized (subtreeObserver) {
+                    subtreeObserver.nodeDataChanged(getPath(), updatedData, previousData);
+                }
+            }
+        }
+
+        @Override
+        public void nodeCreated(byte[] data, List<String> childList) {
+            // root, or a node re-created before its parent's watch fired
+            notifyAdded(this, data);
+            if (childList.size() > 0) {
+                List<String> childPathList = new ArrayList<String>(childList.size());
+                for (String child : childList) {
+                    childPathList.add(joinPath(getPath(), child));
+                }
+                addNodes(childPathList);
+            }
+        }
+
+        @Override
+        public void nodeDeleted(byte[] previousData, List<String> previousChildList) {
+            // stay registered in case node is re-created: parent drops this observer when it sees the child removed
+            removeDescendants(getPath());
+            notifyRemoved(this, previousData);
+        }
+
+        @Override
+        public void stateReset(Object o) {
+            if (rootPath.equals(getPath())) {
+                synchronized (subtreeObserver) {
+                    subtreeObserver.stateReset(o);
+                }
+            }
+        }
+
+        @Override
+        public void stateUnknown(Object o) {
+            if (rootPath.equals(getPath())) {
+                synchronized (subtreeObserver) {
+                    subtreeObserver.stateUnknown(o);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign;
+
+/**
+ * Receives changes anywhere in an observed subtree, each qualified with the absolute path of the node that changed.
+ * Callbacks for one subtree are not run concurrently.
+ * 
+ * @see ObserverManager#observeSubtree(String, SubtreeObserver)
+ * 
+ * @author ypai
+ * 
+ */
+public abstract class SubtreeObserver {
+
+    /**
+     * Called for each node found when the subtree is first loaded and for each node added afterwards. Parents are
+     * generally reported before their children.
+     * 
+     * @param path
+     * @param data
+     */
+    public void nodeAdded(String path, byte[] data) {
+    }
+
+    public void nodeDataChanged(String path, byte[] updatedData, byte[] previousData) {
+    }
+
+    /**
+     * Called for each node removed, children before their parents.
+     * 
+     * @param path
+     * @param previousData
+     */
+    public void nodeRemoved(String path, byte[] previousData) {
+    }
+
+    /**
+     * @see Observer#stateReset(Object)
+     */
+    public void stateReset(Object o) {
+    }
+
+    /**
+     * @see Observer#stateUnknown(Object)
+     */
+    public void stateUnknown(Object o) {
+    }
+}
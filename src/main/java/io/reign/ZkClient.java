@@ -21,6 +21,8 @@ import java.util.List;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -62,4 +64,15 @@ public interface ZkClient {
     public void delete(final String path, final int version) throws InterruptedException, KeeperException;
 
     public void sync(final String path, final VoidCallback cb, final Object ctx);
+
+    /**
+     * Executes operations as a single ZooKeeper transaction: either all succeed or none are applied.
+     * 
+     * @param ops
+     * @return results in the same order as ops
+     * @throws KeeperException
+     *             on failure; KeeperException.getResults() identifies the failed operation
+     * @throws InterruptedException
+     */
+    public List<OpResult> multi(final Iterable<Op> ops) throws InterruptedException, KeeperException;
 }
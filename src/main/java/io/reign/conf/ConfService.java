@@ -17,6 +17,8 @@ import io.reign.AbstractService;
 import io.reign.DataSerializer;
 import io.reign.JsonDataSerializer;
 import io.reign.PathType;
+import io.reign.SubtreeMirror;
+import io.reign.SubtreeObserver;
 import io.reign.mesg.ParsedRequestMessage;
 import io.reign.mesg.RequestMessage;
 import io.reign.mesg.ResponseMessage;
@@ -115,6 +117,22 @@ public class ConfService extends AbstractService {
         observe(PathType.CONF, clusterId, relativeConfPath, observer);
     }
 
+    /**
+     * Observe all configuration under a prefix with a single observer.
+     * 
+     * @param clusterId
+     * @param relativePathPrefix
+     *            null or empty for all of the cluster's configuration
+     * @param subtreeObserver
+     * @return mirror of the configuration subtree: close() to stop observing
+     */
+    public SubtreeMirror observeSubtree(String clusterId, String relativePathPrefix, SubtreeObserver subtreeObserver) {
+        String relativePath = relativePathPrefix == null || relativePathPrefix.length() == 0 ? clusterId
+                : getPathScheme().joinPaths(clusterId, relativePathPrefix);
+        String absolutePath = getPathScheme().getAbsolutePath(PathType.CONF, relativePath);
+        return getObserverManager().observeSubtree(absolutePath, subtreeObserver);
+    }
+
     <T> void observe(PathType pathType, String clusterId, String relativeConfPath, ConfObserver<T> observer) {
         throwExceptionIfInvalidConfPath(relativeConfPath);
 
@@ -57,4 +57,23 @@ public abstract class CoordObserver<T> extends AbstractObserver {
 
         return revoked.size() > 0 ? revoked : Collections.EMPTY_LIST;
     }
+
+    /**
+     * 
+     * @param removedChildList
+     *            children removed since last notification
+     * @param entityPath
+     * @param pathScheme
+     * @return reservation paths of removed children
+     */
+    public static List<String> toRevoked(List<String> removedChildList, String entityPath, PathScheme pathScheme) {
+        if (removedChildList.isEmpty()) {
+            return Collections.EMPTY_LIST;
+        }
+        List<String> revoked = new ArrayList<String>(removedChildList.size());
+        for (String removedChild : removedChildList) {
+            revoked.add(pathScheme.joinPaths(entityPath, removedChild));
+        }
+        return revoked;
+    }
 }
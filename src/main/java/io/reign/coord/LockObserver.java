@@ -33,9 +33,10 @@ public abstract class LockObserver extends CoordObserver<DistributedLock> {
     public abstract void revoked(DistributedLock lock, String reservationId);
 
     @Override
-    public void nodeChildrenChanged(List<String> updatedChildList, List<String> previousChildList) {
+    public void nodeChildrenChanged(List<String> addedChildList, List<String> removedChildList,
+            List<String> updatedChildList) {
         // figure out revoked permit
-        List<String> revoked = findRevoked(updatedChildList, previousChildList, getPath(), pathScheme);
+        List<String> revoked = toRevoked(removedChildList, getPath(), pathScheme);
 
         // check and signal revocations to observers
         if (revoked.size() > 0) {
@@ -33,9 +33,10 @@ public abstract class SemaphoreObserver extends CoordObserver<DistributedSemapho
     public abstract void revoked(DistributedSemaphore semaphore, String permitId);
 
     @Override
-    public void nodeChildrenChanged(List<String> updatedChildList, List<String> previousChildList) {
+    public void nodeChildrenChanged(List<String> addedChildList, List<String> removedChildList,
+            List<String> updatedChildList) {
         // figure out revoked permit
-        List<String> revoked = findRevoked(updatedChildList, previousChildList, getPath(), pathScheme);
+        List<String> revoked = toRevoked(removedChildList, getPath(), pathScheme);
 
         // check and signal revocations to observers
         if (revoked.size() > 0) {
@@ -21,9 +21,7 @@ import io.reign.ReignContext;
 import io.reign.util.ZkClientUtil;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.zookeeper.CreateMode;
@@ -56,19 +54,13 @@ public class ZkDistributedBarrier implements DistributedBarrier {
 
     private final AbstractObserver observer = new AbstractObserver() {
         @Override
-        public void nodeChildrenChanged(List<String> updatedChildList, List<String> previousChildList) {
+        public void nodeChildrenChanged(List<String> addedChildList, List<String> removedChildList,
+                List<String> updatedChildList) {
             if (!conditionsMet) {
-                Set<String> updatedChildSet = new HashSet<String>(updatedChildList.size() + 1, 1.0f);
-                for (String child : updatedChildList) {
-                    updatedChildSet.add(child);
-                }
-                for (String child : previousChildList) {
-                    if (!updatedChildSet.contains(child)) {
-                        logger.warn("Barrier is broken:  old child not in new update:  child={}; updatedChildList={}",
-                                child, updatedChildList);
-                        broken = true;
-                        break;
-                    }
+                if (!removedChildList.isEmpty()) {
+                    logger.warn("Barrier is broken:  old child not in new update:  child={}; updatedChildList={}",
+                            removedChildList.get(0), updatedChildList);
+                    broken = true;
                 }
                 if (!broken && updatedChildList.size() == parties) {
                     conditionsMet = true;
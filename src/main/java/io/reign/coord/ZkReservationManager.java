@@ -193,7 +193,13 @@ class ZkReservationManager {
 						}
 
 						// set watch on the reservation ahead of this one
-						zkClient.exists(reservationAheadPath, lockReservationWatcher);
+						Stat reservationAheadStat = zkClient.exists(reservationAheadPath, lockReservationWatcher);
+						if (reservationAheadStat == null) {
+							// released between reading reservation list and setting watch: check again right away
+							logger.debug("Reservation ahead already released:  reservationPath={}; watchPath={}",
+							        lockReservationPath, reservationAheadPath);
+							continue;
+						}
 
 						// wait for notification
 						logger.debug(
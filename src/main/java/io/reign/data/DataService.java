@@ -54,6 +54,8 @@ public class DataService extends AbstractService {
 
 	private ScheduledThreadPoolExecutor executorService;
 
+	private volatile long syncMaxAgeMillis = 0;
+
 	public DataService() {
 		this(new KryoTranscodingScheme());
 	}
@@ -62,6 +64,22 @@ public class DataService extends AbstractService {
 		this.transcodingScheme = transcodingScheme;
 	}
 
+	public long getSyncMaxAgeMillis() {
+		return syncMaxAgeMillis;
+	}
+
+	/**
+	 * Process-safe data structures sync() with ZooKeeper before reading. Applies to data structures obtained after the
+	 * call.
+	 * 
+	 * @param syncMaxAgeMillis
+	 *            skip sync() before a read if a sync on the same path issued within the last syncMaxAgeMillis has
+	 *            completed; 0 (default) to always sync. Updates made under the write lock always sync.
+	 */
+	public void setSyncMaxAgeMillis(long syncMaxAgeMillis) {
+		this.syncMaxAgeMillis = syncMaxAgeMillis;
+	}
+
 	public <V> MultiData<V> getMulti(String clusterId, String dataPath) {
 		return getMulti(clusterId, dataPath, true, getContext()
 				.getDefaultZkAclList());
@@ -80,8 +98,10 @@ public class DataService extends AbstractService {
 		String absoluteBasePath = pathScheme.getAbsolutePath(PathType.DATA,
 				pathScheme.joinTokens(clusterId, dataPath));
 
-		return new ZkMultiData<V>(absoluteBasePath, readWriteLock, aclList,
-				transcodingScheme, getContext());
+		ZkMultiData<V> multiData = new ZkMultiData<V>(absoluteBasePath,
+				readWriteLock, aclList, transcodingScheme, getContext());
+		multiData.setSyncMaxAgeMillis(syncMaxAgeMillis);
+		return multiData;
 	}
 
 	public <K> MultiMapData<K> getMultiMap(String clusterId, String dataPath) {
@@ -106,8 +126,11 @@ public class DataService extends AbstractService {
 		String absoluteBasePath = pathScheme.getAbsolutePath(PathType.DATA,
 				pathScheme.joinTokens(clusterId, dataPath));
 
-		return new ZkMultiMapData<K>(absoluteBasePath, readWriteLock, aclList,
-				transcodingScheme, getContext());
+		ZkMultiMapData<K> multiMapData = new ZkMultiMapData<K>(
+				absoluteBasePath, readWriteLock, aclList, transcodingScheme,
+				getContext());
+		multiMapData.setSyncMaxAgeMillis(syncMaxAgeMillis);
+		return multiMapData;
 	}
 
 	public <V> LinkedListData<V> getLinkedList(String clusterId, String dataPath) {
@@ -127,8 +150,11 @@ public class DataService extends AbstractService {
 		String absoluteBasePath = pathScheme.getAbsolutePath(PathType.DATA,
 				pathScheme.joinTokens(clusterId, dataPath));
 
-		return new ZkLinkedListData<V>(absoluteBasePath, readWriteLock,
-				aclList, transcodingScheme, getContext());
+		ZkLinkedListData<V> linkedListData = new ZkLinkedListData<V>(
+				absoluteBasePath, readWriteLock, aclList, transcodingScheme,
+				getContext());
+		linkedListData.setSyncMaxAgeMillis(syncMaxAgeMillis);
+		return linkedListData;
 	}
 
 	public <V> QueueData<V> getQueue(String clusterId, String dataPath) {
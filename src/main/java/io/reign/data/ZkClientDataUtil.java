@@ -25,7 +25,6 @@ import io.reign.zk.PathCache;
 
 import java.util.Map;
 
-import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +41,8 @@ public class ZkClientDataUtil extends ZkClientUtil {
     // protected final PathCache pathCache;
     protected final TranscodingScheme transcodingScheme;
 
+    private volatile long syncMaxAgeMillis = 0;
+
     ZkClientDataUtil(ZkClient zkClient, PathScheme pathScheme, TranscodingScheme transcodingScheme) {
 
         this.zkClient = zkClient;
@@ -57,10 +58,10 @@ public class ZkClientDataUtil extends ZkClientUtil {
         }// if
     }
 
-    void lockForWrite(DistributedReadWriteLock readWriteLock, String dataPath, final Object monitorObject) {
+    void lockForWrite(DistributedReadWriteLock readWriteLock, String dataPath) {
         if (readWriteLock != null) {
             readWriteLock.writeLock().lock();
-            syncZkClient(dataPath, monitorObject);
+            syncZkClientForWrite(dataPath);
         }// if
     }
 
@@ -70,10 +71,10 @@ public class ZkClientDataUtil extends ZkClientUtil {
         }
     }
 
-    void lockForRead(DistributedReadWriteLock readWriteLock, String dataPath, final Object monitorObject) {
+    void lockForRead(DistributedReadWriteLock readWriteLock, String dataPath) {
         if (readWriteLock != null) {
             readWriteLock.readLock().lock();
-            syncZkClient(dataPath, monitorObject);
+            syncZkClient(dataPath);
         }
     }
 
@@ -83,27 +84,32 @@ public class ZkClientDataUtil extends ZkClientUtil {
         }
     }
 
-    void syncZkClient(String dataPath, final Object monitorObject) {
-        logger.trace("Syncing ZK client:  dataPath={}", dataPath);
-        zkClient.sync(dataPath, new VoidCallback() {
-            @Override
-            public void processResult(int arg0, String arg1, Object arg2) {
-                synchronized (monitorObject) {
-                    monitorObject.notifyAll();
-                }
-            }
-        }, null);
-
-        // wait for sync to complete
-        synchronized (monitorObject) {
-            try {
-                logger.trace("Waiting for ZK client sync complete:  dataPath={}", dataPath);
-                monitorObject.wait();
-                logger.trace("ZK client sync completed:  dataPath={}", dataPath);
-            } catch (InterruptedException e) {
-                logger.warn("Interrupted while waiting for ZK sync():  " + e, e);
-            }
-        }
+    /**
+     * Sync before a read: skipped if the path was synced within the last syncMaxAgeMillis.
+     */
+    void syncZkClient(String dataPath) {
+        syncPath(zkClient, dataPath, syncMaxAgeMillis, DEFAULT_SYNC_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sync before a read-modify-write under the write lock: always syncs, so the previous lock holder's write is seen.
+     */
+    void syncZkClientForWrite(String dataPath) {
+        syncPath(zkClient, dataPath, 0, DEFAULT_SYNC_TIMEOUT_MILLIS);
+    }
+
+    long getSyncMaxAgeMillis() {
+        return syncMaxAgeMillis;
+    }
+
+    /**
+     * 
+     * @param syncMaxAgeMillis
+     *            reads skip sync() if a sync on the path issued within the last syncMaxAgeMillis has completed; 0 to
+     *            always sync. Writes under the write lock always sync.
+     */
+    void setSyncMaxAgeMillis(long syncMaxAgeMillis) {
+        this.syncMaxAgeMillis = syncMaxAgeMillis;
     }
 
     boolean isExpired(long lastModifiedMillis, int ttlMillis) {
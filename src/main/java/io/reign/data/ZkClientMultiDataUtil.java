@@ -19,11 +19,13 @@ package io.reign.data;
 import io.reign.PathScheme;
 import io.reign.ZkClient;
 import io.reign.zk.PathCache;
+import io.reign.zk.PathReadResult;
 import io.reign.zk.SimplePathCacheEntry;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.zookeeper.CreateMode;
@@ -360,17 +362,35 @@ public class ZkClientMultiDataUtil extends ZkClientDataUtil {
                 // pathCache.put(absoluteBasePath, stat, null, childList);
             }
 
-            // iterate through children and build up list
+            // read all children in one pipelined batch and build up list
             if (childList.size() > 0) {
-                List<V> resultList = new ArrayList<V>(childList.size());
+                List<String> absoluteDataPathList = new ArrayList<String>(childList.size());
                 for (String child : childList) {
-                    V value = readData(absoluteBasePath, child, ttlMillis, typeClass);
+                    absoluteDataPathList.add(pathScheme.joinPaths(absoluteBasePath, child));
+                }
+                Map<String, PathReadResult> readResultMap = getDataBatch(zkClient, absoluteDataPathList, true);
+
+                List<V> resultList = new ArrayList<V>(childList.size());
+                for (PathReadResult readResult : readResultMap.values()) {
+                    if (!readResult.isOk()) {
+                        if (!readResult.isNoNode()) {
+                            logger.error("" + readResult.getError(), readResult.getError());
+                        }
+                        continue;
+                    }
 
-                    // logger.debug("readAllData():  absoluteBasePath={}; index={}; value={}", new Object[] {
-                    // absoluteBasePath, child, value });
+                    // see if item is expired
+                    if (isExpired(readResult.getStat().getMtime(), ttlMillis)) {
+                        continue;
+                    }
 
-                    if (value != null) {
-                        resultList.add(value);
+                    // deserialize
+                    byte[] bytes = readResult.getData();
+                    if (bytes != null && bytes != EMPTY_BYTE_ARRAY) {
+                        V value = transcodingScheme.fromBytes(bytes, typeClass);
+                        if (value != null) {
+                            resultList.add(value);
+                        }
                     }
                 }// for
 
@@ -75,6 +75,13 @@ public class ZkLinkedListData<V> implements LinkedListData<V> {
                 context.getPathScheme(), transcodingScheme);
     }
 
+    /**
+     * @see DataService#setSyncMaxAgeMillis(long)
+     */
+    void setSyncMaxAgeMillis(long syncMaxAgeMillis) {
+        zkClientLinkedListDataUtil.setSyncMaxAgeMillis(syncMaxAgeMillis);
+    }
+
     @Override
     public synchronized void destroy() {
         if (readWriteLock != null) {
@@ -125,7 +132,7 @@ public class ZkLinkedListData<V> implements LinkedListData<V> {
 
     @Override
     public synchronized int size() {
-        zkClientLinkedListDataUtil.lockForRead(readWriteLock, absoluteBasePath, this);
+        zkClientLinkedListDataUtil.lockForRead(readWriteLock, absoluteBasePath);
         try {
             return zkClientLinkedListDataUtil.getSortedChildList(absoluteBasePath).size();
         } finally {
@@ -144,9 +151,9 @@ public class ZkLinkedListData<V> implements LinkedListData<V> {
      */
     synchronized <T extends V> T getValueAt(int index, Class<T> typeClass, boolean deleteAfterRead) {
         if (deleteAfterRead) {
-            zkClientLinkedListDataUtil.lockForWrite(readWriteLock, absoluteBasePath, this);
+            zkClientLinkedListDataUtil.lockForWrite(readWriteLock, absoluteBasePath);
         } else {
-            zkClientLinkedListDataUtil.lockForRead(readWriteLock, absoluteBasePath, this);
+            zkClientLinkedListDataUtil.lockForRead(readWriteLock, absoluteBasePath);
         }
         try {
             List<String> childList = zkClientLinkedListDataUtil.getSortedChildList(absoluteBasePath);
@@ -159,7 +166,11 @@ public class ZkLinkedListData<V> implements LinkedListData<V> {
                 String absoluteDataPath = pathScheme.joinPaths(absoluteBasePath, child);
 
                 // sync connection on path before read
-                zkClientLinkedListDataUtil.syncZkClient(absoluteDataPath, this);
+                if (deleteAfterRead) {
+                    zkClientLinkedListDataUtil.syncZkClientForWrite(absoluteDataPath);
+                } else {
+                    zkClientLinkedListDataUtil.syncZkClient(absoluteDataPath);
+                }
 
                 // read child node value
                 T childData = zkClientLinkedListDataUtil.readData(absoluteDataPath, -1, typeClass);
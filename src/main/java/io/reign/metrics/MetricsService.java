@@ -32,6 +32,12 @@ import io.reign.mesg.SimpleResponseMessage;
 import io.reign.presence.PresenceService;
 import io.reign.util.JacksonUtil;
 import io.reign.util.ZkClientUtil;
+import io.reign.zk.HotPathTracker;
+import io.reign.zk.PathReadResult;
+import io.reign.zk.ResilientZkClient;
+import io.reign.zk.ResilientZkClientWithCache;
+import io.reign.zk.StripedZkClient;
+import io.reign.zk.ZkRateLimiter;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -69,6 +75,9 @@ public class MetricsService extends AbstractService {
 
     public static final int DEFAULT_UPDATE_INTERVAL_MILLIS = 15000;
 
+    /** number of paths of each kind returned by "hotpaths" requests */
+    public static final int DEFAULT_HOT_PATH_REPORT_SIZE = 20;
+
     /** interval btw. aggregations at service level */
     private volatile int updateIntervalMillis = DEFAULT_UPDATE_INTERVAL_MILLIS;
 
@@ -441,7 +450,36 @@ public class MetricsService extends AbstractService {
             }
 
             /** get response **/
-            if ("observe".equals(parsedRequestMessage.getMeta())) {
+            if ("hotpaths".equals(parsedRequestMessage.getMeta())
+                    || "hotpaths-reset".equals(parsedRequestMessage.getMeta())) {
+                // report this node's hottest ZooKeeper paths
+                HotPathTracker hotPathTracker = getHotPathTracker();
+                String k = parsedRequestMessage.getQueryParameterValue("k");
+                int reportSize = parseHotPathReportSize(k);
+                if (reportSize < 1) {
+                    responseMessage.setStatus(ResponseStatus.ERROR_UNEXPECTED,
+                            "Invalid k (expected a positive integer):  " + k);
+                } else if (hotPathTracker == null) {
+                    responseMessage.setComment("Hot path tracking not enabled");
+                } else {
+                    responseMessage.setBody(hotPathTracker.getReport(reportSize));
+                    if ("hotpaths-reset".equals(parsedRequestMessage.getMeta())) {
+                        hotPathTracker.reset();
+                    }
+                }
+            } else if ("throttle".equals(parsedRequestMessage.getMeta())
+                    || "throttle-reset".equals(parsedRequestMessage.getMeta())) {
+                // report how often this node's ZooKeeper operations were delayed or shed
+                ZkRateLimiter rateLimiter = getRateLimiter();
+                if (rateLimiter == null) {
+                    responseMessage.setComment("ZooKeeper rate limiting not enabled");
+                } else {
+                    responseMessage.setBody(rateLimiter.getReport());
+                    if ("throttle-reset".equals(parsedRequestMessage.getMeta())) {
+                        rateLimiter.reset();
+                    }
+                }
+            } else if ("observe".equals(parsedRequestMessage.getMeta())) {
                 responseMessage = new SimpleResponseMessage(ResponseStatus.OK);
                 String[] tokens = getPathScheme().tokenizePath(resource);
                 if (tokens.length == 2) {
@@ -531,6 +569,52 @@ public class MetricsService extends AbstractService {
 
     }
 
+    /**
+     * 
+     * @param k
+     *            "k" query parameter of a "hotpaths" request
+     * @return DEFAULT_HOT_PATH_REPORT_SIZE if k is null; -1 if k is not a positive integer
+     */
+    static int parseHotPathReportSize(String k) {
+        if (k == null) {
+            return DEFAULT_HOT_PATH_REPORT_SIZE;
+        }
+        try {
+            int reportSize = Integer.parseInt(k.trim());
+            return reportSize > 0 ? reportSize : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 
+     * @return tracker counting operations of the framework ZkClient; or null if not enabled
+     */
+    HotPathTracker getHotPathTracker() {
+        ZkClient zkClient = getContext().getZkClient();
+        if (zkClient instanceof ResilientZkClient) {
+            return ((ResilientZkClient) zkClient).getHotPathTracker();
+        } else if (zkClient instanceof ResilientZkClientWithCache) {
+            return ((ResilientZkClientWithCache) zkClient).getHotPathTracker();
+        } else if (zkClient instanceof StripedZkClient) {
+            return ((StripedZkClient) zkClient).getHotPathTracker();
+        }
+        return null;
+    }
+
+    ZkRateLimiter getRateLimiter() {
+        ZkClient zkClient = getContext().getZkClient();
+        if (zkClient instanceof ResilientZkClient) {
+            return ((ResilientZkClient) zkClient).getRateLimiter();
+        } else if (zkClient instanceof ResilientZkClientWithCache) {
+            return ((ResilientZkClientWithCache) zkClient).getRateLimiter();
+        } else if (zkClient instanceof StripedZkClient) {
+            return ((StripedZkClient) zkClient).getRateLimiter();
+        }
+        return null;
+    }
+
     MetricsObserver getClientObserver(final NodeId clientNodeId, final String clusterId, final String serviceId,
             final String nodeId) {
         MetricsObserver observer = new MetricsObserver() {
@@ -626,6 +710,15 @@ public class MetricsService extends AbstractService {
                                 pathScheme.joinTokens(clusterId, serviceId));
                         List<String> dataNodes = zkClient.getChildren(dataParentPath, false);
 
+                        // read all data nodes in one pipelined batch instead of one round trip per node
+                        List<String> dataPaths = new ArrayList<String>(dataNodes.size());
+                        for (String dataNode : dataNodes) {
+                            dataPaths.add(pathScheme.getAbsolutePath(PathType.METRICS,
+                                    pathScheme.joinTokens(clusterId, serviceId, dataNode)));
+                        }
+                        Map<String, PathReadResult> dataReadResultMap = zkClientUtil.getDataBatch(zkClient,
+                                dataPaths, true);
+
                         /**
                          * iterate through service data nodes and gather up data to aggregate
                          **/
@@ -657,10 +750,16 @@ public class MetricsService extends AbstractService {
                                     pathScheme.joinTokens(clusterId, serviceId, dataNode));
 
                             try {
-                                metricsData = getMetricsFromDataNode(clusterId, serviceId, dataNode);
-                                if (metricsData == null) {
+                                PathReadResult dataReadResult = dataReadResultMap.get(dataPath);
+                                if (dataReadResult.isNoNode()) {
                                     continue;
                                 }
+                                if (!dataReadResult.isOk()) {
+                                    throw dataReadResult.getError();
+                                }
+                                metricsData = JacksonUtil.getObjectMapper().readValue(dataReadResult.getData(),
+                                        MetricsData.class);
+                                metricsData.setLastUpdatedTimestamp(dataReadResult.getStat().getMtime());
                             } catch (Exception e) {
                                 logger.warn("Error trying to aggregate data directory for service:  clusterId="
                                         + clusterId + "; serviceId=" + serviceId + ":  " + e, e);
@@ -929,6 +1028,15 @@ public class MetricsService extends AbstractService {
                                 pathScheme.joinTokens(clusterId, serviceId));
                         List<String> dataNodes = zkClient.getChildren(dataParentPath, false);
 
+                        // read all data nodes in one pipelined batch instead of one round trip per node
+                        List<String> dataPaths = new ArrayList<String>(dataNodes.size());
+                        for (String dataNode : dataNodes) {
+                            dataPaths.add(pathScheme.getAbsolutePath(PathType.METRICS,
+                                    pathScheme.joinTokens(clusterId, serviceId, dataNode)));
+                        }
+                        Map<String, PathReadResult> dataReadResultMap = zkClientUtil.getDataBatch(zkClient,
+                                dataPaths, false);
+
                         // remove all nodes that are older than rotation
                         // interval
                         for (String dataNode : dataNodes) {
@@ -937,7 +1045,21 @@ public class MetricsService extends AbstractService {
                                         clusterId, serviceId, dataNode);
                                 dataPath = pathScheme.getAbsolutePath(PathType.METRICS,
                                         pathScheme.joinTokens(clusterId, serviceId, dataNode));
-                                MetricsData metricsData = getMetricsFromDataNode(clusterId, serviceId, dataNode);
+                                PathReadResult dataReadResult = dataReadResultMap.get(dataPath);
+                                if (dataReadResult.isNoNode()) {
+                                    continue;
+                                }
+                                if (!dataReadResult.isOk()) {
+                                    throw dataReadResult.getError();
+                                }
+                                MetricsData metricsData = null;
+                                try {
+                                    metricsData = JacksonUtil.getObjectMapper().readValue(dataReadResult.getData(),
+                                            MetricsData.class);
+                                    metricsData.setLastUpdatedTimestamp(dataReadResult.getStat().getMtime());
+                                } catch (UnrecognizedPropertyException e) {
+                                    logger.warn("Error reading data node:  path=" + dataPath + ":  " + e, e);
+                                }
                                 if (metricsData == null) {
                                     logger.warn("Removing unrecognized/corrupted/deprecated data node:  path={}",
                                             dataPath);
@@ -14,12 +14,16 @@
 package io.reign.presence;
 
 import io.reign.AbstractService;
+import io.reign.AsyncZkClient;
 import io.reign.DataSerializer;
 import io.reign.JsonDataSerializer;
 import io.reign.NodeId;
 import io.reign.PathType;
 import io.reign.Reign;
 import io.reign.ReignException;
+import io.reign.SubtreeMirror;
+import io.reign.SubtreeObserver;
+import io.reign.ZkClient;
 import io.reign.ZkNodeId;
 import io.reign.coord.CoordinationService;
 import io.reign.coord.DistributedLock;
@@ -32,6 +36,7 @@ import io.reign.mesg.SimpleEventMessage;
 import io.reign.mesg.SimpleResponseMessage;
 import io.reign.util.ZkClientUtil;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -39,6 +44,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -51,6 +57,9 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Service discovery service.
  * 
@@ -185,6 +194,18 @@ public class PresenceService extends AbstractService {
 		getObserverManager().put(path, observer);
 	}
 
+	/**
+	 * Observe all services and nodes in a cluster with a single observer.
+	 * 
+	 * @param clusterId
+	 * @param subtreeObserver
+	 * @return mirror of the cluster's presence subtree: close() to stop observing
+	 */
+	public SubtreeMirror observeSubtree(String clusterId, SubtreeObserver subtreeObserver) {
+		String path = getPathScheme().getAbsolutePath(PathType.PRESENCE, clusterId);
+		return getObserverManager().observeSubtree(path, subtreeObserver);
+	}
+
 	public void observe(String clusterId, String serviceId, PresenceObserver<ServiceInfo> observer) {
 		String servicePath = getPathScheme().joinTokens(clusterId, serviceId);
 		String path = getPathScheme().getAbsolutePath(PathType.PRESENCE, servicePath);
@@ -902,10 +923,30 @@ public class PresenceService extends AbstractService {
 
 								// check stat and make sure mtime of each child is
 								// within 4x heartbeatIntervalMillis; if not, delete
+								List<String> serviceChildPaths = new ArrayList<String>(serviceChildren.size());
 								for (String child : serviceChildren) {
-									String serviceChildPath = getPathScheme().joinPaths(servicePath, child);
+									serviceChildPaths.add(getPathScheme().joinPaths(servicePath, child));
+								}
+								// only Stat is needed: pipeline exists() rather than reading node data
+								ZkClient zkClient = getZkClient();
+								List<ListenableFuture<Stat>> statFutureList = new ArrayList<ListenableFuture<Stat>>(
+								        serviceChildPaths.size());
+								for (String serviceChildPath : serviceChildPaths) {
+									statFutureList.add(zkClient instanceof AsyncZkClient ? ((AsyncZkClient) zkClient)
+									        .existsAsync(serviceChildPath, false) : Futures.immediateFuture(zkClient
+									        .exists(serviceChildPath, false)));
+								}
+								for (int i = 0; i < serviceChildPaths.size(); i++) {
+									String serviceChildPath = serviceChildPaths.get(i);
 									logger.debug("Checking for service zombie child nodes:  path={}", serviceChildPath);
-									Stat stat = getZkClient().exists(serviceChildPath, false);
+									Stat stat;
+									try {
+										stat = statFutureList.get(i).get();
+									} catch (ExecutionException e) {
+										logger.warn("Unable to check for zombie node:  path=" + serviceChildPath + ":  "
+										        + e.getCause(), e.getCause());
+										continue;
+									}
 									if (stat != null) {
 										long timeDiff = System.currentTimeMillis() - stat.getMtime();
 										if (timeDiff > heartbeatIntervalMillis * 4) {
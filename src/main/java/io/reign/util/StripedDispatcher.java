@@ -0,0 +1,205 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.util;
+
+import io.reign.metrics.MetricRegistryManager;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs tasks on a fixed number of single-threaded stripes, choosing the stripe by hashing a key: tasks with the same
+ * key run one at a time in submission order, tasks with different keys may run in parallel.
+ * 
+ * When a MetricRegistryManager is set, records:
+ * 
+ * <pre>
+ * [prefix]latency          timer:  task run time
+ * [prefix]queueTime        timer:  time from submission until task starts
+ * [prefix]queueDepth       gauge:  tasks submitted but not yet completed, all stripes
+ * [prefix]maxQueueDepth    gauge:  tasks submitted but not yet completed, busiest stripe
+ * </pre>
+ * 
+ * @author ypai
+ * 
+ */
+public class StripedDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(StripedDispatcher.class);
+
+    private final ExecutorService[] stripes;
+
+    private final AtomicInteger[] queueDepths;
+
+    private final String metricPrefix;
+
+    private volatile MetricRegistryManager metricRegistryManager;
+
+    /**
+     * 
+     * @param name
+     *            used to name threads
+     * @param stripeCount
+     * @param metricPrefix
+     *            e.g. "observer.dispatch."
+     */
+    public StripedDispatcher(String name, int stripeCount, String metricPrefix) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be > 0:  stripeCount=" + stripeCount);
+        }
+        this.metricPrefix = metricPrefix;
+        this.stripes = new ExecutorService[stripeCount];
+        this.queueDepths = new AtomicInteger[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat(name + "-" + i + "-%d").setDaemon(true).build());
+            queueDepths[i] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * 
+     * @param key
+     *            tasks with equal keys run in order
+     * @param task
+     */
+    public void dispatch(Object key, final Runnable task) {
+        final int stripe = getStripe(key);
+        final long submitNanos = System.nanoTime();
+        queueDepths[stripe].incrementAndGet();
+        try {
+            stripes[stripe].execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startNanos = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        logger.error("run():  " + e, e);
+                    } finally {
+                        queueDepths[stripe].decrementAndGet();
+                        MetricRegistryManager registryManager = metricRegistryManager;
+                        if (registryManager != null) {
+                            long endNanos = System.nanoTime();
+                            registryManager.timer(metricPrefix + "queueTime").update(startNanos - submitNanos,
+                                    TimeUnit.NANOSECONDS);
+                            registryManager.timer(metricPrefix + "latency").update(endNanos - startNanos,
+                                    TimeUnit.NANOSECONDS);
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            queueDepths[stripe].decrementAndGet();
+            throw e;
+        }
+    }
+
+    int getStripe(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * 
+     * @return tasks submitted but not yet completed
+     */
+    public int getQueueDepth() {
+        int queueDepth = 0;
+        for (AtomicInteger stripeQueueDepth : queueDepths) {
+            queueDepth += stripeQueueDepth.get();
+        }
+        return queueDepth;
+    }
+
+    /**
+     * 
+     * @return tasks submitted but not yet completed on the busiest stripe
+     */
+    public int getMaxQueueDepth() {
+        int maxQueueDepth = 0;
+        for (AtomicInteger stripeQueueDepth : queueDepths) {
+            maxQueueDepth = Math.max(maxQueueDepth, stripeQueueDepth.get());
+        }
+        return maxQueueDepth;
+    }
+
+    public MetricRegistryManager getMetricRegistryManager() {
+        return metricRegistryManager;
+    }
+
+    /**
+     * Record metrics into metricRegistryManager; queue depth gauges are registered on this call.
+     * 
+     * @param metricRegistryManager
+     *            null to stop recording
+     */
+    public void setMetricRegistryManager(MetricRegistryManager metricRegistryManager) {
+        if (metricRegistryManager != null && metricRegistryManager != this.metricRegistryManager) {
+            try {
+                metricRegistryManager.gauge(metricPrefix + "queueDepth", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return getQueueDepth();
+                    }
+                });
+                metricRegistryManager.gauge(metricPrefix + "maxQueueDepth", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return getMaxQueueDepth();
+                    }
+                });
+            } catch (IllegalArgumentException e) {
+                logger.warn("Queue depth gauges already registered:  prefix={}", metricPrefix);
+            }
+        }
+        this.metricRegistryManager = metricRegistryManager;
+    }
+
+    public void shutdown() {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService stripe : stripes) {
+            if (!stripe.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
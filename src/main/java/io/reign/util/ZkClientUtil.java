@@ -16,20 +16,35 @@
 
 package io.reign.util;
 
+import io.reign.AsyncZkClient;
 import io.reign.PathScheme;
 import io.reign.ZkClient;
+import io.reign.zk.PathReadResult;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Convenience functions to make operating with Zookeeper easier.
  * 
@@ -39,37 +54,128 @@ import org.slf4j.LoggerFactory;
 public class ZkClientUtil {
     private static final Logger logger = LoggerFactory.getLogger(ZkClientUtil.class);
 
+    /** max number of times to retry a path-building transaction that lost a race with another client */
+    private static final int MAX_UPDATE_PATH_ATTEMPTS = 5;
+
+    public static final long DEFAULT_SYNC_TIMEOUT_MILLIS = 30000;
+
     public String updatePath(final ZkClient zkClient, final PathScheme pathScheme, final String path,
             final byte[] leafData, final List<ACL> aclList, final CreateMode createMode, int leafDataVersion)
             throws KeeperException {
         return updatePath(zkClient, pathScheme, path, leafData, aclList, createMode, leafDataVersion, null);
     }
 
+    /**
+     * @deprecated use syncPath(ZkClient, String, long, long): monitorObject is no longer used
+     */
+    @Deprecated
     public void syncPath(final ZkClient zkClient, String dataPath, final Object monitorObject) {
+        syncPath(zkClient, dataPath, 0, DEFAULT_SYNC_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sync zkClient's view of dataPath with the ZooKeeper leader, waiting up to timeoutMillis. Concurrent syncs on the
+     * same path are coalesced if zkClient supports async operations.
+     * 
+     * @param zkClient
+     * @param dataPath
+     * @param maxAgeMillis
+     *            skip if a sync on dataPath issued within the last maxAgeMillis has completed; 0 to always sync
+     *            (honored if zkClient supports async operations)
+     * @param timeoutMillis
+     * @return true if synced; false on error, timeout or interruption
+     */
+    public boolean syncPath(final ZkClient zkClient, String dataPath, long maxAgeMillis, long timeoutMillis) {
         logger.trace("Syncing ZK client:  dataPath={}", dataPath);
-        zkClient.sync(dataPath, new VoidCallback() {
-            @Override
-            public void processResult(int arg0, String arg1, Object arg2) {
-                if (monitorObject != null) {
-                    synchronized (monitorObject) {
-                        monitorObject.notifyAll();
-                    }
-                }
+        try {
+            if (zkClient instanceof AsyncZkClient) {
+                ((AsyncZkClient) zkClient).syncAsync(dataPath, maxAgeMillis).get(timeoutMillis,
+                        TimeUnit.MILLISECONDS);
+                logger.trace("ZK client sync completed:  dataPath={}", dataPath);
+                return true;
             }
-        }, null);
 
-        // wait for sync to complete
-        if (monitorObject != null) {
-            synchronized (monitorObject) {
-                try {
-                    logger.trace("Waiting for ZK client sync complete:  dataPath={}", dataPath);
-                    monitorObject.wait();
-                    logger.trace("ZK client sync completed:  dataPath={}", dataPath);
-                } catch (InterruptedException e) {
-                    logger.warn("Interrupted while waiting for ZK sync():  " + e, e);
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicInteger resultCode = new AtomicInteger(-1);
+            zkClient.sync(dataPath, new VoidCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx) {
+                    resultCode.set(rc);
+                    latch.countDown();
                 }
+            }, null);
+            if (latch.await(timeoutMillis, TimeUnit.MILLISECONDS)
+                    && resultCode.get() == KeeperException.Code.OK.intValue()) {
+                logger.trace("ZK client sync completed:  dataPath={}", dataPath);
+                return true;
             }
+            logger.warn("ZK sync() did not complete:  dataPath={}; resultCode={}; timeoutMillis={}", new Object[] {
+                    dataPath, resultCode.get(), timeoutMillis });
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for ZK sync():  " + e, e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Error during ZK sync():  dataPath=" + dataPath + ":  " + e.getCause(), e.getCause());
+        } catch (TimeoutException e) {
+            logger.warn("Timed out waiting for ZK sync():  dataPath={}; timeoutMillis={}", dataPath, timeoutMillis);
         }
+        return false;
+    }
+
+    /**
+     * Read data for multiple paths: pipelined if zkClient supports async operations, serially otherwise.
+     * 
+     * @param zkClient
+     * @param paths
+     * @param watch
+     * @return map of path to result in iteration order of paths
+     * @throws InterruptedException
+     */
+    public Map<String, PathReadResult> getDataBatch(final ZkClient zkClient, final Collection<String> paths,
+            final boolean watch) throws InterruptedException {
+        if (zkClient instanceof AsyncZkClient) {
+            return ((AsyncZkClient) zkClient).getDataBatch(paths, watch);
+        }
+
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+        for (String path : paths) {
+            try {
+                Stat stat = new Stat();
+                byte[] data = zkClient.getData(path, watch, stat);
+                resultMap.put(path, new PathReadResult(path, stat, data, null));
+            } catch (KeeperException e) {
+                resultMap.put(path, new PathReadResult(path, e));
+            }
+        }
+        return resultMap;
+    }
+
+    /**
+     * Read child lists for multiple paths: pipelined if zkClient supports async operations, serially otherwise.
+     * 
+     * @param zkClient
+     * @param paths
+     * @param watch
+     * @return map of path to result in iteration order of paths
+     * @throws InterruptedException
+     */
+    public Map<String, PathReadResult> getChildrenBatch(final ZkClient zkClient, final Collection<String> paths,
+            final boolean watch) throws InterruptedException {
+        if (zkClient instanceof AsyncZkClient) {
+            return ((AsyncZkClient) zkClient).getChildrenBatch(paths, watch);
+        }
+
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+        for (String path : paths) {
+            try {
+                Stat stat = new Stat();
+                List<String> childList = zkClient.getChildren(path, watch, stat);
+                resultMap.put(path, new PathReadResult(path, stat, null, childList));
+            } catch (KeeperException e) {
+                resultMap.put(path, new PathReadResult(path, e));
+            }
+        }
+        return resultMap;
     }
 
     /**
@@ -145,61 +251,152 @@ public class ZkClientUtil {
             logger.warn("Interrupted in updatePath():  " + e, e);
         }// try/catch
 
-        /***** build path by building parent nodes first *****/
+        /***** build missing parent nodes and leaf in a single transaction *****/
         String[] tokens = pathScheme.tokenizePath(path);
 
-        String pathCreated = "";
-        String pathToCreate = null;
+        List<String> pathsToCreate = new ArrayList<String>(tokens.length);
+        String pathToCreate = "";
         for (int i = 0; i < tokens.length; i++) {
             String token = tokens[i];
             if ("".equals(token)) {
                 // we should never get here, and if we are getting here, log as
                 // error
-                logger.warn("updatePath():  token is empty string!:  path='{}'; i={}; pathCreated='{}'", new Object[] {
-                        path, i, pathCreated });
-
+                logger.warn("updatePath():  token is empty string!:  path='{}'; i={}; pathToCreate='{}'",
+                        new Object[] { path, i, pathToCreate });
             } else {
-                try {
-                    pathToCreate = pathCreated + "/" + token;
+                pathToCreate = pathToCreate + "/" + token;
+                pathsToCreate.add(pathToCreate);
+            }
+        }
+        if (pathsToCreate.size() == 0) {
+            return "";
+        }
+        String leafPath = pathsToCreate.get(pathsToCreate.size() - 1);
 
+        KeeperException lastException = null;
+        int existingDepth = -1;
+        for (int attempt = 0; attempt < MAX_UPDATE_PATH_ATTEMPTS; attempt++) {
+            List<Op> ops = null;
+            try {
+                // default to persistent mode until leaf node, then we use
+                // the preferred create mode of caller
+                if (existingDepth < 0) {
+                    existingDepth = getExistingAncestorDepth(zkClient, pathsToCreate);
+                }
+                ops = new ArrayList<Op>(pathsToCreate.size() - existingDepth);
+                for (int i = existingDepth; i < pathsToCreate.size() - 1; i++) {
+                    ops.add(Op.create(pathsToCreate.get(i), null, aclList, CreateMode.PERSISTENT));
+                }
+                ops.add(Op.create(leafPath, leafData, aclList, createMode));
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Creating nodes in transaction:  leafPath={}; opCount={}", leafPath, ops.size());
+                }
+
+                List<OpResult> results = zkClient.multi(ops);
+                String pathCreated = ((OpResult.CreateResult) results.get(results.size() - 1)).getPath();
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Created path by building parent nodes:  pathCreated={}", pathCreated);
+                }
+                return pathCreated;
+
+            } catch (KeeperException e) {
+                int failedIndex = getFailedOpIndex(e.getResults());
+                if (e.code() == KeeperException.Code.NODEEXISTS && ops != null && failedIndex == ops.size() - 1) {
                     if (logger.isDebugEnabled()) {
-                        logger.debug("Creating node:  pathToCreate={}; token={}", pathToCreate, token);
+                        logger.debug("Path already exists:  path={}", leafPath);
                     }
+                    return leafPath;
 
-                    // default to persistent mode until leaf node, then we use
-                    // the preferred create mode of caller
-                    CreateMode currentCreateMode = CreateMode.PERSISTENT;
-                    byte[] nodeData = null;
-                    if (i == tokens.length - 1) {
-                        currentCreateMode = createMode;
-                        nodeData = leafData;
+                } else if (e.code() == KeeperException.Code.NODEEXISTS || e.code() == KeeperException.Code.NONODE) {
+                    // parent nodes were concurrently created or removed: try again
+                    if (e.code() == KeeperException.Code.NODEEXISTS && failedIndex >= 0) {
+                        // another client's transaction most likely created the whole parent chain, so go straight to
+                        // the leaf; NONODE on that attempt falls back to re-checking
+                        existingDepth = pathsToCreate.size() - 1;
+                    } else {
+                        existingDepth = -1;
                     }
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Concurrent modification while building path:  " + e + ":  path=" + leafPath
+                                + "; attempt=" + attempt);
+                    }
+                    lastException = e;
 
-                    pathCreated = zkClient.create(pathToCreate, nodeData, aclList, currentCreateMode);
-
-                } catch (KeeperException e) {
-                    if (e.code() == KeeperException.Code.NODEEXISTS) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Path already exists:  path={}", pathToCreate);
-                        }
+                } else {
+                    logger.error("Error while building path:  " + e + ":  path=" + leafPath, e);
+                    throw e;
+                }// if
 
-                        pathCreated = pathToCreate;
-                    } else {
-                        logger.error("Error while building path:  " + e + ":  path=" + pathToCreate, e);
-                        throw e;
-                    }// if
-
-                } catch (InterruptedException e) {
-                    logger.error(e + "", e);
-                    logger.warn("Interrupted in updatePath():  " + e, e);
-                }// try/catch
-            }// if
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted in updatePath():  " + e, e);
+                Thread.currentThread().interrupt();
+                return null;
+            }// try/catch
         }// for
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Created path by building parent nodes:  pathCreated={}", pathCreated);
+        logger.error("Error while building path:  " + lastException + ":  path=" + leafPath, lastException);
+        throw lastException;
+
+    }
+
+    /**
+     * @param pathsToCreate
+     *            ancestor paths of the leaf, shallowest first, ending with the leaf itself
+     * @return number of leading paths in pathsToCreate that already exist (leaf is never checked)
+     */
+    int getExistingAncestorDepth(ZkClient zkClient, List<String> pathsToCreate) throws KeeperException,
+            InterruptedException {
+        int ancestorCount = pathsToCreate.size() - 1;
+
+        if (zkClient instanceof AsyncZkClient) {
+            // pipeline the checks: one round trip regardless of depth
+            List<ListenableFuture<Stat>> futures = new ArrayList<ListenableFuture<Stat>>(ancestorCount);
+            for (int i = 0; i < ancestorCount; i++) {
+                futures.add(((AsyncZkClient) zkClient).existsAsync(pathsToCreate.get(i), false));
+            }
+            for (int i = 0; i < ancestorCount; i++) {
+                try {
+                    if (futures.get(i).get() == null) {
+                        return i;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof KeeperException) {
+                        throw (KeeperException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return ancestorCount;
+        }
+
+        // walk up from the leaf's parent until we find a node that exists
+        for (int i = ancestorCount - 1; i >= 0; i--) {
+            if (zkClient.exists(pathsToCreate.get(i), false) != null) {
+                return i + 1;
+            }
         }
-        return pathCreated;
+        return 0;
+    }
 
+    /**
+     * @return index of the operation that caused a multi() to fail; -1 if unknown
+     */
+    static int getFailedOpIndex(List<OpResult> results) {
+        if (results == null) {
+            return -1;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            OpResult result = results.get(i);
+            if (result instanceof OpResult.ErrorResult) {
+                int err = ((OpResult.ErrorResult) result).getErr();
+                if (err != KeeperException.Code.OK.intValue()
+                        && err != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
     }
 }
@@ -0,0 +1,423 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import io.reign.metrics.MetricRegistryManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * Tracks the most frequently read, written and watch-notified paths in bounded memory using the space-saving
+ * algorithm: each kind keeps at most capacity counters; a path not currently tracked takes over the smallest counter,
+ * inheriting its count as possible overestimation (error). Any path accounting for more than 1/capacity of operations
+ * is guaranteed to be tracked.
+ * 
+ * Paths are normalized before counting: sequential node suffixes are replaced with "#" (so that e.g. lock attempts
+ * aggregate under one entry) and paths are truncated to maxDepth levels.
+ * 
+ * @author ypai
+ * 
+ */
+public class HotPathTracker {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public static final int DEFAULT_MAX_DEPTH = 8;
+
+    public static final String DEFAULT_GAUGE_PREFIX = "zk.hot.";
+
+    /** number of hottest paths whose share of operations is reported by the topShare gauges */
+    public static final int DEFAULT_GAUGE_TOP_K = 10;
+
+    /** length of sequence suffix ZooKeeper appends to sequential nodes */
+    private static final int SEQUENCE_SUFFIX_LENGTH = 10;
+
+    public static enum Kind {
+        READ, WRITE, WATCH
+    }
+
+    private final SpaceSaving[] trackers;
+
+    private final int maxDepth;
+
+    private volatile long sinceTimestamp = System.currentTimeMillis();
+
+    public HotPathTracker() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * 
+     * @param capacity
+     *            number of paths tracked per kind
+     * @param maxDepth
+     *            paths are counted under their first maxDepth levels
+     */
+    public HotPathTracker(int capacity, int maxDepth) {
+        this.maxDepth = maxDepth;
+        this.trackers = new SpaceSaving[Kind.values().length];
+        for (int i = 0; i < trackers.length; i++) {
+            trackers[i] = new SpaceSaving(capacity);
+        }
+    }
+
+    public void record(Kind kind, String path) {
+        if (path == null) {
+            return;
+        }
+        trackers[kind.ordinal()].record(normalize(path));
+    }
+
+    /**
+     * 
+     * @param kind
+     * @param k
+     * @return up to k hottest paths, hottest first
+     */
+    public List<HotPath> getTop(Kind kind, int k) {
+        return trackers[kind.ordinal()].getTop(k);
+    }
+
+    /**
+     * 
+     * @param kind
+     * @return number of operations recorded since last reset
+     */
+    public long getTotal(Kind kind) {
+        return trackers[kind.ordinal()].getTotal();
+    }
+
+    /**
+     * 
+     * @return when counting started
+     */
+    public long getSinceTimestamp() {
+        return sinceTimestamp;
+    }
+
+    public void reset() {
+        for (SpaceSaving tracker : trackers) {
+            tracker.clear();
+        }
+        sinceTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * 
+     * @param k
+     * @return top k paths of each kind keyed by lowercase kind name, plus "since" timestamp
+     */
+    public Map<String, Object> getReport(int k) {
+        Map<String, Object> report = new HashMap<String, Object>(8, 1.0f);
+        report.put("since", sinceTimestamp);
+        for (Kind kind : Kind.values()) {
+            report.put(kind.name().toLowerCase(), getTop(kind, k));
+        }
+        return report;
+    }
+
+    /**
+     * Register gauges using DEFAULT_GAUGE_PREFIX and DEFAULT_GAUGE_TOP_K.
+     * 
+     * @see #registerGauges(MetricRegistryManager, String, int)
+     */
+    public void registerGauges(MetricRegistryManager registryManager) {
+        registerGauges(registryManager, DEFAULT_GAUGE_PREFIX, DEFAULT_GAUGE_TOP_K);
+    }
+
+    /**
+     * Register gauges for each kind: [prefix][kind].total (operations since reset) and [prefix][kind].topShare
+     * (fraction of operations going to the k hottest paths, a measure of skew).
+     * 
+     * @param registryManager
+     * @param prefix
+     *            e.g. "zk.hot."
+     * @param k
+     */
+    public void registerGauges(MetricRegistryManager registryManager, String prefix, final int k) {
+        for (final Kind kind : Kind.values()) {
+            String name = prefix + kind.name().toLowerCase();
+            registryManager.gauge(name + ".total", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return getTotal(kind);
+                }
+            });
+            registryManager.gauge(name + ".topShare", new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return getTopShare(kind, k);
+                }
+            });
+        }
+    }
+
+    /**
+     * 
+     * @return fraction of operations of kind that went to the k hottest paths; based on guaranteed counts
+     */
+    public double getTopShare(Kind kind, int k) {
+        long total = getTotal(kind);
+        if (total == 0) {
+            return 0;
+        }
+        long topCount = 0;
+        for (HotPath hotPath : getTop(kind, k)) {
+            topCount += hotPath.getCount() - hotPath.getError();
+        }
+        return (double) topCount / total;
+    }
+
+    String normalize(String path) {
+        // truncate to maxDepth levels
+        int depth = 0;
+        for (int i = 1; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && ++depth == maxDepth) {
+                path = path.substring(0, i);
+                break;
+            }
+        }
+
+        // fold sequential node suffix
+        int lastSlashIndex = path.lastIndexOf('/');
+        if (path.length() - lastSlashIndex - 1 >= SEQUENCE_SUFFIX_LENGTH) {
+            int suffixStart = path.length() - SEQUENCE_SUFFIX_LENGTH;
+            for (int i = suffixStart; i < path.length(); i++) {
+                if (!Character.isDigit(path.charAt(i))) {
+                    return path;
+                }
+            }
+            return path.substring(0, suffixStart) + "#";
+        }
+        return path;
+    }
+
+    /**
+     * Estimated operation count of a path: actual count is between count - error and count.
+     */
+    public static class HotPath {
+        private final String path;
+        private final long count;
+        private final long error;
+
+        public HotPath(String path, long count, long error) {
+            this.path = path;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return path + "=" + count + (error > 0 ? "(-" + error + ")" : "");
+        }
+    }
+
+    /**
+     * Space-saving counters for one kind of operation, kept in a stream-summary: counters with equal counts share a
+     * bucket and buckets are linked in increasing count order, so incrementing a counter and replacing the minimum are
+     * both constant time regardless of capacity.
+     */
+    static class SpaceSaving {
+        private final int capacity;
+        private final Map<String, Counter> counterMap;
+
+        /** bucket with the smallest count; null when empty */
+        private Bucket minBucket;
+
+        /** bucket with the largest count; null when empty */
+        private Bucket maxBucket;
+
+        private long total = 0;
+
+        SpaceSaving(int capacity) {
+            this.capacity = capacity;
+            this.counterMap = new HashMap<String, Counter>(capacity * 2, 0.75f);
+        }
+
+        synchronized void record(String key) {
+            total++;
+
+            Counter counter = counterMap.get(key);
+            if (counter != null) {
+                increment(counter);
+                return;
+            }
+
+            if (counterMap.size() < capacity) {
+                // 1 is the smallest possible count, so its bucket is always first
+                counter = new Counter(key);
+                if (minBucket == null || minBucket.count != 1) {
+                    Bucket bucket = new Bucket(1);
+                    bucket.next = minBucket;
+                    if (minBucket != null) {
+                        minBucket.prev = bucket;
+                    } else {
+                        maxBucket = bucket;
+                    }
+                    minBucket = bucket;
+                }
+                minBucket.add(counter);
+                counterMap.put(key, counter);
+                return;
+            }
+
+            // take over a minimum counter, inheriting its count as error
+            counter = minBucket.first;
+            counterMap.remove(counter.key);
+            counter.key = key;
+            counter.error = minBucket.count;
+            counterMap.put(key, counter);
+            increment(counter);
+        }
+
+        private void increment(Counter counter) {
+            Bucket bucket = counter.bucket;
+            long count = bucket.count + 1;
+            Bucket next = bucket.next;
+            if (next == null || next.count != count) {
+                if (bucket.first == bucket.last) {
+                    // only counter in bucket: bump bucket in place, order is unchanged
+                    bucket.count = count;
+                    return;
+                }
+                next = new Bucket(count);
+                next.prev = bucket;
+                next.next = bucket.next;
+                if (bucket.next != null) {
+                    bucket.next.prev = next;
+                } else {
+                    maxBucket = next;
+                }
+                bucket.next = next;
+            }
+            bucket.remove(counter);
+            next.add(counter);
+            if (bucket.first == null) {
+                unlink(bucket);
+            }
+        }
+
+        private void unlink(Bucket bucket) {
+            if (bucket.prev != null) {
+                bucket.prev.next = bucket.next;
+            } else {
+                minBucket = bucket.next;
+            }
+            if (bucket.next != null) {
+                bucket.next.prev = bucket.prev;
+            } else {
+                maxBucket = bucket.prev;
+            }
+        }
+
+        synchronized List<HotPath> getTop(int k) {
+            List<HotPath> hotPathList = new ArrayList<HotPath>(Math.min(k, counterMap.size()));
+            for (Bucket bucket = maxBucket; bucket != null && hotPathList.size() < k; bucket = bucket.prev) {
+                Counter counter = bucket.first;
+                while (counter != null && hotPathList.size() < k) {
+                    hotPathList.add(new HotPath(counter.key, bucket.count, counter.error));
+                    counter = counter.next;
+                }
+            }
+            return hotPathList;
+        }
+
+        synchronized long getTotal() {
+            return total;
+        }
+
+        synchronized void clear() {
+            counterMap.clear();
+            minBucket = null;
+            maxBucket = null;
+            total = 0;
+        }
+    }
+
+    /**
+     * Counters sharing a count, linked to the buckets with the next smaller and larger counts.
+     */
+    static class Bucket {
+        long count;
+        Bucket prev;
+        Bucket next;
+        Counter first;
+        Counter last;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+
+        void add(Counter counter) {
+            counter.bucket = this;
+            counter.prev = last;
+            counter.next = null;
+            if (last != null) {
+                last.next = counter;
+            } else {
+                first = counter;
+            }
+            last = counter;
+        }
+
+        void remove(Counter counter) {
+            if (counter.prev != null) {
+                counter.prev.next = counter.next;
+            } else {
+                first = counter.next;
+            }
+            if (counter.next != null) {
+                counter.next.prev = counter.prev;
+            } else {
+                last = counter.prev;
+            }
+            counter.prev = null;
+            counter.next = null;
+            counter.bucket = null;
+        }
+    }
+
+    static class Counter {
+        String key;
+        long error;
+        Bucket bucket;
+        Counter prev;
+        Counter next;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+}
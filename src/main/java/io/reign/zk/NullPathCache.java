@@ -1,6 +1,8 @@
 package io.reign.zk;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.zookeeper.data.Stat;
@@ -26,16 +28,40 @@ public class NullPathCache implements PathCache {
         return null;
     }
 
+    @Override
+    public PathCacheEntry peek(String absolutePath) {
+        return null;
+    }
+
+    @Override
+    public Set<String> getPathSet() {
+        return Collections.emptySet();
+    }
+
     @Override
     public PathCacheEntry put(String absolutePath, Stat stat, byte[] bytes, List<String> children) {
         return null;
     }
 
+    @Override
+    public PathCacheEntry putData(String absolutePath, Stat stat, byte[] bytes) {
+        return null;
+    }
+
+    @Override
+    public PathCacheEntry putChildList(String absolutePath, Stat stat, List<String> childList) {
+        return null;
+    }
+
     @Override
     public PathCacheEntry remove(String absolutePath) {
         return null;
     }
 
+    @Override
+    public void clear() {
+    }
+
     @Override
     public PathCacheEntry updateData(String absolutePath, byte[] updatedData) {
         return null;
@@ -0,0 +1,596 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+/**
+ * Path cache that keeps node Stat, data and child lists in direct (off-heap) buffers. Only a compact index of block
+ * references stays on heap, so caching tens of thousands of znodes does not add long-lived objects for the garbage
+ * collector to trace and promote.
+ * 
+ * Off-heap memory is allocated in fixed size segments up to the configured budget and handed out in power-of-two
+ * blocks by a buddy allocator; freed blocks are merged with free neighbors and kept on per-size free lists for reuse.
+ * When no block is available the least recently used entries are evicted. Entries larger than a segment are not
+ * cached.
+ * 
+ * Returned entries are materialized on heap per call, so they are short-lived copies.
+ * 
+ * @author ypai
+ * 
+ */
+public class OffHeapPathCache implements PathCache {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapPathCache.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+    static final int MIN_BLOCK_SIZE_BYTES = 64;
+
+    /** serialized Stat: 6 longs and 5 ints */
+    static final int STAT_BYTES = 6 * 8 + 5 * 4;
+
+    /** max entries to evict to make room for a single allocation before giving up on caching it */
+    private static final int MAX_EVICTIONS_PER_ALLOCATION = 16;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+    private final AtomicLong allocationFailureCount = new AtomicLong(0);
+
+    private final int segmentSizeBytes;
+
+    private final ByteBuffer[] segments;
+
+    private final ConcurrentLinkedHashMap<String, Block> index;
+
+    /** guards segment allocation, bump pointer and free lists */
+    private final Object allocatorLock = new Object();
+
+    private int segmentCount = 0;
+
+    /**
+     * free block references by size class: index i holds blocks of MIN_BLOCK_SIZE_BYTES << i, aligned to their size
+     * within a segment so freed buddies can be merged back together
+     */
+    private final List<TreeSet<Long>> freeLists;
+
+    public OffHeapPathCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SEGMENT_SIZE_BYTES, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * 
+     * @param maxBytes
+     *            off-heap budget
+     * @param segmentSizeBytes
+     *            power of two; also the largest entry that can be cached
+     * @param concurrencyLevel
+     */
+    public OffHeapPathCache(long maxBytes, int segmentSizeBytes, int concurrencyLevel) {
+        if (Integer.bitCount(segmentSizeBytes) != 1 || segmentSizeBytes < MIN_BLOCK_SIZE_BYTES) {
+            throw new IllegalArgumentException("segmentSizeBytes must be a power of two >= " + MIN_BLOCK_SIZE_BYTES
+                    + ":  segmentSizeBytes=" + segmentSizeBytes);
+        }
+        if (maxBytes < segmentSizeBytes) {
+            throw new IllegalArgumentException("maxBytes must be >= segmentSizeBytes:  maxBytes=" + maxBytes
+                    + "; segmentSizeBytes=" + segmentSizeBytes);
+        }
+
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.segments = new ByteBuffer[(int) Math.min(maxBytes / segmentSizeBytes, Integer.MAX_VALUE)];
+
+        int sizeClassCount = Integer.numberOfTrailingZeros(segmentSizeBytes)
+                - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE_BYTES) + 1;
+        this.freeLists = new ArrayList<TreeSet<Long>>(sizeClassCount);
+        for (int i = 0; i < sizeClassCount; i++) {
+            freeLists.add(new TreeSet<Long>());
+        }
+
+        // blocks never overlap, so weighted size cannot exceed the arena; capacity is only a backstop
+        this.index = new ConcurrentLinkedHashMap.Builder<String, Block>()
+                .maximumWeightedCapacity((long) segments.length * segmentSizeBytes)
+                .concurrencyLevel(concurrencyLevel).weigher(new EntryWeigher<String, Block>() {
+                    @Override
+                    public int weightOf(String key, Block value) {
+                        return value.blockSize;
+                    }
+                }).listener(new EvictionListener<String, Block>() {
+                    @Override
+                    public void onEviction(String key, Block value) {
+                        evictionCount.incrementAndGet();
+                        free(value);
+                    }
+                }).build();
+    }
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public void destroy() {
+        clear();
+    }
+
+    @Override
+    public PathCacheEntry get(String absolutePath, int ttlMillis) {
+        Block block = index.get(absolutePath);
+        if (block == null
+                || (ttlMillis > 0 && System.currentTimeMillis() - block.lastUpdatedTimestampMillis > ttlMillis)) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        PathCacheEntry pathCacheEntry = read(block);
+        if (pathCacheEntry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return pathCacheEntry;
+    }
+
+    @Override
+    public PathCacheEntry get(String absolutePath) {
+        return get(absolutePath, -1);
+    }
+
+    @Override
+    public PathCacheEntry peek(String absolutePath) {
+        while (true) {
+            Block block = index.getQuietly(absolutePath);
+            if (block == null) {
+                return null;
+            }
+            PathCacheEntry pathCacheEntry = read(block);
+            if (pathCacheEntry != null) {
+                return pathCacheEntry;
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getPathSet() {
+        return new HashSet<String>(index.keySet());
+    }
+
+    @Override
+    public PathCacheEntry put(String absolutePath, Stat stat, byte[] bytes, List<String> childList) {
+        PathCacheEntry pathCacheEntry = new SimplePathCacheEntry(stat, bytes, childList, true, true,
+                System.currentTimeMillis());
+        Block block = write(pathCacheEntry);
+        if (block == null) {
+            // could not cache: do not leave an older value behind
+            free(index.remove(absolutePath));
+            return null;
+        }
+
+        free(index.put(absolutePath, block));
+        return pathCacheEntry;
+    }
+
+    @Override
+    public PathCacheEntry putData(String absolutePath, Stat stat, byte[] bytes) {
+        return merge(absolutePath, stat, bytes, null, true, false, false);
+    }
+
+    @Override
+    public PathCacheEntry putChildList(String absolutePath, Stat stat, List<String> childList) {
+        return merge(absolutePath, stat, null, childList, false, true, false);
+    }
+
+    @Override
+    public PathCacheEntry updateData(String absolutePath, byte[] updatedData) {
+        return merge(absolutePath, null, updatedData, null, true, false, true);
+    }
+
+    @Override
+    public PathCacheEntry updateChildList(String absolutePath, List<String> updatedChildList) {
+        return merge(absolutePath, null, null, updatedChildList, false, true, true);
+    }
+
+    @Override
+    public PathCacheEntry updateStat(String absolutePath, Stat updatedStat) {
+        return merge(absolutePath, updatedStat, null, null, false, false, true);
+    }
+
+    @Override
+    public PathCacheEntry remove(String absolutePath) {
+        Block removed = index.remove(absolutePath);
+        PathCacheEntry removedPathCacheEntry = removed != null ? read(removed) : null;
+        free(removed);
+        return removedPathCacheEntry;
+    }
+
+    @Override
+    public void clear() {
+        for (String absolutePath : index.keySet()) {
+            free(index.remove(absolutePath));
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * 
+     * @return number of entries that could not be cached because they were too large or no block could be freed
+     */
+    public long getAllocationFailureCount() {
+        return allocationFailureCount.get();
+    }
+
+    /**
+     * 
+     * @return off-heap bytes held by live entries
+     */
+    public long getUsedBytes() {
+        return index.weightedSize();
+    }
+
+    /**
+     * 
+     * @return off-heap bytes allocated so far
+     */
+    public long getAllocatedBytes() {
+        synchronized (allocatorLock) {
+            return (long) segmentCount * segmentSizeBytes;
+        }
+    }
+
+    public int getSize() {
+        return index.size();
+    }
+
+    /**
+     * Combine given parts with what is cached and store as a new block.
+     * 
+     * @param stat
+     *            null to keep current
+     * @param onlyIfPresent
+     *            true to do nothing if there is no current entry
+     */
+    PathCacheEntry merge(String absolutePath, Stat stat, byte[] bytes, List<String> childList, boolean setData,
+            boolean setChildList, boolean onlyIfPresent) {
+        while (true) {
+            Block currentBlock = index.get(absolutePath);
+            PathCacheEntry current = currentBlock != null ? read(currentBlock) : null;
+            if (currentBlock != null && current == null) {
+                // block was recycled under us
+                continue;
+            }
+            if (current == null && (onlyIfPresent || stat == null)) {
+                return null;
+            }
+
+            PathCacheEntry pathCacheEntry;
+            if (current == null) {
+                pathCacheEntry = new SimplePathCacheEntry(stat, bytes, childList, setData, setChildList,
+                        System.currentTimeMillis());
+            } else {
+                pathCacheEntry = new SimplePathCacheEntry(stat != null ? stat : current.getStat(), setData ? bytes
+                        : current.getData(), setChildList ? childList : current.getChildList(), setData
+                        || current.hasData(), setChildList || current.hasChildList(), System.currentTimeMillis());
+            }
+
+            Block block = write(pathCacheEntry);
+            if (block == null) {
+                free(index.remove(absolutePath));
+                return null;
+            }
+
+            if (currentBlock == null) {
+                if (index.putIfAbsent(absolutePath, block) == null) {
+                    return pathCacheEntry;
+                }
+            } else if (index.replace(absolutePath, currentBlock, block)) {
+                free(currentBlock);
+                return pathCacheEntry;
+            }
+
+            // lost race with another writer: try again
+            free(block);
+        }
+    }
+
+    /**
+     * Serialize entry into a newly allocated block.
+     * 
+     * @return block; or null if no block could be allocated
+     */
+    Block write(PathCacheEntry pathCacheEntry) {
+        byte[] data = pathCacheEntry.hasData() ? pathCacheEntry.getData() : null;
+        List<String> childList = pathCacheEntry.hasChildList() ? pathCacheEntry.getChildList() : null;
+
+        int size = STAT_BYTES + 4 + (data != null ? data.length : 0) + 4;
+        byte[][] childBytes = null;
+        if (childList != null) {
+            childBytes = new byte[childList.size()][];
+            for (int i = 0; i < childBytes.length; i++) {
+                childBytes[i] = childList.get(i).getBytes(UTF_8);
+                size += 2 + childBytes[i].length;
+            }
+        }
+
+        Block block = allocate(size, pathCacheEntry.hasData(), pathCacheEntry.hasChildList(),
+                pathCacheEntry.getLastUpdatedTimestampMillis());
+        if (block == null) {
+            allocationFailureCount.incrementAndGet();
+            logger.debug("Could not allocate block for cache entry:  size={}", size);
+            return null;
+        }
+
+        ByteBuffer buf = segments[block.segment].duplicate();
+        buf.position(block.offset);
+
+        Stat stat = pathCacheEntry.getStat();
+        if (stat == null) {
+            stat = new Stat();
+        }
+        buf.putLong(stat.getCzxid());
+        buf.putLong(stat.getMzxid());
+        buf.putLong(stat.getCtime());
+        buf.putLong(stat.getMtime());
+        buf.putInt(stat.getVersion());
+        buf.putInt(stat.getCversion());
+        buf.putInt(stat.getAversion());
+        buf.putLong(stat.getEphemeralOwner());
+        buf.putInt(stat.getDataLength());
+        buf.putInt(stat.getNumChildren());
+        buf.putLong(stat.getPzxid());
+
+        if (data != null) {
+            buf.putInt(data.length);
+            buf.put(data);
+        } else {
+            buf.putInt(-1);
+        }
+
+        if (childBytes != null) {
+            buf.putInt(childBytes.length);
+            for (byte[] child : childBytes) {
+                buf.putShort((short) child.length);
+                buf.put(child);
+            }
+        } else {
+            buf.putInt(-1);
+        }
+
+        return block;
+    }
+
+    /**
+     * 
+     * @return entry copied onto heap; or null if block was freed while reading
+     */
+    PathCacheEntry read(Block block) {
+        try {
+            ByteBuffer buf = segments[block.segment].duplicate();
+            buf.position(block.offset);
+            buf.limit(block.offset + block.blockSize);
+
+            Stat stat = new Stat();
+            stat.setCzxid(buf.getLong());
+            stat.setMzxid(buf.getLong());
+            stat.setCtime(buf.getLong());
+            stat.setMtime(buf.getLong());
+            stat.setVersion(buf.getInt());
+            stat.setCversion(buf.getInt());
+            stat.setAversion(buf.getInt());
+            stat.setEphemeralOwner(buf.getLong());
+            stat.setDataLength(buf.getInt());
+            stat.setNumChildren(buf.getInt());
+            stat.setPzxid(buf.getLong());
+
+            byte[] data = null;
+            int dataLength = buf.getInt();
+            if (dataLength >= 0) {
+                data = new byte[Math.min(dataLength, buf.remaining())];
+                buf.get(data);
+            }
+
+            List<String> childList = null;
+            int childCount = buf.getInt();
+            if (childCount >= 0) {
+                childList = new ArrayList<String>(Math.min(childCount, buf.remaining() / 2));
+                for (int i = 0; i < childCount; i++) {
+                    byte[] child = new byte[Math.min(buf.getShort() & 0xffff, buf.remaining())];
+                    buf.get(child);
+                    childList.add(new String(child, UTF_8));
+                }
+            }
+
+            if (block.freed) {
+                return null;
+            }
+
+            return new SimplePathCacheEntry(stat, data, childList, block.hasData, block.hasChildList,
+                    block.lastUpdatedTimestampMillis);
+
+        } catch (RuntimeException e) {
+            // a recycled block may not parse
+            if (block.freed) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    Block allocate(int size, boolean hasData, boolean hasChildList, long lastUpdatedTimestampMillis) {
+        if (size > segmentSizeBytes || segments.length == 0) {
+            return null;
+        }
+
+        int sizeClass = getSizeClass(size);
+        for (int i = 0; i <= MAX_EVICTIONS_PER_ALLOCATION; i++) {
+            synchronized (allocatorLock) {
+                long ref = allocate(sizeClass);
+                if (ref >= 0) {
+                    return new Block((int) (ref >>> 32), (int) ref, MIN_BLOCK_SIZE_BYTES << sizeClass, hasData,
+                            hasChildList, lastUpdatedTimestampMillis);
+                }
+            }
+
+            // make room: evict least recently used entry
+            String lruPath = null;
+            for (String absolutePath : index.ascendingKeySetWithLimit(1)) {
+                lruPath = absolutePath;
+            }
+            if (lruPath == null) {
+                return null;
+            }
+            Block evicted = index.remove(lruPath);
+            if (evicted != null) {
+                evictionCount.incrementAndGet();
+                free(evicted);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Caller holds allocatorLock.
+     * 
+     * @return block reference (segment in upper 32 bits, offset in lower); or -1 if nothing is available
+     */
+    private long allocate(int sizeClass) {
+        // smallest free block that fits, split down to size
+        for (int i = sizeClass; i < freeLists.size(); i++) {
+            Long ref = freeLists.get(i).pollFirst();
+            if (ref != null) {
+                for (int j = i - 1; j >= sizeClass; j--) {
+                    freeLists.get(j).add(ref + (MIN_BLOCK_SIZE_BYTES << j));
+                }
+                return ref;
+            }
+        }
+
+        // new segment
+        if (segmentCount < segments.length) {
+            segments[segmentCount] = ByteBuffer.allocateDirect(segmentSizeBytes);
+            segmentCount++;
+
+            logger.debug("Allocated off-heap segment:  segmentCount={}; segmentSizeBytes={}", segmentCount,
+                    segmentSizeBytes);
+
+            long ref = toRef(segmentCount - 1, 0);
+            for (int j = freeLists.size() - 2; j >= sizeClass; j--) {
+                freeLists.get(j).add(ref + (MIN_BLOCK_SIZE_BYTES << j));
+            }
+            return ref;
+        }
+
+        return -1;
+    }
+
+    void free(Block block) {
+        if (block == null) {
+            return;
+        }
+        synchronized (allocatorLock) {
+            if (block.freed) {
+                return;
+            }
+            block.freed = true;
+
+            // coalesce with free buddies
+            int sizeClass = getSizeClass(block.blockSize);
+            int offset = block.offset;
+            while (sizeClass < freeLists.size() - 1) {
+                long buddyRef = toRef(block.segment, offset ^ (MIN_BLOCK_SIZE_BYTES << sizeClass));
+                if (!freeLists.get(sizeClass).remove(buddyRef)) {
+                    break;
+                }
+                offset &= ~(MIN_BLOCK_SIZE_BYTES << sizeClass);
+                sizeClass++;
+            }
+            freeLists.get(sizeClass).add(toRef(block.segment, offset));
+        }
+    }
+
+    static int getSizeClass(int size) {
+        int sizeClass = 0;
+        while ((MIN_BLOCK_SIZE_BYTES << sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    static long toRef(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    /**
+     * On-heap index entry: location of serialized entry.
+     * 
+     * @author ypai
+     * 
+     */
+    static class Block {
+        final int segment;
+        final int offset;
+        final int blockSize;
+        final boolean hasData;
+        final boolean hasChildList;
+        final long lastUpdatedTimestampMillis;
+
+        /** set when block is returned to free list; guarded by allocatorLock for writes */
+        volatile boolean freed = false;
+
+        Block(int segment, int offset, int blockSize, boolean hasData, boolean hasChildList,
+                long lastUpdatedTimestampMillis) {
+            this.segment = segment;
+            this.offset = offset;
+            this.blockSize = blockSize;
+            this.hasData = hasData;
+            this.hasChildList = hasChildList;
+            this.lastUpdatedTimestampMillis = lastUpdatedTimestampMillis;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package io.reign.zk;
 
 import java.util.List;
+import java.util.Set;
 
 import org.apache.zookeeper.data.Stat;
 
@@ -67,6 +68,20 @@ public interface PathCache {
     // */
     // public PathCacheEntry get(String absolutePath, int ttlMillis, int updateThresholdMillis);
 
+    /**
+     * Get without counting a hit or miss or affecting eviction order.
+     * 
+     * @param absolutePath
+     * @return
+     */
+    public PathCacheEntry peek(String absolutePath);
+
+    /**
+     * 
+     * @return copy of paths currently cached
+     */
+    public Set<String> getPathSet();
+
     /**
      * 
      * @param absolutePath
@@ -76,6 +91,26 @@ public interface PathCache {
      */
     public PathCacheEntry put(String absolutePath, Stat stat, byte[] bytes, List<String> childList);
 
+    /**
+     * Cache node data, keeping child list if already cached.
+     * 
+     * @param absolutePath
+     * @param stat
+     * @param bytes
+     * @return the updated cache entry
+     */
+    public PathCacheEntry putData(String absolutePath, Stat stat, byte[] bytes);
+
+    /**
+     * Cache node child list, keeping data if already cached.
+     * 
+     * @param absolutePath
+     * @param stat
+     * @param childList
+     * @return the updated cache entry
+     */
+    public PathCacheEntry putChildList(String absolutePath, Stat stat, List<String> childList);
+
     /**
      * Update only if path exists in cache.
      * 
@@ -101,12 +136,18 @@ public interface PathCache {
     public PathCacheEntry updateStat(String absolutePath, Stat updatedStat);
 
     /**
+     * Removes only the entry for absolutePath; callers invalidate the parent themselves when its child list changed.
      * 
      * @param absolutePath
      * @return the cache entry removed
      */
     public PathCacheEntry remove(String absolutePath);
 
+    /**
+     * Remove all entries.
+     */
+    public void clear();
+
     public long getHitCount();
 
     public long getMissCount();
@@ -12,4 +12,14 @@ public interface PathCacheEntry {
     public byte[] getData();
 
     public List<String> getChildList();
+
+    /**
+     * @return true if getData() holds node data; false if only the child list has been cached
+     */
+    public boolean hasData();
+
+    /**
+     * @return true if getChildList() holds node children; false if only data has been cached
+     */
+    public boolean hasChildList();
 }
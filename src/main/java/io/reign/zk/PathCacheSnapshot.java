@@ -0,0 +1,261 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves path cache contents to a local file and loads them back, so a restarting process can start with a warm cache
+ * instead of every node re-reading the same trees from ZooKeeper at once.
+ * 
+ * Snapshots are written to a temporary file and renamed into place so a crash mid-write never leaves a truncated
+ * snapshot behind; loading maps the file read-only. Loaded entries carry the Stat they were saved with and must be
+ * revalidated against ZooKeeper before use.
+ * 
+ * @author ypai
+ * 
+ */
+public class PathCacheSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(PathCacheSnapshot.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x52474e53;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte FLAG_HAS_DATA = 1;
+    private static final byte FLAG_HAS_CHILD_LIST = 2;
+
+    private final File file;
+
+    public PathCacheSnapshot(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 
+     * @param pathCache
+     * @return number of entries written
+     * @throws IOException
+     */
+    public synchronized int save(PathCache pathCache) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        File parent = tmpFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory:  " + parent);
+        }
+
+        int count = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            for (String absolutePath : pathCache.getPathSet()) {
+                PathCacheEntry pathCacheEntry = pathCache.peek(absolutePath);
+                if (pathCacheEntry == null || pathCacheEntry.getStat() == null) {
+                    continue;
+                }
+
+                byte[] pathBytes = absolutePath.getBytes(UTF_8);
+                out.writeInt(pathBytes.length);
+                out.write(pathBytes);
+
+                out.writeByte((pathCacheEntry.hasData() ? FLAG_HAS_DATA : 0)
+                        | (pathCacheEntry.hasChildList() ? FLAG_HAS_CHILD_LIST : 0));
+
+                writeStat(out, pathCacheEntry.getStat());
+
+                byte[] data = pathCacheEntry.getData();
+                if (data != null) {
+                    out.writeInt(data.length);
+                    out.write(data);
+                } else {
+                    out.writeInt(-1);
+                }
+
+                List<String> childList = pathCacheEntry.getChildList();
+                if (childList != null) {
+                    out.writeInt(childList.size());
+                    for (String child : childList) {
+                        byte[] childBytes = child.getBytes(UTF_8);
+                        out.writeInt(childBytes.length);
+                        out.write(childBytes);
+                    }
+                } else {
+                    out.writeInt(-1);
+                }
+
+                count++;
+            }
+
+            // end marker
+            out.writeInt(-1);
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace snapshot file:  " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename snapshot file:  " + tmpFile + " -> " + file);
+        }
+
+        logger.debug("Saved path cache snapshot:  file={}; entries={}", file, count);
+
+        return count;
+    }
+
+    /**
+     * 
+     * @param pathCache
+     * @return paths loaded into cache; empty if there is no usable snapshot
+     * @throws IOException
+     */
+    public synchronized List<String> load(PathCache pathCache) throws IOException {
+        List<String> loadedPathList = new ArrayList<String>();
+        if (!file.exists()) {
+            return loadedPathList;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                logger.warn("Ignoring unrecognized path cache snapshot:  file={}", file);
+                return loadedPathList;
+            }
+
+            int pathLength;
+            while ((pathLength = buf.getInt()) >= 0) {
+                String absolutePath = readString(buf, pathLength);
+
+                byte flags = buf.get();
+                Stat stat = readStat(buf);
+
+                byte[] data = null;
+                int dataLength = buf.getInt();
+                if (dataLength >= 0) {
+                    data = new byte[checkRemaining(buf, dataLength)];
+                    buf.get(data);
+                }
+
+                List<String> childList = null;
+                int childCount = buf.getInt();
+                if (childCount >= 0) {
+                    childList = new ArrayList<String>(Math.min(childCount, buf.remaining() / 4));
+                    for (int i = 0; i < childCount; i++) {
+                        childList.add(readString(buf, buf.getInt()));
+                    }
+                }
+
+                boolean hasData = (flags & FLAG_HAS_DATA) != 0;
+                boolean hasChildList = (flags & FLAG_HAS_CHILD_LIST) != 0;
+                if (hasData && hasChildList) {
+                    pathCache.put(absolutePath, stat, data, childList);
+                } else if (hasData) {
+                    pathCache.putData(absolutePath, stat, data);
+                } else if (hasChildList) {
+                    pathCache.putChildList(absolutePath, stat, childList);
+                } else {
+                    continue;
+                }
+                loadedPathList.add(absolutePath);
+            }
+
+        } catch (BufferUnderflowException e) {
+            // keep what was read: entries are revalidated before use anyway
+            logger.warn("Truncated path cache snapshot:  file={}; loaded={}", file, loadedPathList.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        logger.debug("Loaded path cache snapshot:  file={}; entries={}", file, loadedPathList.size());
+
+        return loadedPathList;
+    }
+
+    static void writeStat(DataOutputStream out, Stat stat) throws IOException {
+        out.writeLong(stat.getCzxid());
+        out.writeLong(stat.getMzxid());
+        out.writeLong(stat.getCtime());
+        out.writeLong(stat.getMtime());
+        out.writeInt(stat.getVersion());
+        out.writeInt(stat.getCversion());
+        out.writeInt(stat.getAversion());
+        out.writeLong(stat.getEphemeralOwner());
+        out.writeInt(stat.getDataLength());
+        out.writeInt(stat.getNumChildren());
+        out.writeLong(stat.getPzxid());
+    }
+
+    static Stat readStat(MappedByteBuffer buf) {
+        Stat stat = new Stat();
+        stat.setCzxid(buf.getLong());
+        stat.setMzxid(buf.getLong());
+        stat.setCtime(buf.getLong());
+        stat.setMtime(buf.getLong());
+        stat.setVersion(buf.getInt());
+        stat.setCversion(buf.getInt());
+        stat.setAversion(buf.getInt());
+        stat.setEphemeralOwner(buf.getLong());
+        stat.setDataLength(buf.getInt());
+        stat.setNumChildren(buf.getInt());
+        stat.setPzxid(buf.getLong());
+        return stat;
+    }
+
+    static String readString(MappedByteBuffer buf, int length) {
+        byte[] bytes = new byte[checkRemaining(buf, length)];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Guard against allocating for a corrupt length.
+     */
+    static int checkRemaining(MappedByteBuffer buf, int length) {
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+}
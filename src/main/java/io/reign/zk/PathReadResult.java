@@ -0,0 +1,91 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import java.util.List;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Result of reading a single path as part of a bulk read: either the data/child list and Stat of the node, or the
+ * error encountered reading it.
+ * 
+ * @author ypai
+ * 
+ */
+public class PathReadResult {
+
+    private final String path;
+    private final Stat stat;
+    private final byte[] data;
+    private final List<String> childList;
+    private final KeeperException error;
+
+    public PathReadResult(String path, Stat stat, byte[] data, List<String> childList) {
+        this.path = path;
+        this.stat = stat;
+        this.data = data;
+        this.childList = childList;
+        this.error = null;
+    }
+
+    public PathReadResult(String path, KeeperException error) {
+        this.path = path;
+        this.stat = null;
+        this.data = null;
+        this.childList = null;
+        this.error = error;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Stat getStat() {
+        return stat;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public List<String> getChildList() {
+        return childList;
+    }
+
+    /**
+     * 
+     * @return error encountered reading path; or null if read was successful
+     */
+    public KeeperException getError() {
+        return error;
+    }
+
+    public boolean isOk() {
+        return error == null;
+    }
+
+    /**
+     * 
+     * @return true if the read failed because the node does not exist
+     */
+    public boolean isNoNode() {
+        return error != null && error.code() == KeeperException.Code.NONODE;
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Shares one in-flight ZooKeeper read among all threads concurrently requesting the same read (same operation, path
+ * and watch flag): the first caller performs the read, callers arriving while it is outstanding wait for and receive a
+ * copy of its result.
+ * 
+ * To keep a session's read-your-writes ordering, a caller only joins a read that was issued after the most recent
+ * write through the same client completed; otherwise it performs its own read.
+ * 
+ * @author ypai
+ * 
+ */
+public class ReadCoalescer {
+
+    private final ConcurrentMap<String, Flight<?>> flightMap = new ConcurrentHashMap<String, Flight<?>>(64, 0.9f, 4);
+
+    /** incremented whenever a write completes */
+    private final AtomicLong writeSequence = new AtomicLong(0);
+
+    private final AtomicLong issuedCount = new AtomicLong(0);
+
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    /**
+     * 
+     * @param operation
+     *            name of read operation, e.g. "getData"
+     * @param path
+     * @param watch
+     * @param stat
+     *            if not null, populated with node Stat
+     * @param read
+     * @return
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public <T> T read(String operation, String path, boolean watch, Stat stat, CoalescedRead<T> read)
+            throws KeeperException, InterruptedException {
+        String key = operation + (watch ? ":w:" : ":-:") + path;
+        long currentWriteSequence = writeSequence.get();
+
+        Flight<T> flight = new Flight<T>(currentWriteSequence);
+        while (true) {
+            Flight<T> existing = (Flight<T>) flightMap.putIfAbsent(key, flight);
+            if (existing == null) {
+                break;
+            }
+            if (existing.writeSequence == currentWriteSequence) {
+                T result = existing.await();
+                if (existing.completed) {
+                    coalescedCount.incrementAndGet();
+                    if (stat != null && existing.stat != null) {
+                        ResilientZkClient.copyStat(existing.stat, stat);
+                    }
+                    return read.copy(result);
+                }
+                // leader was interrupted: try again
+                continue;
+            }
+
+            // issued before our last write completed: do not wait on it, read on our own
+            issuedCount.incrementAndGet();
+            return read.read(stat);
+        }
+
+        // we are the leader
+        issuedCount.incrementAndGet();
+        Stat flightStat = new Stat();
+        try {
+            T result = read.read(flightStat);
+            flight.complete(result, flightStat, null);
+            if (stat != null) {
+                ResilientZkClient.copyStat(flightStat, stat);
+            }
+            return result;
+        } catch (KeeperException e) {
+            flight.complete(null, null, e);
+            throw e;
+        } catch (RuntimeException e) {
+            flight.complete(null, null, e);
+            throw e;
+        } finally {
+            flightMap.remove(key, flight);
+            // release followers if leader did not complete (interrupted)
+            flight.latch.countDown();
+        }
+    }
+
+    /**
+     * Called after each write through the client completes (successfully or not).
+     */
+    public void writeCompleted() {
+        writeSequence.incrementAndGet();
+    }
+
+    /**
+     * 
+     * @return number of reads sent to ZooKeeper
+     */
+    public long getIssuedCount() {
+        return issuedCount.get();
+    }
+
+    /**
+     * 
+     * @return number of reads served by joining another caller's in-flight read
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * A read that can be shared: read() performs it, copy() gives each waiting caller its own result instance.
+     * 
+     * @author ypai
+     * 
+     * @param <T>
+     */
+    public static abstract class CoalescedRead<T> {
+        public abstract T read(Stat stat) throws KeeperException, InterruptedException;
+
+        public abstract T copy(T result);
+    }
+
+    private static class Flight<T> {
+        private final long writeSequence;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile boolean completed = false;
+        private T result;
+        private Stat stat;
+        private Exception error;
+
+        Flight(long writeSequence) {
+            this.writeSequence = writeSequence;
+        }
+
+        void complete(T result, Stat stat, Exception error) {
+            this.result = result;
+            this.stat = stat;
+            this.error = error;
+            this.completed = true;
+            latch.countDown();
+        }
+
+        T await() throws KeeperException, InterruptedException {
+            latch.await();
+            if (error instanceof KeeperException) {
+                throw (KeeperException) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return result;
+        }
+    }
+}
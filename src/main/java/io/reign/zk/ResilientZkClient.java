@@ -16,14 +16,30 @@
 
 package io.reign.zk;
 
+import io.reign.AsyncZkClient;
 import io.reign.ZkClient;
+import io.reign.metrics.MetricRegistryManager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
@@ -37,14 +53,24 @@ import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Replacement for the ZooKeeper class that offers retry and re-connects when there are session failures.
  * 
@@ -53,7 +79,7 @@ import org.slf4j.LoggerFactory;
  * @author ypai
  * 
  */
-public class ResilientZkClient implements ZkClient, Watcher {
+public class ResilientZkClient implements ZkClient, AsyncZkClient, Watcher {
 
     private static final Logger logger = LoggerFactory.getLogger(ResilientZkClient.class);
 
@@ -69,13 +95,11 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     // private volatile boolean connected = false;
 
-    /** Map of String path to Set of unique Watcher(s): used to track child watches */
-    private final ConcurrentMap<String, Set<Watcher>> childWatchesMap = new ConcurrentHashMap<String, Set<Watcher>>(
-            256, 0.9f, 2);
+    /** path to unique Watcher(s): used to track child watches */
+    private final WatchRegistry childWatches = new WatchRegistry();
 
-    /** Map of String path to Set of unique Watcher(s): used to track data watches */
-    private final ConcurrentMap<String, Set<Watcher>> dataWatchesMap = new ConcurrentHashMap<String, Set<Watcher>>(256,
-            0.9f, 2);
+    /** path to unique Watcher(s): used to track data watches */
+    private final WatchRegistry dataWatches = new WatchRegistry();
 
     private final Set<Watcher> watcherSet = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>(32, 0.9f,
             1));
@@ -86,13 +110,73 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     private static long ASSUME_ERROR_TIMEOUT_MS = 60000;
 
+    /**
+     * default operation timeout as a multiple of the session timeout: a session cannot survive a disconnection longer
+     * than its timeout, so waiting longer only stalls the caller
+     */
+    public static final int DEFAULT_OPERATION_TIMEOUT_SESSION_MULTIPLE = 1;
+
+    /** how long an operation waits for a usable connection before failing; < 0 to wait indefinitely */
+    private volatile long operationTimeoutMillis;
+
+    /** true while a reconnect is scheduled or running */
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+
+    /** runs reconnects off the ZooKeeper event thread and caller threads; created on first use */
+    private volatile ExecutorService reconnectExecutorService;
+
     /** when true, we do not attempt reconnect on failure */
     private volatile boolean shutdown = false;
 
+    public static final int DEFAULT_WATCH_RESTORE_PRIORITY = 50;
+
+    /** max watch restore requests outstanding at once */
+    private static final int MAX_WATCH_RESTORES_IN_FLIGHT = 500;
+
+    private static final int WATCH_RESTORE_PROGRESS_INTERVAL = 1000;
+
+    /** path prefix to restore priority */
+    private final Map<String, Integer> watchRestorePriorityMap = new ConcurrentHashMap<String, Integer>(8, 0.9f, 1);
+
+    /** incremented on each restore so a restore still running for an older session stops */
+    private final AtomicInteger watchRestoreGeneration = new AtomicInteger(0);
+
+    private volatile boolean watchRestoreInProgress = false;
+    private volatile int watchRestorePathCount = 0;
+    private final AtomicInteger watchRestoreCompletedCount = new AtomicInteger(0);
+    private final AtomicInteger watchRestoreFailedCount = new AtomicInteger(0);
+
+    /** shares concurrent identical reads */
+    private final ReadCoalescer readCoalescer = new ReadCoalescer();
+
+    /** shares concurrent syncs on the same path */
+    private final SyncCoalescer syncCoalescer = new SyncCoalescer() {
+        @Override
+        protected ListenableFuture<Void> issue(String path) {
+            return doSyncAsync(path);
+        }
+    };
+
+    private final ZkClientMetrics zkClientMetrics = new ZkClientMetrics();
+
+    /** counts operations per path when set */
+    private volatile HotPathTracker hotPathTracker;
+
+    /** throttles operations when set */
+    private volatile ZkRateLimiter rateLimiter;
+
+    /** re-submits async operations that failed with a session error; created on first use */
+    private volatile ScheduledExecutorService asyncRetryExecutorService;
+
+    /** async operations submitted while not connected; re-submitted on SyncConnected */
+    private final Queue<AsyncZooKeeperAction<?>> connectionWaitQueue =
+            new ConcurrentLinkedQueue<AsyncZooKeeperAction<?>>();
+
     public ResilientZkClient(String connectString, int sessionTimeoutMillis, long sessionId, byte[] sessionPassword)
             throws IOException {
         this.connectString = connectString;
         this.sessionTimeoutMillis = sessionTimeoutMillis;
+        this.operationTimeoutMillis = (long) sessionTimeoutMillis * DEFAULT_OPERATION_TIMEOUT_SESSION_MULTIPLE;
         this.currentSessionId = sessionId;
         this.sessionPassword = sessionPassword;
         this.zooKeeper = new ZooKeeper(connectString, sessionTimeoutMillis, this, sessionId, sessionPassword);
@@ -101,9 +185,134 @@ public class ResilientZkClient implements ZkClient, Watcher {
     public ResilientZkClient(String connectString, int sessionTimeoutMillis) throws IOException {
         this.connectString = connectString;
         this.sessionTimeoutMillis = sessionTimeoutMillis;
+        this.operationTimeoutMillis = (long) sessionTimeoutMillis * DEFAULT_OPERATION_TIMEOUT_SESSION_MULTIPLE;
         this.zooKeeper = new ZooKeeper(connectString, sessionTimeoutMillis, this);
     }
 
+    public ReadCoalescer getReadCoalescer() {
+        return readCoalescer;
+    }
+
+    public SyncCoalescer getSyncCoalescer() {
+        return syncCoalescer;
+    }
+
+    public ZkClientMetrics getZkClientMetrics() {
+        return zkClientMetrics;
+    }
+
+    /**
+     * Record per-operation latency, outcome and retry metrics (see ZkClientMetrics) into metricRegistryManager, which
+     * can then be exported with MetricsService.scheduleExport().
+     * 
+     * @param metricRegistryManager
+     *            null to stop recording
+     */
+    public void setMetricRegistryManager(MetricRegistryManager metricRegistryManager) {
+        zkClientMetrics.setMetricRegistryManager(metricRegistryManager);
+    }
+
+    public HotPathTracker getHotPathTracker() {
+        return hotPathTracker;
+    }
+
+    /**
+     * Count reads, writes and watch notifications per path to find the paths generating most load.
+     * 
+     * @param hotPathTracker
+     *            null to stop counting
+     */
+    public void setHotPathTracker(HotPathTracker hotPathTracker) {
+        this.hotPathTracker = hotPathTracker;
+    }
+
+    void recordHotPath(HotPathTracker.Kind kind, String path) {
+        HotPathTracker tracker = hotPathTracker;
+        if (tracker != null) {
+            tracker.record(kind, path);
+        }
+    }
+
+    public ZkRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limit the rate of operations sent to ZooKeeper. Blocking and future-returning operations are throttled;
+     * callback-style operations are not.
+     * 
+     * @param rateLimiter
+     *            null for no limit
+     */
+    public void setRateLimiter(ZkRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    void throttle(ZkRateLimiter.OpType opType, String path) throws KeeperException, InterruptedException {
+        ZkRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire(opType, path);
+        }
+    }
+
+    /**
+     * Submit an asynchronous operation once the rate limiter admits it. A throttled operation gets the same bounded
+     * wait as a blocking one, but waits by re-trying admission on the async retry thread so the caller is never
+     * blocked; the returned future fails with OperationTimeoutException if the operation is shed.
+     * 
+     * @param opType
+     * @param path
+     * @param submitter
+     *            submits the operation once admitted
+     */
+    <T> ListenableFuture<T> submitThrottled(ZkRateLimiter.OpType opType, String path,
+            AsyncFunction<Void, T> submitter) {
+        ZkRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            long startMillis = System.currentTimeMillis();
+            long retryMillis;
+            try {
+                retryMillis = limiter.admit(opType, path, startMillis, false);
+            } catch (KeeperException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            if (retryMillis > 0) {
+                SettableFuture<Void> admission = SettableFuture.create();
+                scheduleAdmission(limiter, opType, path, startMillis, retryMillis, admission);
+                return Futures.transform(admission, submitter);
+            }
+        }
+        try {
+            return submitter.apply(null);
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    void scheduleAdmission(final ZkRateLimiter limiter, final ZkRateLimiter.OpType opType, final String path,
+            final long startMillis, long retryMillis, final SettableFuture<Void> admission) {
+        try {
+            getAsyncRetryExecutorService().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long nextRetryMillis = limiter.admit(opType, path, startMillis, true);
+                        if (nextRetryMillis == 0) {
+                            admission.set(null);
+                        } else {
+                            scheduleAdmission(limiter, opType, path, startMillis, nextRetryMillis, admission);
+                        }
+                    } catch (KeeperException e) {
+                        admission.setException(e);
+                    }
+                }
+            }, retryMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // executor shut down
+            admission.setException(e);
+        }
+    }
+
     public BackoffStrategyFactory getBackoffStrategyFactory() {
         return backoffStrategyFactory;
     }
@@ -112,6 +321,21 @@ public class ResilientZkClient implements ZkClient, Watcher {
         this.backoffStrategyFactory = backoffStrategyFactory;
     }
 
+    public long getOperationTimeoutMillis() {
+        return operationTimeoutMillis;
+    }
+
+    /**
+     * 
+     * @param operationTimeoutMillis
+     *            how long an operation waits for a usable connection (across retries) before failing with a
+     *            ConnectionLossException; 0 to fail fast; < 0 to wait indefinitely. Defaults to the session
+     *            timeout times DEFAULT_OPERATION_TIMEOUT_SESSION_MULTIPLE.
+     */
+    public void setOperationTimeoutMillis(long operationTimeoutMillis) {
+        this.operationTimeoutMillis = operationTimeoutMillis;
+    }
+
     public int getSessionTimeout() {
         return sessionTimeoutMillis;
     }
@@ -140,15 +364,26 @@ public class ResilientZkClient implements ZkClient, Watcher {
      * @param watcher
      */
     void trackDataWatch(String path, Watcher watcher) {
-        Set<Watcher> watcherSet = dataWatchesMap.get(path);
-        if (watcherSet == null) {
-            Set<Watcher> newWatcherSet = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>(4, 0.9f, 1));
-            watcherSet = dataWatchesMap.putIfAbsent(path, newWatcherSet);
-            if (watcherSet == null) {
-                watcherSet = newWatcherSet;
-            }
-        }
-        watcherSet.add(watcher);
+        dataWatches.add(path, watcher);
+    }
+
+    /**
+     * Stop restoring the default data watch on path after reconnect: the watch may still fire in this session.
+     * 
+     * @param path
+     * @return true if a watch was tracked
+     */
+    boolean untrackDataWatch(String path) {
+        return dataWatches.remove(path, this);
+    }
+
+    /**
+     * 
+     * @param path
+     * @return true if the default data watch on path is restored after reconnect
+     */
+    boolean isDataWatchTracked(String path) {
+        return dataWatches.get(path).contains(this);
     }
 
     /**
@@ -158,50 +393,252 @@ public class ResilientZkClient implements ZkClient, Watcher {
      * @param watcher
      */
     void trackChildWatch(String path, Watcher watcher) {
-        Set<Watcher> watcherSet = childWatchesMap.get(path);
-        if (watcherSet == null) {
-            Set<Watcher> newWatcherSet = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>(4, 0.9f, 1));
-            watcherSet = childWatchesMap.putIfAbsent(path, newWatcherSet);
-            if (watcherSet == null) {
-                watcherSet = newWatcherSet;
+        childWatches.add(path, watcher);
+    }
+
+    /**
+     * Stop tracking data and child watches on path and paths below it: they will not be restored after session loss.
+     * Watches already registered with ZooKeeper remain until they fire.
+     * 
+     * @param path
+     * @return number of tracked watches removed
+     */
+    public int untrackWatches(String path) {
+        return dataWatches.removeSubtree(path) + childWatches.removeSubtree(path);
+    }
+
+    /**
+     * 
+     * @param path
+     * @return paths at or below path with tracked data watches
+     */
+    public List<String> getDataWatchPaths(String path) {
+        return dataWatches.getPaths(path);
+    }
+
+    /**
+     * 
+     * @param path
+     * @return paths at or below path with tracked child watches
+     */
+    public List<String> getChildWatchPaths(String path) {
+        return childWatches.getPaths(path);
+    }
+
+    /**
+     * Set restore priority for watches under a path prefix: after a new session is established, watches are restored
+     * in ascending priority order. Paths not matching any prefix get DEFAULT_WATCH_RESTORE_PRIORITY.
+     * 
+     * @param pathPrefix
+     * @param priority
+     */
+    public void setWatchRestorePriority(String pathPrefix, int priority) {
+        watchRestorePriorityMap.put(pathPrefix, priority);
+    }
+
+    int getWatchRestorePriority(String path) {
+        int priority = DEFAULT_WATCH_RESTORE_PRIORITY;
+        int matchedPrefixLength = -1;
+        for (Map.Entry<String, Integer> entry : watchRestorePriorityMap.entrySet()) {
+            // longest matching prefix wins
+            String pathPrefix = entry.getKey();
+            if (path.startsWith(pathPrefix) && pathPrefix.length() > matchedPrefixLength) {
+                priority = entry.getValue();
+                matchedPrefixLength = pathPrefix.length();
             }
         }
-        watcherSet.add(watcher);
+        return priority;
+    }
+
+    int getWatchRestoreGeneration() {
+        return watchRestoreGeneration.get();
+    }
+
+    public boolean isWatchRestoreInProgress() {
+        return watchRestoreInProgress;
+    }
+
+    /**
+     * 
+     * @return number of watched paths in current (or last) restore
+     */
+    public int getWatchRestorePathCount() {
+        return watchRestorePathCount;
+    }
+
+    /**
+     * 
+     * @return number of watched paths restored so far in current (or last) restore
+     */
+    public int getWatchRestoreCompletedCount() {
+        return watchRestoreCompletedCount.get();
+    }
+
+    /**
+     * 
+     * @return number of watched paths that could not be restored in current (or last) restore
+     */
+    public int getWatchRestoreFailedCount() {
+        return watchRestoreFailedCount.get();
     }
 
     /**
-     * Re-establish any existing ZooKeeper watchers after reconnection.
+     * Re-establish any existing ZooKeeper watchers after reconnection. Runs in its own thread so the ZooKeeper event
+     * thread is not held up; requests are pipelined, one per watched path, in priority order.
      */
     void restoreWatches() {
-        for (String path : dataWatchesMap.keySet()) {
-            logger.info("Restoring data watch(s):  path={}", path);
-            for (Watcher watcher : dataWatchesMap.get(path)) {
-                try {
-                    this.exists(path, watcher);
-                } catch (KeeperException e) {
-                    if (e.code() != Code.NONODE) {
-                        logger.warn("Error while restoring watch:  " + e + ":  path=" + path, e);
+        final int generation = watchRestoreGeneration.incrementAndGet();
+        Thread restoreThread = new Thread() {
+            @Override
+            public void run() {
+                restoreWatches(generation);
+            }
+        };
+        restoreThread.setName(this.getClass().getSimpleName() + ".watchRestore-" + generation);
+        restoreThread.setDaemon(true);
+        restoreThread.start();
+    }
+
+    void restoreWatches(int generation) {
+        List<WatchRestore> restoreList = new ArrayList<WatchRestore>(dataWatches.size() + childWatches.size());
+        for (String path : dataWatches.getPaths()) {
+            restoreList.add(new WatchRestore(path, true, getWatchRestorePriority(path)));
+        }
+        for (String path : childWatches.getPaths()) {
+            restoreList.add(new WatchRestore(path, false, getWatchRestorePriority(path)));
+        }
+        Collections.sort(restoreList);
+
+        watchRestoreInProgress = true;
+        watchRestorePathCount = restoreList.size();
+        watchRestoreCompletedCount.set(0);
+        watchRestoreFailedCount.set(0);
+
+        logger.info("Restoring watches:  paths={}; generation={}", restoreList.size(), generation);
+
+        long startTimestamp = System.currentTimeMillis();
+        Semaphore inFlightPermits = new Semaphore(MAX_WATCH_RESTORES_IN_FLIGHT);
+        try {
+            for (WatchRestore watchRestore : restoreList) {
+                if (shutdown || generation != watchRestoreGeneration.get()) {
+                    // newer session is restoring its own watches
+                    logger.info("Abandoning watch restore:  generation={}; restored={}/{}", new Object[] {
+                            generation, watchRestoreCompletedCount.get(), restoreList.size() });
+                    return;
+                }
+                inFlightPermits.acquire();
+                restoreWatch(watchRestore, inFlightPermits);
+            }
+
+            // wait for outstanding requests
+            inFlightPermits.acquire(MAX_WATCH_RESTORES_IN_FLIGHT);
+
+            logger.info("Restored watches:  paths={}; restored={}; failed={}; elapsedMillis={}", new Object[] {
+                    restoreList.size(), watchRestoreCompletedCount.get(), watchRestoreFailedCount.get(),
+                    System.currentTimeMillis() - startTimestamp });
+
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while restoring watches:  " + e, e);
+        } finally {
+            if (generation == watchRestoreGeneration.get()) {
+                watchRestoreInProgress = false;
+            }
+        }
+    }
+
+    /**
+     * Issue one request for the path: watches tracked for this client use the default watcher (as the original read
+     * did); any other Watchers share one WatchDispatcher. Requests bypass the rate limiter.
+     */
+    void restoreWatch(final WatchRestore watchRestore, final Semaphore inFlightPermits) {
+        final String path = watchRestore.path;
+        Set<Watcher> otherWatcherSet = (watchRestore.data ? dataWatches : childWatches).get(path);
+
+        List<ListenableFuture<?>> futureList = new ArrayList<ListenableFuture<?>>(2);
+        if (otherWatcherSet.size() > 0) {
+            if (otherWatcherSet.remove(this)) {
+                // restore traffic is not throttled: a shed restore would leave the watch unset for the session
+                futureList.add(watchRestore.data ? doExistsAsync(path, true) : doGetChildrenAsync(path, true, null));
+            }
+            if (otherWatcherSet.size() > 0) {
+                WatchDispatcher watchDispatcher = new WatchDispatcher(path, watchRestore.data, otherWatcherSet);
+                futureList.add(watchRestore.data ? existsAsync(path, watchDispatcher) : getChildrenAsync(path,
+                        watchDispatcher));
+            }
+        }
+
+        Futures.addCallback(Futures.allAsList(futureList), new FutureCallback<List<Object>>() {
+            @Override
+            public void onSuccess(List<Object> result) {
+                done(true);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("Error while restoring watch:  " + t + ":  path=" + path, t);
+                done(false);
+            }
+
+            void done(boolean success) {
+                int completed = success ? watchRestoreCompletedCount.incrementAndGet() : watchRestoreCompletedCount
+                        .get();
+                if (!success) {
+                    watchRestoreFailedCount.incrementAndGet();
+                }
+                if (success && completed % WATCH_RESTORE_PROGRESS_INTERVAL == 0) {
+                    logger.info("Restoring watches:  restored={}/{}", completed, watchRestorePathCount);
+                }
+                inFlightPermits.release();
+            }
+        });
+    }
+
+    /**
+     * exists() with a Watcher, as a future.
+     */
+    ListenableFuture<Stat> existsAsync(final String path, final Watcher watcher) {
+        AsyncZooKeeperAction<Stat> zkAction = new AsyncZooKeeperAction<Stat>("existsAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.exists(path, watcher, new StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        if (rc == Code.NONODE.intValue()) {
+                            complete(Code.OK.intValue(), path, null);
+                        } else {
+                            complete(rc, path, stat);
+                        }
                     }
-                } catch (Exception e) {
-                    logger.warn("Error while restoring watch:  " + e + ":  path=" + path, e);
-                } // try
-            }// for
-        }// for
-
-        for (String path : childWatchesMap.keySet()) {
-            logger.info("Restoring child watch(s):  path={}", path);
-            for (Watcher watcher : childWatchesMap.get(path)) {
-                try {
-                    this.getChildren(path, watcher);
-                } catch (KeeperException e) {
-                    if (e.code() != Code.NONODE) {
-                        logger.warn("Error while restoring watch:  " + e + ":  path=" + path, e);
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    /**
+     * getChildren() with a Watcher, as a future.
+     */
+    ListenableFuture<List<String>> getChildrenAsync(final String path, final Watcher watcher) {
+        AsyncZooKeeperAction<List<String>> zkAction = new AsyncZooKeeperAction<List<String>>("getChildrenAsync", 
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.getChildren(path, watcher, new ChildrenCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, List<String> children) {
+                        if (rc == Code.NONODE.intValue()) {
+                            complete(Code.OK.intValue(), path, Collections.EMPTY_LIST);
+                        } else {
+                            complete(rc, path, children);
+                        }
                     }
-                } catch (Exception e) {
-                    logger.warn("Error while restoring watch:  " + e + ":  path=" + path, e);
-                } // try
-            }// for
-        }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
     }
 
     @Override
@@ -226,10 +663,23 @@ public class ResilientZkClient implements ZkClient, Watcher {
             }// try
         }// if
 
+        AsyncZooKeeperAction<?> waitingAction;
+        while ((waitingAction = connectionWaitQueue.poll()) != null) {
+            waitingAction.fail(new KeeperException.SessionExpiredException());
+        }
+        if (this.asyncRetryExecutorService != null) {
+            this.asyncRetryExecutorService.shutdownNow();
+        }
+        syncCoalescer.close();
+        if (this.reconnectExecutorService != null) {
+            this.reconnectExecutorService.shutdownNow();
+        }
+
     }
 
     public void create(final String path, final byte[] data, final List<ACL> acl, final CreateMode createMode,
             final StringCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
 
         VoidZooKeeperAction zkAction = new VoidZooKeeperAction(backoffStrategyFactory.get()) {
             @Override
@@ -250,6 +700,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void delete(final String path, final int version, final VoidCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
 
         VoidZooKeeperAction zkAction = new VoidZooKeeperAction(backoffStrategyFactory.get()) {
             @Override
@@ -269,6 +720,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void exists(final String path, final boolean watch, final StatCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
         if (watch) {
             trackDataWatch(path, this);
         }
@@ -292,6 +744,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void exists(final String path, final Watcher watcher, final StatCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
         if (watcher != null) {
             trackDataWatch(path, watcher);
         }
@@ -335,7 +788,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     public List<ACL> getACL(final String path, final Stat stat) throws KeeperException, InterruptedException {
 
-        ZooKeeperAction<List<ACL>> zkAction = new ZooKeeperAction<List<ACL>>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<List<ACL>> zkAction = new ZooKeeperAction<List<ACL>>("getACL", backoffStrategyFactory.get()) {
             @Override
             public List<ACL> doPerform() throws KeeperException, InterruptedException {
                 return zooKeeper.getACL(path, stat);
@@ -347,6 +800,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void getChildren(final String path, final boolean watch, final Children2Callback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
         if (watch) {
             trackChildWatch(path, this);
         }
@@ -370,6 +824,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void getChildren(final String path, final boolean watch, final ChildrenCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
 
         if (watch) {
             trackChildWatch(path, this);
@@ -396,30 +851,43 @@ public class ResilientZkClient implements ZkClient, Watcher {
     @Override
     public List<String> getChildren(final String path, final boolean watch, final Stat stat) throws KeeperException,
             InterruptedException {
+        try {
+            return getExistingChildren(path, watch, stat);
+        } catch (KeeperException.NoNodeException e) {
+            return Collections.EMPTY_LIST;
+        }
+    }
+
+    /**
+     * Like getChildren(), but throws NoNodeException instead of returning an empty list if path does not exist.
+     */
+    List<String> getExistingChildren(final String path, final boolean watch, final Stat stat) throws KeeperException,
+            InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watch) {
             trackChildWatch(path, this);
         }
 
-        ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>(backoffStrategyFactory.get()) {
+        return readCoalescer.read("getChildren2", path, watch, stat, new ChildListRead() {
             @Override
-            public List<String> doPerform() throws KeeperException, InterruptedException {
-                try {
-                    return zooKeeper.getChildren(path, watch, stat);
-                } catch (KeeperException e) {
-                    if (e.code() != Code.NONODE) {
-                        throw e;
+            public List<String> read(final Stat readStat) throws KeeperException, InterruptedException {
+                ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>("getChildren",
+                        backoffStrategyFactory.get()) {
+                    @Override
+                    public List<String> doPerform() throws KeeperException, InterruptedException {
+                        return zooKeeper.getChildren(path, watch, readStat);
                     }
-                    return Collections.EMPTY_LIST;
-                }
+                };
 
+                return zkAction.perform();
             }
-        };
-
-        return zkAction.perform();
+        });
     }
 
     public void getChildren(final String path, final Watcher watcher, final Children2Callback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
         if (watcher != null) {
             trackChildWatch(path, watcher);
         }
@@ -443,6 +911,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void getChildren(final String path, final Watcher watcher, final ChildrenCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
         if (watcher != null) {
             trackChildWatch(path, watcher);
         }
@@ -467,12 +936,15 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     public List<String> getChildren(final String path, final Watcher watcher, final Stat stat) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watcher != null) {
             trackChildWatch(path, watcher);
         }
 
-        ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>("getChildren",
+                backoffStrategyFactory.get()) {
             @Override
             public List<String> doPerform() throws KeeperException, InterruptedException {
                 try {
@@ -492,12 +964,15 @@ public class ResilientZkClient implements ZkClient, Watcher {
     @Override
     public List<String> getChildren(final String path, final Watcher watcher) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watcher != null) {
             trackChildWatch(path, watcher);
         }
 
-        ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>("getChildren",
+                backoffStrategyFactory.get()) {
             @Override
             public List<String> doPerform() throws KeeperException, InterruptedException {
                 try {
@@ -516,6 +991,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void getData(final String path, final boolean watch, final DataCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
 
         if (watch) {
             trackDataWatch(path, this);
@@ -540,6 +1016,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
     }
 
     public void getData(final String path, final Watcher watcher, final DataCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
 
         if (watcher != null) {
             trackDataWatch(path, watcher);
@@ -565,12 +1042,14 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     public byte[] getData(final String path, final Watcher watcher, final Stat stat) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watcher != null) {
             trackDataWatch(path, watcher);
         }
 
-        ZooKeeperAction<byte[]> zkAction = new ZooKeeperAction<byte[]>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<byte[]> zkAction = new ZooKeeperAction<byte[]>("getData", backoffStrategyFactory.get()) {
             @Override
             public byte[] doPerform() throws KeeperException, InterruptedException {
                 return zooKeeper.getData(path, watcher, stat);
@@ -598,6 +1077,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     public void setACL(final String path, final List<ACL> acl, final int version, final StatCallback cb,
             final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
 
         VoidZooKeeperAction zkAction = new VoidZooKeeperAction(backoffStrategyFactory.get()) {
             @Override
@@ -619,8 +1099,10 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     public Stat setACL(final String path, final List<ACL> acl, final int version) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        throttle(ZkRateLimiter.OpType.WRITE, path);
 
-        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>("setACL", backoffStrategyFactory.get()) {
             @Override
             public Stat doPerform() throws KeeperException, InterruptedException {
                 return zooKeeper.setACL(path, acl, version);
@@ -640,6 +1122,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
      * @param ctx
      */
     public void setData(final String path, final byte[] data, final int version, final StatCallback cb, final Object ctx) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
         VoidZooKeeperAction zkAction = new VoidZooKeeperAction(backoffStrategyFactory.get()) {
             @Override
             public void doPerform() throws KeeperException, InterruptedException {
@@ -708,8 +1191,10 @@ public class ResilientZkClient implements ZkClient, Watcher {
     @Override
     public String create(final String path, final byte[] data, final List<ACL> acl, final CreateMode createMode)
             throws KeeperException, InterruptedException {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        throttle(ZkRateLimiter.OpType.CREATE, path);
 
-        ZooKeeperAction<String> zkAction = new ZooKeeperAction<String>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<String> zkAction = new ZooKeeperAction<String>("create", backoffStrategyFactory.get()) {
 
             @Override
             public String doPerform() throws KeeperException, InterruptedException {
@@ -719,7 +1204,12 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
         };
 
-        String pathCreated = zkAction.perform();
+        String pathCreated;
+        try {
+            pathCreated = zkAction.perform();
+        } finally {
+            readCoalescer.writeCompleted();
+        }
 
         if (logger.isDebugEnabled()) {
             logger.debug("create():  Path created:  pathCreated={}", pathCreated);
@@ -729,6 +1219,47 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     }
 
+    @Override
+    public List<OpResult> multi(final Iterable<Op> ops) throws InterruptedException, KeeperException {
+        if (hotPathTracker != null) {
+            for (Op op : ops) {
+                recordHotPath(HotPathTracker.Kind.WRITE, op.getPath());
+            }
+        }
+        if (rateLimiter != null) {
+            for (Op op : ops) {
+                throttle(op.getType() == ZooDefs.OpCode.create ? ZkRateLimiter.OpType.CREATE
+                        : op.getType() == ZooDefs.OpCode.check ? ZkRateLimiter.OpType.READ
+                                : ZkRateLimiter.OpType.WRITE, op.getPath());
+            }
+        }
+
+        ZooKeeperAction<List<OpResult>> zkAction = new ZooKeeperAction<List<OpResult>>("multi",
+                backoffStrategyFactory.get()) {
+
+            @Override
+            public List<OpResult> doPerform() throws KeeperException, InterruptedException {
+                return zooKeeper.multi(ops);
+
+            }
+
+        };
+
+        List<OpResult> results;
+        try {
+            results = zkAction.perform();
+        } finally {
+            readCoalescer.writeCompleted();
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("multi():  Transaction committed:  opCount={}", results.size());
+        }
+
+        return results;
+
+    }
+
     /**
      * 
      * @return
@@ -770,19 +1301,31 @@ public class ResilientZkClient implements ZkClient, Watcher {
      */
     @Override
     public Stat exists(final String path, final boolean watch) throws KeeperException, InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watch) {
             trackDataWatch(path, this);
         }
 
-        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>(backoffStrategyFactory.get()) {
+        return readCoalescer.read("exists", path, watch, null, new ReadCoalescer.CoalescedRead<Stat>() {
             @Override
-            public Stat doPerform() throws KeeperException, InterruptedException {
-                return zooKeeper.exists(path, watch);
+            public Stat read(Stat readStat) throws KeeperException, InterruptedException {
+                ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>("exists", backoffStrategyFactory.get()) {
+                    @Override
+                    public Stat doPerform() throws KeeperException, InterruptedException {
+                        return zooKeeper.exists(path, watch);
+                    }
+
+                };
+                return zkAction.perform();
             }
 
-        };
-        return zkAction.perform();
+            @Override
+            public Stat copy(Stat result) {
+                return result != null ? copyStat(result, new Stat()) : null;
+            }
+        });
 
     }
 
@@ -797,27 +1340,35 @@ public class ResilientZkClient implements ZkClient, Watcher {
     @Override
     public List<String> getChildren(final String path, final boolean watch) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watch) {
             trackChildWatch(path, this);
         }
 
-        ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>(backoffStrategyFactory.get()) {
-
+        return readCoalescer.read("getChildren", path, watch, null, new ChildListRead() {
             @Override
-            public List<String> doPerform() throws KeeperException, InterruptedException {
-                try {
-                    return zooKeeper.getChildren(path, watch);
-                } catch (KeeperException e) {
-                    if (e.code() != Code.NONODE) {
-                        throw e;
+            public List<String> read(Stat readStat) throws KeeperException, InterruptedException {
+                ZooKeeperAction<List<String>> zkAction = new ZooKeeperAction<List<String>>("getChildren",
+                        backoffStrategyFactory.get()) {
+
+                    @Override
+                    public List<String> doPerform() throws KeeperException, InterruptedException {
+                        try {
+                            return zooKeeper.getChildren(path, watch);
+                        } catch (KeeperException e) {
+                            if (e.code() != Code.NONODE) {
+                                throw e;
+                            }
+                            return Collections.EMPTY_LIST;
+                        }
                     }
-                    return Collections.EMPTY_LIST;
-                }
-            }
 
-        };
-        return zkAction.perform();
+                };
+                return zkAction.perform();
+            }
+        });
 
     }
 
@@ -830,8 +1381,10 @@ public class ResilientZkClient implements ZkClient, Watcher {
      */
     @Override
     public void delete(final String path, final int version) throws InterruptedException, KeeperException {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        throttle(ZkRateLimiter.OpType.WRITE, path);
 
-        VoidZooKeeperAction zkAction = new VoidZooKeeperAction(backoffStrategyFactory.get()) {
+        VoidZooKeeperAction zkAction = new VoidZooKeeperAction("delete", backoffStrategyFactory.get()) {
 
             @Override
             public void doPerform() throws KeeperException, InterruptedException {
@@ -845,7 +1398,11 @@ public class ResilientZkClient implements ZkClient, Watcher {
             }
 
         };
-        zkAction.perform();
+        try {
+            zkAction.perform();
+        } finally {
+            readCoalescer.writeCompleted();
+        }
 
     }
 
@@ -861,8 +1418,10 @@ public class ResilientZkClient implements ZkClient, Watcher {
     @Override
     public Stat setData(final String path, final byte[] data, final int version) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        throttle(ZkRateLimiter.OpType.WRITE, path);
 
-        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>("setData", backoffStrategyFactory.get()) {
 
             @Override
             public Stat doPerform() throws KeeperException, InterruptedException {
@@ -871,7 +1430,11 @@ public class ResilientZkClient implements ZkClient, Watcher {
             }
 
         };
-        return zkAction.perform();
+        try {
+            return zkAction.perform();
+        } finally {
+            readCoalescer.writeCompleted();
+        }
 
     }
 
@@ -887,21 +1450,34 @@ public class ResilientZkClient implements ZkClient, Watcher {
     @Override
     public byte[] getData(final String path, final boolean watch, final Stat stat) throws KeeperException,
             InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watch) {
             trackDataWatch(path, this);
         }
 
-        ZooKeeperAction<byte[]> zkAction = new ZooKeeperAction<byte[]>(backoffStrategyFactory.get()) {
-
+        return readCoalescer.read("getData", path, watch, stat, new ReadCoalescer.CoalescedRead<byte[]>() {
             @Override
-            public byte[] doPerform() throws KeeperException, InterruptedException {
-                byte[] data = zooKeeper.getData(path, watch, stat);
-                return data;
+            public byte[] read(final Stat readStat) throws KeeperException, InterruptedException {
+                ZooKeeperAction<byte[]> zkAction = new ZooKeeperAction<byte[]>("getData",
+                        backoffStrategyFactory.get()) {
+
+                    @Override
+                    public byte[] doPerform() throws KeeperException, InterruptedException {
+                        byte[] data = zooKeeper.getData(path, watch, readStat);
+                        return data;
+                    }
+
+                };
+                return zkAction.perform();
             }
 
-        };
-        return zkAction.perform();
+            @Override
+            public byte[] copy(byte[] result) {
+                return result != null ? result.clone() : null;
+            }
+        });
 
     }
 
@@ -915,12 +1491,14 @@ public class ResilientZkClient implements ZkClient, Watcher {
      */
     @Override
     public Stat exists(final String path, final Watcher watcher) throws KeeperException, InterruptedException {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        throttle(ZkRateLimiter.OpType.READ, path);
 
         if (watcher != null) {
             trackDataWatch(path, watcher);
         }
 
-        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>(backoffStrategyFactory.get()) {
+        ZooKeeperAction<Stat> zkAction = new ZooKeeperAction<Stat>("exists", backoffStrategyFactory.get()) {
 
             @Override
             public Stat doPerform() throws KeeperException, InterruptedException {
@@ -933,37 +1511,429 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
     }
 
-    synchronized void spawnReconnectThread() {
-        if (zooKeeper == null || zooKeeper.getState() == ZooKeeper.States.CLOSED) {
-            // do connection in another thread so as to not block the ZK event thread
-            Thread reconnectThread = new Thread() {
+    @Override
+    public ListenableFuture<Stat> existsAsync(final String path, final boolean watch) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        return submitThrottled(ZkRateLimiter.OpType.READ, path, new AsyncFunction<Void, Stat>() {
+            @Override
+            public ListenableFuture<Stat> apply(Void input) {
+                if (watch) {
+                    trackDataWatch(path, ResilientZkClient.this);
+                }
+                return doExistsAsync(path, watch);
+            }
+        });
+    }
+
+    /**
+     * existsAsync() without throttling or watch tracking: for restoring watches already tracked.
+     */
+    ListenableFuture<Stat> doExistsAsync(final String path, final boolean watch) {
+        AsyncZooKeeperAction<Stat> zkAction = new AsyncZooKeeperAction<Stat>("existsAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.exists(path, watch, new StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        if (rc == Code.NONODE.intValue()) {
+                            complete(Code.OK.intValue(), path, null);
+                        } else {
+                            complete(rc, path, stat);
+                        }
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    @Override
+    public ListenableFuture<byte[]> getDataAsync(final String path, final boolean watch, final Stat stat) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        return submitThrottled(ZkRateLimiter.OpType.READ, path, new AsyncFunction<Void, byte[]>() {
+            @Override
+            public ListenableFuture<byte[]> apply(Void input) {
+                if (watch) {
+                    trackDataWatch(path, ResilientZkClient.this);
+                }
+                return doGetDataAsync(path, watch, stat);
+            }
+        });
+    }
+
+    ListenableFuture<byte[]> doGetDataAsync(final String path, final boolean watch, final Stat stat) {
+        AsyncZooKeeperAction<byte[]> zkAction = new AsyncZooKeeperAction<byte[]>("getDataAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.getData(path, watch, new DataCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, byte[] data, Stat resultStat) {
+                        if (stat != null && resultStat != null) {
+                            copyStat(resultStat, stat);
+                        }
+                        complete(rc, path, data);
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    @Override
+    public ListenableFuture<List<String>> getChildrenAsync(final String path, final boolean watch, final Stat stat) {
+        recordHotPath(HotPathTracker.Kind.READ, path);
+        return submitThrottled(ZkRateLimiter.OpType.READ, path, new AsyncFunction<Void, List<String>>() {
+            @Override
+            public ListenableFuture<List<String>> apply(Void input) {
+                if (watch) {
+                    trackChildWatch(path, ResilientZkClient.this);
+                }
+                return doGetChildrenAsync(path, watch, stat);
+            }
+        });
+    }
+
+    /**
+     * getChildrenAsync() without throttling or watch tracking: for restoring watches already tracked.
+     */
+    ListenableFuture<List<String>> doGetChildrenAsync(final String path, final boolean watch, final Stat stat) {
+        AsyncZooKeeperAction<List<String>> zkAction = new AsyncZooKeeperAction<List<String>>("getChildrenAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.getChildren(path, watch, new Children2Callback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, List<String> children, Stat resultStat) {
+                        if (rc == Code.NONODE.intValue()) {
+                            // same as blocking getChildren()
+                            complete(Code.OK.intValue(), path, Collections.EMPTY_LIST);
+                            return;
+                        }
+                        if (stat != null && resultStat != null) {
+                            copyStat(resultStat, stat);
+                        }
+                        complete(rc, path, children);
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    @Override
+    public ListenableFuture<String> createAsync(final String path, final byte[] data, final List<ACL> acl,
+            final CreateMode createMode) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        return submitThrottled(ZkRateLimiter.OpType.CREATE, path, new AsyncFunction<Void, String>() {
+            @Override
+            public ListenableFuture<String> apply(Void input) {
+                return doCreateAsync(path, data, acl, createMode);
+            }
+        });
+    }
+
+    ListenableFuture<String> doCreateAsync(final String path, final byte[] data, final List<ACL> acl,
+            final CreateMode createMode) {
+        AsyncZooKeeperAction<String> zkAction = new AsyncZooKeeperAction<String>("createAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.create(path, data, acl, createMode, new StringCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, String name) {
+                        readCoalescer.writeCompleted();
+                        complete(rc, path, name);
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    @Override
+    public ListenableFuture<Stat> setDataAsync(final String path, final byte[] data, final int version) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        return submitThrottled(ZkRateLimiter.OpType.WRITE, path, new AsyncFunction<Void, Stat>() {
+            @Override
+            public ListenableFuture<Stat> apply(Void input) {
+                return doSetDataAsync(path, data, version);
+            }
+        });
+    }
+
+    ListenableFuture<Stat> doSetDataAsync(final String path, final byte[] data, final int version) {
+        AsyncZooKeeperAction<Stat> zkAction = new AsyncZooKeeperAction<Stat>("setDataAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.setData(path, data, version, new StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        readCoalescer.writeCompleted();
+                        complete(rc, path, stat);
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAsync(final String path, final int version) {
+        recordHotPath(HotPathTracker.Kind.WRITE, path);
+        return submitThrottled(ZkRateLimiter.OpType.WRITE, path, new AsyncFunction<Void, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Void input) {
+                return doDeleteAsync(path, version);
+            }
+        });
+    }
+
+    ListenableFuture<Void> doDeleteAsync(final String path, final int version) {
+        AsyncZooKeeperAction<Void> zkAction = new AsyncZooKeeperAction<Void>("deleteAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.delete(path, version, new VoidCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx) {
+                        readCoalescer.writeCompleted();
+                        if (rc == Code.NONODE.intValue()) {
+                            // same as blocking delete()
+                            rc = Code.OK.intValue();
+                        }
+                        complete(rc, path, null);
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    /**
+     * Concurrent syncs on the same path are coalesced (see SyncCoalescer).
+     */
+    @Override
+    public ListenableFuture<Void> syncAsync(final String path) {
+        return syncCoalescer.sync(path);
+    }
+
+    @Override
+    public ListenableFuture<Void> syncAsync(final String path, final long maxAgeMillis) {
+        return syncCoalescer.sync(path, maxAgeMillis);
+    }
+
+    ListenableFuture<Void> doSyncAsync(final String path) {
+        AsyncZooKeeperAction<Void> zkAction = new AsyncZooKeeperAction<Void>("syncAsync",
+                backoffStrategyFactory.get()) {
+            @Override
+            public void doSubmit() {
+                zooKeeper.sync(path, new VoidCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx) {
+                        complete(rc, path, null);
+                    }
+                }, null);
+            }
+        };
+
+        return zkAction.submit();
+    }
+
+    @Override
+    public Map<String, PathReadResult> getDataBatch(final Collection<String> paths, final boolean watch)
+            throws InterruptedException {
+        List<Stat> statList = new ArrayList<Stat>(paths.size());
+        List<ListenableFuture<byte[]>> futureList = new ArrayList<ListenableFuture<byte[]>>(paths.size());
+        for (String path : paths) {
+            Stat stat = new Stat();
+            statList.add(stat);
+            futureList.add(getDataAsync(path, watch, stat));
+        }
+
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+        int i = 0;
+        for (String path : paths) {
+            try {
+                byte[] data = futureList.get(i).get();
+                resultMap.put(path, new PathReadResult(path, statList.get(i), data, null));
+            } catch (ExecutionException e) {
+                resultMap.put(path, new PathReadResult(path, toKeeperException(e, path)));
+            }
+            i++;
+        }
+
+        return resultMap;
+    }
+
+    @Override
+    public Map<String, PathReadResult> getChildrenBatch(final Collection<String> paths, final boolean watch)
+            throws InterruptedException {
+        List<Stat> statList = new ArrayList<Stat>(paths.size());
+        List<ListenableFuture<List<String>>> futureList = new ArrayList<ListenableFuture<List<String>>>(paths.size());
+        for (String path : paths) {
+            Stat stat = new Stat();
+            statList.add(stat);
+            futureList.add(getChildrenAsync(path, watch, stat));
+        }
+
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+        int i = 0;
+        for (String path : paths) {
+            try {
+                List<String> childList = futureList.get(i).get();
+                resultMap.put(path, new PathReadResult(path, statList.get(i), null, childList));
+            } catch (ExecutionException e) {
+                resultMap.put(path, new PathReadResult(path, toKeeperException(e, path)));
+            }
+            i++;
+        }
+
+        return resultMap;
+    }
+
+    /**
+     * Coalesced child list read: waiting callers get their own list instance.
+     */
+    abstract static class ChildListRead extends ReadCoalescer.CoalescedRead<List<String>> {
+        @Override
+        public List<String> copy(List<String> result) {
+            return result != null ? new ArrayList<String>(result) : null;
+        }
+    }
+
+    static KeeperException toKeeperException(ExecutionException e, String path) {
+        if (e.getCause() instanceof KeeperException) {
+            return (KeeperException) e.getCause();
+        }
+        logger.warn("Unexpected error in async operation:  path=" + path + ":  " + e.getCause(), e.getCause());
+        return KeeperException.create(Code.SYSTEMERROR, path);
+    }
+
+    /**
+     * Copy data from src to target and return target.
+     * 
+     * @param src
+     * @param target
+     * @return
+     */
+    static Stat copyStat(Stat src, Stat target) {
+        target.setAversion(src.getAversion());
+        target.setCtime(src.getCtime());
+        target.setCversion(src.getCversion());
+        target.setCzxid(src.getCzxid());
+        target.setDataLength(src.getDataLength());
+        target.setEphemeralOwner(src.getEphemeralOwner());
+        target.setMtime(src.getMtime());
+        target.setMzxid(src.getMzxid());
+        target.setNumChildren(src.getNumChildren());
+        target.setPzxid(src.getPzxid());
+        target.setVersion(src.getVersion());
+
+        return target;
+    }
+
+    ScheduledExecutorService getAsyncRetryExecutorService() {
+        if (asyncRetryExecutorService == null) {
+            synchronized (this) {
+                if (asyncRetryExecutorService == null) {
+                    asyncRetryExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                            .setNameFormat(this.getClass().getSimpleName() + ".asyncRetry-%d").setDaemon(true)
+                            .build());
+                }
+            }
+        }
+        return asyncRetryExecutorService;
+    }
+
+    /**
+     * Re-submit async operations that were waiting for a connection, on the async retry thread.
+     */
+    void resubmitWaitingActions() {
+        if (connectionWaitQueue.isEmpty()) {
+            return;
+        }
+        try {
+            getAsyncRetryExecutorService().execute(new Runnable() {
                 @Override
                 public void run() {
-                    connect(backoffStrategyFactory.get(), true);
+                    AsyncZooKeeperAction<?> zkAction;
+                    while (isConnected() && (zkAction = connectionWaitQueue.poll()) != null) {
+                        zkAction.submit();
+                    }
                 }
-            };
-            reconnectThread.setName(this.getClass().getSimpleName() + ".zkConnectThread-"
-                    + reconnectThread.hashCode());
-            reconnectThread.setPriority(Thread.MIN_PRIORITY);
-            reconnectThread.run();
+            });
+        } catch (RuntimeException e) {
+            // executor shut down: close() fails waiting actions
+            logger.debug("Could not re-submit waiting async operations:  " + e, e);
         }
     }
 
     /**
-     * 
+     * Start reconnecting on the reconnect thread, unless a reconnect is already under way. Never blocks the caller, so
+     * it is safe to call from the ZooKeeper event thread.
      */
-    synchronized void connect(BackoffStrategy backoffStrategy, boolean force) {
+    void spawnReconnectThread() {
+        if (shutdown || !requiresExplicitZkReconnect() || !reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            getReconnectExecutorService().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connect(backoffStrategyFactory.get(), true);
+                    } finally {
+                        reconnecting.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+            reconnecting.set(false);
+            logger.debug("Could not schedule reconnect:  " + e, e);
+        }
+    }
+
+    ExecutorService getReconnectExecutorService() {
+        if (reconnectExecutorService == null) {
+            synchronized (this) {
+                if (reconnectExecutorService == null) {
+                    reconnectExecutorService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                            .setNameFormat(this.getClass().getSimpleName() + ".zkConnectThread-%d").setDaemon(true)
+                            .setPriority(Thread.MIN_PRIORITY).build());
+                }
+            }
+        }
+        return reconnectExecutorService;
+    }
+
+    /**
+     * Runs on the reconnect thread: (re-)create the ZooKeeper session, backing off between failed attempts. The client
+     * monitor is only held while waiting, which releases it.
+     */
+    void connect(BackoffStrategy backoffStrategy, boolean force) {
         /**
          * explicitly close current connection and attempt reconnect
          **/
         if (force) {
-            if (this.zooKeeper != null) {
+            ZooKeeper oldZooKeeper = this.zooKeeper;
+            if (oldZooKeeper != null) {
                 try {
                     if (logger.isInfoEnabled()) {
                         logger.info("Closing ZooKeeper session:  currentSessionId={}; connectString={}",
                                 currentSessionId, getConnectString());
                     }
-                    this.zooKeeper.close();
+                    oldZooKeeper.close();
                 } catch (Exception e) {
                     logger.warn("Error closing ZooKeeper client before attempting reconnect:  " + e, e);
                 }
@@ -974,20 +1944,6 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
         /** attempt reconnection if necessary **/
         while (requiresExplicitZkReconnect() && !this.shutdown) {
-            // close existing ZK connection if necessary
-            // if (this.zooKeeper != null) {
-            // try {
-            // if (logger.isInfoEnabled()) {
-            // logger.info("Closing ZooKeeper session:  currentSessionId={}; connectString={}",
-            // currentSessionId, getConnectString());
-            // }
-            //
-            // this.zooKeeper.close();
-            // } catch (InterruptedException e) {
-            // logger.warn("Sleep interrupted while closing existing ZooKeeper session:  " + e, e);
-            // } // try
-            // }
-
             // reconnect to ZK
             try {
                 if (logger.isInfoEnabled()) {
@@ -1001,8 +1957,14 @@ public class ResilientZkClient implements ZkClient, Watcher {
                             sessionPassword);
                 }
 
+                // wait for SyncConnected (notifyAll() in process()) before deciding whether to try again
+                long waitUntil = System.currentTimeMillis() + ASSUME_ERROR_TIMEOUT_MS + 10000;
                 synchronized (this) {
-                    this.wait(ASSUME_ERROR_TIMEOUT_MS + 10000);
+                    long remaining;
+                    while (!this.shutdown && !isConnected()
+                            && (remaining = waitUntil - System.currentTimeMillis()) > 0) {
+                        this.wait(remaining);
+                    }
                 }
 
             } catch (Exception e) {
@@ -1033,6 +1995,10 @@ public class ResilientZkClient implements ZkClient, Watcher {
 
         }
 
+        if (event.getType() != Event.EventType.None) {
+            recordHotPath(HotPathTracker.Kind.WATCH, event.getPath());
+        }
+
         /***** pass notifications on to registered Watchers *****/
         // if (event.getType() != EventType.None) {
         if (shutdown) {
@@ -1049,12 +2015,12 @@ public class ResilientZkClient implements ZkClient, Watcher {
         /***** process events *****/
         switch (event.getType()) {
         case NodeChildrenChanged:
-            this.childWatchesMap.remove(event.getPath());
+            this.childWatches.removeAll(event.getPath());
             break;
         case NodeCreated:
         case NodeDataChanged:
         case NodeDeleted:
-            this.dataWatchesMap.remove(event.getPath());
+            this.dataWatches.removeAll(event.getPath());
             break;
         case None:
             Event.KeeperState eventState = event.getState();
@@ -1083,6 +2049,7 @@ public class ResilientZkClient implements ZkClient, Watcher {
                 }
                 logger.info("SyncConnected:  notified all waiters:  currentSessionId={}; connectString={}",
                         currentSessionId, getConnectString());
+                resubmitWaitingActions();
 
             } else if (eventState == Event.KeeperState.Disconnected) {
                 // this.connected = false;
@@ -1127,22 +2094,53 @@ public class ResilientZkClient implements ZkClient, Watcher {
         return (zooKeeper == null || zooKeeper.getState() == ZooKeeper.States.CLOSED);
     }
 
+    boolean isConnected() {
+        ZooKeeper currentZooKeeper = zooKeeper;
+        return currentZooKeeper != null && currentZooKeeper.getState() == ZooKeeper.States.CONNECTED;
+    }
+
+    /**
+     * 
+     * @return deadline for an operation starting now; or -1 for none
+     */
+    long getOperationDeadline() {
+        long timeoutMillis = operationTimeoutMillis;
+        return timeoutMillis < 0 ? -1 : System.currentTimeMillis() + timeoutMillis;
+    }
+
     /**
+     * Wait for a usable connection, up to deadline.
      * 
+     * @param backoffStrategy
+     * @param deadline
+     *            -1 for no deadline
+     * @throws KeeperException
+     *             ConnectionLossException if deadline passes first
      */
-    void awaitConnectionInitialization(BackoffStrategy backoffStrategy) {
+    void awaitConnectionInitialization(BackoffStrategy backoffStrategy, long deadline) throws KeeperException {
         if (requiresExplicitZkReconnect()) {
             spawnReconnectThread();
         }
-        while (!this.shutdown
-                && (zooKeeper == null || zooKeeper.getState() != ZooKeeper.States.CONNECTED)) {
+        while (!this.shutdown && !isConnected()) {
+            long now = System.currentTimeMillis();
+            if (deadline >= 0 && now >= deadline) {
+                logger.debug("Gave up waiting for ZooKeeper connection:  operationTimeoutMillis={}",
+                        operationTimeoutMillis);
+                throw new KeeperException.ConnectionLossException();
+            }
             try {
                 logger.debug("Waiting for ZooKeeper connection to be established...");
                 if (backoffStrategy.next() == null) {
                     break;
                 }
+                long waitMillis = backoffStrategy.get();
+                if (deadline >= 0) {
+                    waitMillis = Math.min(waitMillis, deadline - now);
+                }
                 synchronized (this) {
-                    wait(backoffStrategy.get());
+                    if (!isConnected()) {
+                        wait(Math.max(waitMillis, 1));
+                    }
                 }
             } catch (InterruptedException e) {
                 logger.info("Interrupted waiting for ZooKeeper connection to be established...");
@@ -1154,9 +2152,12 @@ public class ResilientZkClient implements ZkClient, Watcher {
      * 
      * @param backoffStrategy
      * @param e
+     * @param deadline
+     *            -1 for no deadline
      * @throws KeeperException
      */
-    void handleKeeperException(BackoffStrategy backoffStrategy, KeeperException e) throws KeeperException {
+    void handleKeeperException(BackoffStrategy backoffStrategy, KeeperException e, long deadline)
+            throws KeeperException {
         if (shutdown) {
             throw e;
         }
@@ -1166,7 +2167,14 @@ public class ResilientZkClient implements ZkClient, Watcher {
             throw e;
         } else if (this.isZooKeeperSessionError(e.code())) {
             // if it is a ZK session error, await connection renewal
-            awaitConnectionInitialization(backoffStrategyFactory.get());
+            if (deadline >= 0 && System.currentTimeMillis() >= deadline) {
+                throw e;
+            }
+            try {
+                awaitConnectionInitialization(backoffStrategyFactory.get(), deadline);
+            } catch (KeeperException.ConnectionLossException e1) {
+                throw e;
+            }
         } else {
             throw e;
         }// if
@@ -1180,10 +2188,18 @@ public class ResilientZkClient implements ZkClient, Watcher {
      */
     public abstract class ZooKeeperAction<T> {
 
+        /** name metrics are recorded under; null to not record */
+        private final String operation;
+
         /** backoff strategy to use on reconnection attempts */
         private final BackoffStrategy _backoffStrategy;
 
         public ZooKeeperAction(BackoffStrategy _backoffStrategy) {
+            this(null, _backoffStrategy);
+        }
+
+        public ZooKeeperAction(String operation, BackoffStrategy _backoffStrategy) {
+            this.operation = operation;
             this._backoffStrategy = _backoffStrategy;
         }
 
@@ -1195,24 +2211,37 @@ public class ResilientZkClient implements ZkClient, Watcher {
         public abstract T doPerform() throws KeeperException, InterruptedException;
 
         public T perform() throws KeeperException, InterruptedException {
-            awaitConnectionInitialization(backoffStrategyFactory.get());
-
-            T result = null;
-            boolean success = false;
-            while (!success && !shutdown) {
-                try {
-                    result = doPerform();
-                    success = true;
-                } catch (KeeperException e) {
-                    handleKeeperException(_backoffStrategy, e);
-                }// try
-            }// while
+            OperationStats stats = startOperation(operation);
+            Code code = null;
+            try {
+                long deadline = getOperationDeadline();
+                awaitConnectionInitialization(backoffStrategyFactory.get(), deadline, stats);
+
+                T result = null;
+                boolean success = false;
+                while (!success && !shutdown) {
+                    try {
+                        result = doPerform();
+                        success = true;
+                    } catch (KeeperException e) {
+                        handleKeeperException(_backoffStrategy, e, deadline, stats);
+                    }// try
+                }// while
+
+                if (shutdown) {
+                    throw new KeeperException.SessionExpiredException();
+                }
 
-            if (shutdown) {
-                throw new KeeperException.SessionExpiredException();
+                code = Code.OK;
+                return result;
+            } catch (KeeperException e) {
+                code = e.code();
+                throw e;
+            } finally {
+                if (stats != null) {
+                    stats.record(code);
+                }
             }
-
-            return result;
         }
 
     }// class
@@ -1225,10 +2254,18 @@ public class ResilientZkClient implements ZkClient, Watcher {
      */
     public abstract class VoidZooKeeperAction {
 
+        /** name metrics are recorded under; null to not record */
+        private final String operation;
+
         /** backoff strategy to use on reconnection attempts */
         private final BackoffStrategy _backoffStrategy;
 
         public VoidZooKeeperAction(BackoffStrategy _backoffStrategy) {
+            this(null, _backoffStrategy);
+        }
+
+        public VoidZooKeeperAction(String operation, BackoffStrategy _backoffStrategy) {
+            this.operation = operation;
             this._backoffStrategy = _backoffStrategy;
         }
 
@@ -1240,21 +2277,291 @@ public class ResilientZkClient implements ZkClient, Watcher {
         public abstract void doPerform() throws KeeperException, InterruptedException;
 
         public void perform() throws KeeperException, InterruptedException {
-            awaitConnectionInitialization(backoffStrategyFactory.get());
+            OperationStats stats = startOperation(operation);
+            Code code = null;
+            try {
+                long deadline = getOperationDeadline();
+                awaitConnectionInitialization(backoffStrategyFactory.get(), deadline, stats);
+
+                boolean success = false;
+                while (!success && !shutdown) {
+                    try {
+                        doPerform();
+                        success = true;
+                    } catch (KeeperException e) {
+                        handleKeeperException(_backoffStrategy, e, deadline, stats);
+                    }// try
+                }// while
+
+                if (shutdown) {
+                    throw new KeeperException.SessionExpiredException();
+                }
+
+                code = Code.OK;
+            } catch (KeeperException e) {
+                code = e.code();
+                throw e;
+            } finally {
+                if (stats != null) {
+                    stats.record(code);
+                }
+            }
+        }
+
+    }// class
 
-            boolean success = false;
-            while (!success && !shutdown) {
+    /**
+     * 
+     * @param operation
+     * @return stats to record operation under; or null if operation is not named or metrics are not enabled
+     */
+    OperationStats startOperation(String operation) {
+        if (operation == null || !zkClientMetrics.isEnabled()) {
+            return null;
+        }
+        return new OperationStats(operation);
+    }
+
+    /**
+     * Wait for connection, adding time spent waiting to stats.
+     */
+    void awaitConnectionInitialization(BackoffStrategy backoffStrategy, long deadline, OperationStats stats)
+            throws KeeperException {
+        if (stats == null || isConnected()) {
+            awaitConnectionInitialization(backoffStrategy, deadline);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            awaitConnectionInitialization(backoffStrategy, deadline);
+        } finally {
+            stats.backoffNanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Handle exception, counting a retry in stats if the operation is to be retried.
+     */
+    void handleKeeperException(BackoffStrategy backoffStrategy, KeeperException e, long deadline,
+            OperationStats stats) throws KeeperException {
+        if (stats == null) {
+            handleKeeperException(backoffStrategy, e, deadline);
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            handleKeeperException(backoffStrategy, e, deadline);
+            stats.retries++;
+        } finally {
+            stats.backoffNanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Retries and wait time accumulated by a single operation.
+     */
+    class OperationStats {
+        final String operation;
+        final long startNanos = System.nanoTime();
+        int retries = 0;
+        long backoffNanos = 0;
+
+        OperationStats(String operation) {
+            this.operation = operation;
+        }
+
+        void record(Code code) {
+            zkClientMetrics.record(operation, startNanos, code, retries, TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+        }
+    }
+
+    /**
+     * Watched path to restore.
+     */
+    static class WatchRestore implements Comparable<WatchRestore> {
+        final String path;
+        final boolean data;
+        final int priority;
+
+        WatchRestore(String path, boolean data, int priority) {
+            this.path = path;
+            this.data = data;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(WatchRestore o) {
+            return priority < o.priority ? -1 : (priority == o.priority ? 0 : 1);
+        }
+    }
+
+    /**
+     * Single ZooKeeper watch standing in for several Watchers on the same path.
+     */
+    class WatchDispatcher implements Watcher {
+        private final String path;
+        private final boolean data;
+        private final Set<Watcher> watcherSet;
+
+        WatchDispatcher(String path, boolean data, Set<Watcher> watcherSet) {
+            this.path = path;
+            this.data = data;
+            this.watcherSet = watcherSet;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            // watches are one-time: these Watchers must re-register to be notified again
+            WatchRegistry watchRegistry = data ? dataWatches : childWatches;
+            for (Watcher watcher : watcherSet) {
+                watchRegistry.remove(path, watcher);
                 try {
-                    doPerform();
-                    success = true;
-                } catch (KeeperException e) {
-                    handleKeeperException(_backoffStrategy, e);
-                }// try
-            }// while
+                    watcher.process(event);
+                } catch (Exception e) {
+                    logger.error("process():  " + e, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits a ZooKeeper callback operation and completes a future from the callback. Session errors are retried with
+     * the same backoff semantics and operation deadline as the blocking operations, but retries are scheduled on a
+     * separate thread. submit() never waits for a connection: when not connected, the operation is queued and
+     * submitted on reconnection (or failed at the operation deadline), so callers (including the ZooKeeper event thread
+     * and callbacks chaining further async calls) are never blocked.
+     * 
+     * @author ypai
+     * 
+     * @param <T>
+     */
+    public abstract class AsyncZooKeeperAction<T> {
+
+        /** backoff strategy to use on reconnection attempts */
+        private final BackoffStrategy _backoffStrategy;
+
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        private final OperationStats stats;
+
+        /** -1 for no deadline */
+        private final long deadline = getOperationDeadline();
 
+        public AsyncZooKeeperAction(BackoffStrategy _backoffStrategy) {
+            this(null, _backoffStrategy);
+        }
+
+        public AsyncZooKeeperAction(String operation, BackoffStrategy _backoffStrategy) {
+            this._backoffStrategy = _backoffStrategy;
+            this.stats = startOperation(operation);
+        }
+
+        /**
+         * Issue the ZooKeeper callback operation; callback should call complete().
+         */
+        public abstract void doSubmit();
+
+        public ListenableFuture<T> submit() {
             if (shutdown) {
-                throw new KeeperException.SessionExpiredException();
+                fail(new KeeperException.SessionExpiredException());
+                return future;
+            }
+            if (!isConnected()) {
+                if (requiresExplicitZkReconnect()) {
+                    spawnReconnectThread();
+                }
+                awaitConnection();
+                return future;
+            }
+
+            try {
+                doSubmit();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+
+            return future;
+        }
+
+        /**
+         * Queue to be re-submitted once connected; fail with ConnectionLossException if still waiting at deadline.
+         */
+        void awaitConnection() {
+            long now = System.currentTimeMillis();
+            if (deadline >= 0 && now >= deadline) {
+                fail(new KeeperException.ConnectionLossException());
+                return;
             }
+            connectionWaitQueue.add(this);
+            if (deadline >= 0) {
+                try {
+                    getAsyncRetryExecutorService().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (connectionWaitQueue.remove(AsyncZooKeeperAction.this)) {
+                                fail(new KeeperException.ConnectionLossException());
+                            }
+                        }
+                    }, deadline - now, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    // executor shut down
+                    if (connectionWaitQueue.remove(this)) {
+                        fail(e);
+                    }
+                    return;
+                }
+            }
+            if (isConnected()) {
+                // connected while queueing: SyncConnected may already have drained the queue
+                resubmitWaitingActions();
+            }
+        }
+
+        void fail(Throwable t) {
+            if (stats != null) {
+                stats.record(ZkClientMetrics.getCode(t));
+            }
+            future.setException(t);
+        }
+
+        protected void complete(int rc, String path, T result) {
+            if (rc == Code.OK.intValue()) {
+                if (stats != null) {
+                    stats.record(Code.OK);
+                }
+                future.set(result);
+                return;
+            }
+
+            Code code = Code.get(rc);
+            long now = System.currentTimeMillis();
+            if (!shutdown && isZooKeeperSessionError(code) && (deadline < 0 || now < deadline)
+                    && _backoffStrategy.hasNext() && _backoffStrategy.next() != null) {
+                long retryMillis = _backoffStrategy.get();
+                if (deadline >= 0) {
+                    retryMillis = Math.min(retryMillis, deadline - now);
+                }
+                logger.debug("Retrying async operation in {} ms:  code={}; path={}", new Object[] { retryMillis, code,
+                        path });
+                if (stats != null) {
+                    stats.retries++;
+                    stats.backoffNanos += TimeUnit.MILLISECONDS.toNanos(retryMillis);
+                }
+                try {
+                    getAsyncRetryExecutorService().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            submit();
+                        }
+                    }, retryMillis, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (RuntimeException e) {
+                    // executor shut down: fall through and fail
+                    logger.debug("Could not schedule async retry:  " + e, e);
+                }
+            }
+
+            fail(KeeperException.create(code, path));
         }
 
     }// class
@@ -17,75 +17,355 @@
 package io.reign.zk;
 
 import io.reign.AbstractZkEventHandler;
+import io.reign.AsyncZkClient;
 import io.reign.ZkClient;
+import io.reign.metrics.MetricRegistryManager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
 /**
  * ZkClient implementation with underlying path cache.
  * 
- * Requests without a watch request (watch flag set to true or Watcher argument) will consult the path cache first.
+ * Read requests will result in the requested path being tracked by the cache: entries are always filled with a
+ * ZooKeeper watch set, and watch events invalidate the entry before they are passed on to registered Watchers, so a
+ * Watcher re-reading a path on notification never sees the stale entry.
  * 
- * Read requests will result in the requested path being tracked by the cache (updates by other nodes will be picked up
- * via ZooKeeper watches).
+ * By default, only requests without a watch request (watch flag set to false or null Watcher argument) consult the
+ * path cache. In coherent mode, requests with watch flag set to true are also served from cache: an entry only exists
+ * while the watch backing it is outstanding, so the caller would be notified of the next change either way. In
+ * coherent mode the cache is bypassed while disconnected and cleared on session expiration. Requests with a Watcher
+ * argument always go to ZooKeeper.
  * 
  * Write requests will update path cache items if the ZooKeeper operation is successful and the path is already being
  * tracked by the cache.
  * 
+ * Paths found not to exist are also remembered, backed by an exists() watch, so repeated lookups of missing nodes
+ * (e.g. optional configuration) are answered locally until the node is created.
+ * 
+ * Optionally, blocking reads can be served from cache while disconnected from ZooKeeper (see setServeStaleMaxMillis()),
+ * so that a brief outage does not stall callers reading configuration or service info inline. Such reads are flagged
+ * through isLastReadStale(); writes still wait for the connection.
+ * 
  * @author ypai
  * 
  */
-public class ResilientZkClientWithCache extends AbstractZkEventHandler implements ZkClient {
+public class ResilientZkClientWithCache extends AbstractZkEventHandler implements ZkClient, AsyncZkClient {
 
     private static final Logger logger = LoggerFactory.getLogger(ResilientZkClientWithCache.class);
 
-    private final ZkClient zkClient;
+    /** number of stripes used to detect invalidations racing with reads that fill the cache */
+    private static final int INVALIDATION_STRIPES = 64;
+
+    /** max number of paths remembered as not existing */
+    public static final int DEFAULT_NO_NODE_CACHE_SIZE = 4096;
+
+    private final ResilientZkClient zkClient;
 
     private final PathCache pathCache;
 
+    private final boolean coherent;
+
+    /** Watchers are notified by this class so that cache invalidation always happens first */
+    private final Set<Watcher> watcherSet = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>(32, 0.9f,
+            2));
+
+    private final AtomicLongArray invalidationCounts = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    private volatile boolean connected = true;
+
+    /** when disconnected, or 0 while connected */
+    private volatile long disconnectedSince = 0;
+
+    /** how long after disconnect reads may be served from cache; < 0 to disable */
+    private volatile long serveStaleMaxMillis = -1;
+
+    private final ThreadLocal<Boolean> lastReadStale = new ThreadLocal<Boolean>();
+
+    private final AtomicLong staleReadCount = new AtomicLong(0);
+
+    /** paths loaded from a snapshot that have not yet been checked against ZooKeeper */
+    private final Set<String> restoredPathSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(
+            64, 0.9f, 2));
+
+    private final AtomicLong restoredHitCount = new AtomicLong(0);
+
+    private final AtomicLong restoredStaleCount = new AtomicLong(0);
+
+    /**
+     * paths known not to exist: each is backed by an exists() watch that fires on creation. Value is true if the watch
+     * was set only for this cache, so it is no longer restored after the entry is evicted.
+     */
+    private final ConcurrentLinkedHashMap<String, Boolean> noNodeCache = new ConcurrentLinkedHashMap.Builder<String, Boolean>()
+            .maximumWeightedCapacity(DEFAULT_NO_NODE_CACHE_SIZE).concurrencyLevel(4)
+            .listener(new EvictionListener<String, Boolean>() {
+                @Override
+                public void onEviction(String path, Boolean cacheOnlyWatch) {
+                    if (cacheOnlyWatch) {
+                        zkClient.untrackDataWatch(path);
+                    }
+                }
+            }).build();
+
+    private final AtomicLong noNodeHitCount = new AtomicLong(0);
+
     public ResilientZkClientWithCache(String zkConnectString, int zkSessionTimeout, PathCache pathCache)
             throws IOException {
+        this(zkConnectString, zkSessionTimeout, pathCache, false);
+    }
+
+    /**
+     * 
+     * @param zkConnectString
+     * @param zkSessionTimeout
+     * @param pathCache
+     * @param coherent
+     *            true to also serve reads that request a watch from cache
+     * @throws IOException
+     */
+    public ResilientZkClientWithCache(String zkConnectString, int zkSessionTimeout, PathCache pathCache,
+            boolean coherent) throws IOException {
         zkClient = new ResilientZkClient(zkConnectString, zkSessionTimeout);
 
         this.pathCache = pathCache;
+        this.coherent = coherent;
+
+        zkClient.register(this);
+    }
+
+    public boolean isCoherent() {
+        return coherent;
+    }
+
+    public PathCache getPathCache() {
+        return pathCache;
+    }
+
+    public ResilientZkClient getResilientZkClient() {
+        return zkClient;
+    }
+
+    /**
+     * Counts operations reaching ZooKeeper; reads answered from cache are not counted.
+     * 
+     * @see ResilientZkClient#setHotPathTracker(HotPathTracker)
+     */
+    public void setHotPathTracker(HotPathTracker hotPathTracker) {
+        zkClient.setHotPathTracker(hotPathTracker);
+    }
+
+    public HotPathTracker getHotPathTracker() {
+        return zkClient.getHotPathTracker();
+    }
+
+    /**
+     * Records operations reaching ZooKeeper; reads answered from cache are not recorded.
+     * 
+     * @see ResilientZkClient#setMetricRegistryManager(MetricRegistryManager)
+     */
+    public void setMetricRegistryManager(MetricRegistryManager metricRegistryManager) {
+        zkClient.setMetricRegistryManager(metricRegistryManager);
+    }
+
+    /**
+     * Throttles operations reaching ZooKeeper; reads answered from cache are not throttled.
+     * 
+     * @see ResilientZkClient#setRateLimiter(ZkRateLimiter)
+     */
+    public void setRateLimiter(ZkRateLimiter rateLimiter) {
+        zkClient.setRateLimiter(rateLimiter);
+    }
+
+    public ZkRateLimiter getRateLimiter() {
+        return zkClient.getRateLimiter();
+    }
+
+    /**
+     * @see ResilientZkClient#setOperationTimeoutMillis(long)
+     */
+    public void setOperationTimeoutMillis(long operationTimeoutMillis) {
+        zkClient.setOperationTimeoutMillis(operationTimeoutMillis);
+    }
+
+    public long getOperationTimeoutMillis() {
+        return zkClient.getOperationTimeoutMillis();
+    }
+
+    /**
+     * Load entries saved by saveSnapshot(). Loaded entries are checked against ZooKeeper (and a watch set) the first
+     * time they are read, which costs an exists() call instead of a full read.
+     * 
+     * @param pathCacheSnapshot
+     * @return number of entries loaded
+     * @throws IOException
+     */
+    public int loadSnapshot(PathCacheSnapshot pathCacheSnapshot) throws IOException {
+        List<String> loadedPathList = pathCacheSnapshot.load(pathCache);
+        restoredPathSet.addAll(loadedPathList);
+        logger.info("Loaded path cache snapshot:  file={}; entries={}", pathCacheSnapshot.getFile(),
+                loadedPathList.size());
+        return loadedPathList.size();
+    }
+
+    /**
+     * 
+     * @param pathCacheSnapshot
+     * @return number of entries saved
+     * @throws IOException
+     */
+    public int saveSnapshot(PathCacheSnapshot pathCacheSnapshot) throws IOException {
+        return pathCacheSnapshot.save(pathCache);
+    }
+
+    /**
+     * 
+     * @return number of reads answered from the record of paths that do not exist
+     */
+    public long getNoNodeHitCount() {
+        return noNodeHitCount.get();
+    }
+
+    /**
+     * 
+     * @return number of paths currently remembered as not existing
+     */
+    public int getNoNodeCacheSize() {
+        return noNodeCache.size();
+    }
+
+    void setNoNodeCacheCapacity(int capacity) {
+        noNodeCache.setCapacity(capacity);
+    }
+
+    /**
+     * 
+     * @return number of snapshot entries found current on first read
+     */
+    public long getRestoredHitCount() {
+        return restoredHitCount.get();
+    }
+
+    /**
+     * 
+     * @return number of snapshot entries found out of date on first read
+     */
+    public long getRestoredStaleCount() {
+        return restoredStaleCount.get();
+    }
+
+    public long getServeStaleMaxMillis() {
+        return serveStaleMaxMillis;
+    }
+
+    /**
+     * While disconnected, serve blocking reads (exists(), getData(), getChildren() and batch reads) of cached paths
+     * from cache instead of waiting for the connection, for up to serveStaleMaxMillis after the connection was lost.
+     * Watches requested by such reads are not set, but cached paths are already watched: changes made during the
+     * outage are passed on to registered Watchers once reconnected. Entries loaded from a snapshot and not yet
+     * revalidated are not served.
+     * 
+     * @param serveStaleMaxMillis
+     *            < 0 to disable (default)
+     */
+    public void setServeStaleMaxMillis(long serveStaleMaxMillis) {
+        this.serveStaleMaxMillis = serveStaleMaxMillis;
+    }
+
+    /**
+     * 
+     * @return true if the last blocking read by the calling thread was served from cache while disconnected
+     */
+    public boolean isLastReadStale() {
+        return Boolean.TRUE.equals(lastReadStale.get());
+    }
+
+    /**
+     * 
+     * @return number of reads served from cache while disconnected
+     */
+    public long getStaleReadCount() {
+        return staleReadCount.get();
     }
 
     @Override
     public void register(Watcher watcher) {
-        zkClient.register(watcher);
+        watcherSet.add(watcher);
+        logger.info("Registered watcher:  {}:  hashCode={}; watchers={}", new Object[] { watcher.getClass().getName(),
+                watcher.hashCode(), watcherSet.size() });
     }
 
     @Override
     public void close() {
         zkClient.close();
+        pathCache.clear();
+        noNodeCache.clear();
     }
 
     @Override
     public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
-        if (!watch) {
-            PathCacheEntry pathCacheEntry = pathCache.get(path);
-            if (pathCacheEntry != null) {
-                return pathCacheEntry.getStat();
+        if (serveStale()) {
+            if (isNoNode(path)) {
+                markStale();
+                return null;
+            }
+            PathCacheEntry pathCacheEntry = getValidatedCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                markStale();
+                return copyStat(pathCacheEntry.getStat(), new Stat());
             }
         }
 
-        Stat stat = zkClient.exists(path, watch);
+        if (useCache(watch)) {
+            if (isNoNode(path)) {
+                return null;
+            }
+            PathCacheEntry pathCacheEntry = getCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                return copyStat(pathCacheEntry.getStat(), new Stat());
+            }
+        }
+
+        // always watch: remembering a missing node needs a watch that fires when it is created
+        long invalidationCount = getInvalidationCount(path);
+        boolean watchTracked = watch || zkClient.isDataWatchTracked(path);
+        Stat stat = zkClient.exists(path, true);
 
         pathCache.updateStat(path, stat);
         if (stat == null) {
             pathCache.remove(path);
+            putNoNode(path, invalidationCount, !watchTracked);
+        } else if (!watchTracked) {
+            // node exists: nothing cached depends on the watch, so do not restore it
+            zkClient.untrackDataWatch(path);
         }
 
         return stat;
@@ -93,10 +373,13 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
 
     @Override
     public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
-        if (watcher == null) {
-            PathCacheEntry pathCacheEntry = pathCache.get(path);
-            if (pathCacheEntry != null) {
-                return pathCacheEntry.getStat();
+        if (watcher == null && useCache(false)) {
+            if (isNoNode(path)) {
+                return null;
+            }
+            PathCacheEntry pathCacheEntry = getCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                return copyStat(pathCacheEntry.getStat(), new Stat());
             }
         }
 
@@ -112,61 +395,52 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
 
     @Override
     public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
-        // if no watch is to be set, try to get from path cache
-        if (!watch) {
-            PathCacheEntry pathCacheEntry = pathCache.get(path);
-            if (pathCacheEntry != null) {
-                copyStat(pathCacheEntry.getStat(), stat);
-                return pathCacheEntry.getChildList();
+        if (serveStale()) {
+            if (isNoNode(path)) {
+                markStale();
+                return new ArrayList<String>(0);
+            }
+            PathCacheEntry pathCacheEntry = getValidatedCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasChildList()) {
+                markStale();
+                if (stat != null) {
+                    copyStat(pathCacheEntry.getStat(), stat);
+                }
+                return copyChildList(pathCacheEntry.getChildList());
             }
         }
 
-        List<String> childList = zkClient.getChildren(path, true);
-        byte[] data = zkClient.getData(path, true, stat);
-
-        pathCache.put(path, stat, data, childList);
+        // if no watch is to be set, try to get from path cache
+        if (useCache(watch)) {
+            if (isNoNode(path)) {
+                return new ArrayList<String>(0);
+            }
+            PathCacheEntry pathCacheEntry = getCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasChildList()) {
+                if (stat != null) {
+                    copyStat(pathCacheEntry.getStat(), stat);
+                }
+                return copyChildList(pathCacheEntry.getChildList());
+            }
+        }
 
-        return childList;
+        return fillChildList(path, stat);
     }
 
     @Override
     public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
         // if no watch is to be set, try to get from path cache
         if (watcher == null) {
-            PathCacheEntry pathCacheEntry = pathCache.get(path);
-            if (pathCacheEntry != null) {
-                return pathCacheEntry.getChildList();
-            }
+            return getChildren(path, false, null);
         }
 
-        List<String> childList = zkClient.getChildren(path, watcher);
-
-        Stat stat = new Stat();
-        byte[] data = zkClient.getData(path, true, stat);
-
-        pathCache.put(path, stat, data, childList);
-
-        return childList;
+        // not filled into cache: entries are only valid while backed by our own watch
+        return zkClient.getChildren(path, watcher);
     }
 
     @Override
     public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
-        // if no watch is to be set, try to get from path cache
-        if (!watch) {
-            PathCacheEntry pathCacheEntry = pathCache.get(path);
-            if (pathCacheEntry != null) {
-                return pathCacheEntry.getChildList();
-            }
-        }
-
-        List<String> childList = zkClient.getChildren(path, watch);
-
-        Stat stat = new Stat();
-        byte[] data = zkClient.getData(path, true, stat);
-
-        pathCache.put(path, stat, data, childList);
-
-        return childList;
+        return getChildren(path, watch, null);
     }
 
     @Override
@@ -181,21 +455,39 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
 
     @Override
     public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
-        // if no watch is to be set, try to get from path cache
-        if (!watch) {
-            PathCacheEntry pathCacheEntry = pathCache.get(path);
-            if (pathCacheEntry != null) {
-                copyStat(pathCacheEntry.getStat(), stat);
+        if (serveStale()) {
+            if (isNoNode(path)) {
+                markStale();
+                throw KeeperException.create(KeeperException.Code.NONODE, path);
+            }
+            PathCacheEntry pathCacheEntry = getValidatedCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                markStale();
+                if (stat != null) {
+                    copyStat(pathCacheEntry.getStat(), stat);
+                }
                 return pathCacheEntry.getData();
             }
         }
 
-        byte[] data = zkClient.getData(path, watch, stat);
-        List<String> childList = zkClient.getChildren(path, true);
-
-        pathCache.put(path, stat, data, childList);
+        // if no watch is to be set, try to get from path cache
+        if (useCache(watch)) {
+            if (isNoNode(path)) {
+                throw KeeperException.create(KeeperException.Code.NONODE, path);
+            }
+            PathCacheEntry pathCacheEntry = getCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                if (stat != null) {
+                    copyStat(pathCacheEntry.getStat(), stat);
+                }
+                return pathCacheEntry.getData();
+            }
+        }
 
-        return data;
+        if (stat == null) {
+            stat = new Stat();
+        }
+        return fillData(path, stat);
     }
 
     @Override
@@ -203,6 +495,9 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
             InterruptedException {
         String created = zkClient.create(path, data, acl, createMode);
 
+        // parent child list changed: do not wait for watch event so callers can read their own writes
+        invalidateWithParent(created);
+
         return created;
     }
 
@@ -210,7 +505,7 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
     public void delete(String path, int version) throws InterruptedException, KeeperException {
         zkClient.delete(path, version);
 
-        pathCache.remove(path);
+        invalidateWithParent(path);
     }
 
     @Override
@@ -218,82 +513,478 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
         zkClient.sync(path, cb, ctx);
     }
 
+    @Override
+    public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+        List<OpResult> results = zkClient.multi(ops);
+
+        // transaction was applied: drop affected entries (and their parents) so they are re-read on next access
+        for (Op op : ops) {
+            if (op.getType() == ZooDefs.OpCode.create || op.getType() == ZooDefs.OpCode.delete) {
+                invalidateWithParent(op.getPath());
+            } else {
+                invalidate(op.getPath());
+            }
+        }
+        for (OpResult result : results) {
+            if (result instanceof OpResult.CreateResult) {
+                invalidateWithParent(((OpResult.CreateResult) result).getPath());
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    public ListenableFuture<Stat> existsAsync(String path, boolean watch) {
+        if (useCache(watch)) {
+            if (isNoNode(path)) {
+                return Futures.immediateFuture(null);
+            }
+            PathCacheEntry pathCacheEntry = getValidatedCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                return Futures.immediateFuture(copyStat(pathCacheEntry.getStat(), new Stat()));
+            }
+        }
+        return zkClient.existsAsync(path, watch);
+    }
+
+    @Override
+    public ListenableFuture<byte[]> getDataAsync(String path, boolean watch, Stat stat) {
+        if (useCache(watch)) {
+            if (isNoNode(path)) {
+                return Futures.immediateFailedFuture(KeeperException.create(KeeperException.Code.NONODE, path));
+            }
+            PathCacheEntry pathCacheEntry = getValidatedCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasData()) {
+                if (stat != null) {
+                    copyStat(pathCacheEntry.getStat(), stat);
+                }
+                return Futures.immediateFuture(pathCacheEntry.getData());
+            }
+        }
+        return zkClient.getDataAsync(path, watch, stat);
+    }
+
+    @Override
+    public ListenableFuture<List<String>> getChildrenAsync(String path, boolean watch, Stat stat) {
+        if (useCache(watch)) {
+            if (isNoNode(path)) {
+                return Futures.immediateFuture((List<String>) new ArrayList<String>(0));
+            }
+            PathCacheEntry pathCacheEntry = getValidatedCacheEntry(path);
+            if (pathCacheEntry != null && pathCacheEntry.hasChildList()) {
+                if (stat != null) {
+                    copyStat(pathCacheEntry.getStat(), stat);
+                }
+                return Futures.immediateFuture(copyChildList(pathCacheEntry.getChildList()));
+            }
+        }
+        return zkClient.getChildrenAsync(path, watch, stat);
+    }
+
+    @Override
+    public ListenableFuture<String> createAsync(String path, byte[] data, List<ACL> acl, CreateMode createMode) {
+        ListenableFuture<String> future = zkClient.createAsync(path, data, acl, createMode);
+        Futures.addCallback(future, new FutureCallback<String>() {
+            @Override
+            public void onSuccess(String created) {
+                invalidateWithParent(created);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Stat> setDataAsync(final String path, final byte[] data, int version) {
+        ListenableFuture<Stat> future = zkClient.setDataAsync(path, data, version);
+        Futures.addCallback(future, new FutureCallback<Stat>() {
+            @Override
+            public void onSuccess(Stat stat) {
+                pathCache.updateData(path, data);
+                pathCache.updateStat(path, stat);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAsync(final String path, int version) {
+        ListenableFuture<Void> future = zkClient.deleteAsync(path, version);
+        Futures.addCallback(future, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                invalidateWithParent(path);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Void> syncAsync(String path) {
+        return zkClient.syncAsync(path);
+    }
+
+    @Override
+    public ListenableFuture<Void> syncAsync(String path, long maxAgeMillis) {
+        return zkClient.syncAsync(path, maxAgeMillis);
+    }
+
+    @Override
+    public Map<String, PathReadResult> getDataBatch(Collection<String> paths, boolean watch)
+            throws InterruptedException {
+        return readBatch(paths, watch, true);
+    }
+
+    @Override
+    public Map<String, PathReadResult> getChildrenBatch(Collection<String> paths, boolean watch)
+            throws InterruptedException {
+        return readBatch(paths, watch, false);
+    }
+
+    Map<String, PathReadResult> readBatch(Collection<String> paths, boolean watch, boolean readData)
+            throws InterruptedException {
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+
+        // serve what we can from cache, then pipeline remaining reads
+        boolean serveStale = serveStale();
+        boolean useCache = serveStale || useCache(watch);
+        List<String> missList = new ArrayList<String>(useCache ? 0 : paths.size());
+        for (String path : paths) {
+            if (useCache && isNoNode(path)) {
+                if (serveStale) {
+                    markStale();
+                }
+                resultMap.put(path, readData ? new PathReadResult(path, KeeperException.create(
+                        KeeperException.Code.NONODE, path)) : new PathReadResult(path, new Stat(), null,
+                        new ArrayList<String>(0)));
+                continue;
+            }
+            PathCacheEntry pathCacheEntry = useCache ? getValidatedCacheEntry(path) : null;
+            if (pathCacheEntry != null && (readData ? pathCacheEntry.hasData() : pathCacheEntry.hasChildList())) {
+                if (serveStale) {
+                    markStale();
+                }
+                resultMap.put(path, new PathReadResult(path, copyStat(pathCacheEntry.getStat(), new Stat()),
+                        readData ? pathCacheEntry.getData() : null, readData ? null : copyChildList(pathCacheEntry
+                                .getChildList())));
+            } else {
+                // hold position in result map so iteration order follows paths
+                resultMap.put(path, null);
+                missList.add(path);
+            }
+        }
+
+        if (missList.size() > 0) {
+            Map<String, PathReadResult> missResultMap = readData ? zkClient.getDataBatch(missList, watch) : zkClient
+                    .getChildrenBatch(missList, watch);
+            resultMap.putAll(missResultMap);
+        }
+
+        return resultMap;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        // invalidate first, then pass on to registered Watchers
+        super.process(event);
+
+        for (Watcher watcher : watcherSet) {
+            watcher.process(event);
+        }
+    }
+
     @Override
     public void nodeChildrenChanged(WatchedEvent event) {
-        handleNodeUpdate(event);
+        invalidate(event.getPath());
     }
 
     @Override
     public void nodeCreated(WatchedEvent event) {
-        handleNodeUpdate(event);
+        invalidateWithParent(event.getPath());
     }
 
     @Override
     public void nodeDataChanged(WatchedEvent event) {
-        handleNodeUpdate(event);
+        invalidate(event.getPath());
     }
 
     @Override
     public void nodeDeleted(WatchedEvent event) {
-        String path = event.getPath();
-        PathCacheEntry removed = pathCache.remove(path);
-        if (removed != null) {
-            logger.debug("Change detected:  removed cache entry:  path={}", path);
+        invalidateWithParent(event.getPath());
+    }
+
+    @Override
+    public void connected(WatchedEvent event) {
+        connected = true;
+        disconnectedSince = 0;
+    }
+
+    @Override
+    public void disconnected(WatchedEvent event) {
+        if (connected) {
+            disconnectedSince = System.currentTimeMillis();
         }
+        connected = false;
     }
 
-    synchronized void handleNodeUpdate(WatchedEvent event) {
-        String path = event.getPath();
+    @Override
+    public void sessionExpired(WatchedEvent event) {
+        // all watches backing cache entries are gone
+        for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+            invalidationCounts.incrementAndGet(i);
+        }
+        pathCache.clear();
+        restoredPathSet.clear();
+        noNodeCache.clear();
+        logger.info("Session expired:  cleared path cache");
+    }
 
-        logger.info("Updating cache entry:  path={}; eventType={}", path, event.getType());
+    boolean useCache(boolean watch) {
+        if (coherent) {
+            return connected;
+        }
+        return !watch;
+    }
 
-        try {
-            byte[] bytes = null;
-            List<String> children = null;
-            Stat stat = null;
+    /**
+     * Also resets the calling thread's stale flag when serving stale reads is enabled.
+     * 
+     * @return true if reads should be served from cache regardless of watch flag because we are disconnected
+     */
+    boolean serveStale() {
+        long maxMillis = serveStaleMaxMillis;
+        if (maxMillis < 0) {
+            return false;
+        }
+        lastReadStale.set(Boolean.FALSE);
+        return !connected && System.currentTimeMillis() - disconnectedSince <= maxMillis;
+    }
 
-            /** see what we have in cache **/
-            PathCacheEntry cacheEntry = pathCache.get(path);
-            if (cacheEntry != null) {
-                bytes = cacheEntry.getData();
-                children = cacheEntry.getChildList();
-                stat = cacheEntry.getStat();
-            }
+    void markStale() {
+        lastReadStale.set(Boolean.TRUE);
+        staleReadCount.incrementAndGet();
+    }
 
-            if (stat == null) {
-                stat = new Stat();
-            }
+    /**
+     * Get cache entry, first revalidating it if it was loaded from a snapshot.
+     */
+    PathCacheEntry getCacheEntry(String path) throws KeeperException, InterruptedException {
+        PathCacheEntry pathCacheEntry = pathCache.get(path);
+        if (pathCacheEntry == null || restoredPathSet.isEmpty() || !restoredPathSet.contains(path)) {
+            return pathCacheEntry;
+        }
+        return revalidate(path, pathCacheEntry);
+    }
 
-            /** get update data from zk **/
-            if (event.getType() == EventType.NodeDataChanged || event.getType() == EventType.NodeCreated) {
-                logger.debug("Change detected:  updating path data:  path={}", path);
-                bytes = zkClient.getData(path, true, stat);
+    /**
+     * Get cache entry without blocking: entries loaded from a snapshot and not yet revalidated are treated as misses.
+     */
+    PathCacheEntry getValidatedCacheEntry(String path) {
+        PathCacheEntry pathCacheEntry = pathCache.get(path);
+        if (pathCacheEntry == null || restoredPathSet.isEmpty() || !restoredPathSet.contains(path)) {
+            return pathCacheEntry;
+        }
+        return null;
+    }
 
-                if (cacheEntry == null) {
-                    children = zkClient.getChildren(path, true);
+    /**
+     * Compare entry loaded from snapshot against current node Stat and set the watch that keeps it current from here
+     * on.
+     * 
+     * @return entry if still current; null otherwise
+     */
+    PathCacheEntry revalidate(final String path, final PathCacheEntry pathCacheEntry) throws KeeperException,
+            InterruptedException {
+        Stat stat = zkClient.exists(path, true);
+        restoredPathSet.remove(path);
+
+        Stat cachedStat = pathCacheEntry.getStat();
+        if (stat == null || stat.getMzxid() != cachedStat.getMzxid()
+                || (pathCacheEntry.hasChildList() && stat.getPzxid() != cachedStat.getPzxid())) {
+            restoredStaleCount.incrementAndGet();
+            pathCache.remove(path);
+            logger.debug("Snapshot entry out of date:  path={}", path);
+            return null;
+        }
+
+        if (pathCacheEntry.hasChildList()) {
+            // exists() does not watch children: set child watch, dropping the entry if children changed meanwhile
+            Futures.addCallback(zkClient.getChildrenAsync(path, true, null), new FutureCallback<List<String>>() {
+                @Override
+                public void onSuccess(List<String> childList) {
+                    if (!new HashSet<String>(childList).equals(new HashSet<String>(pathCacheEntry.getChildList()))) {
+                        invalidate(path);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    invalidate(path);
                 }
+            });
+        }
+
+        restoredHitCount.incrementAndGet();
+        return pathCacheEntry;
+    }
+
+    /**
+     * Read data with watch set and cache it, unless the path is invalidated while we are reading. Only the data part
+     * of the entry is filled, so a miss costs a single ZooKeeper operation.
+     */
+    byte[] fillData(String path, Stat stat) throws KeeperException, InterruptedException {
+        long invalidationCount = getInvalidationCount(path);
+
+        byte[] data;
+        try {
+            data = zkClient.getData(path, true, stat);
+        } catch (KeeperException.NoNodeException e) {
+            // getData() does not leave a watch on a missing node: set one with exists() before remembering it
+            if (zkClient.exists(path, true) == null) {
+                putNoNode(path, invalidationCount, true);
             }
+            throw e;
+        }
 
-            if (event.getType() == EventType.NodeChildrenChanged || event.getType() == EventType.NodeCreated) {
-                logger.debug("Change detected:  updating path children:  path={}", path);
-                children = zkClient.getChildren(path, true);
+        if (getInvalidationCount(path) == invalidationCount) {
+            pathCache.putData(path, copyStat(stat, new Stat()), data);
+            removeIfInvalidated(path, invalidationCount);
+        }
 
-                if (cacheEntry == null) {
-                    bytes = zkClient.getData(path, true, stat);
-                }
+        return data;
+    }
+
+    /**
+     * Read child list with watch set and cache it, unless the path is invalidated while we are reading.
+     */
+    List<String> fillChildList(String path, Stat stat) throws KeeperException, InterruptedException {
+        long invalidationCount = getInvalidationCount(path);
+
+        Stat readStat = new Stat();
+        List<String> childList;
+        try {
+            childList = zkClient.getExistingChildren(path, true, readStat);
+        } catch (KeeperException.NoNodeException e) {
+            // getChildren() sets no watch on a missing node
+            if (zkClient.exists(path, true) == null) {
+                putNoNode(path, invalidationCount, true);
             }
+            return new ArrayList<String>(0);
+        }
+        if (stat != null) {
+            copyStat(readStat, stat);
+        }
 
-            /** update cache **/
-            pathCache.put(path, stat, bytes, children);
+        if (getInvalidationCount(path) == invalidationCount) {
+            pathCache.putChildList(path, readStat, copyChildList(childList));
+            removeIfInvalidated(path, invalidationCount);
+        }
 
-        } catch (KeeperException e) {
-            logger.error(this.getClass().getSimpleName() + ":  error while trying to update cache entry:  " + e
-                    + ":  path=" + path, e);
-        } catch (InterruptedException e) {
-            logger.warn(this.getClass().getSimpleName() + ":  interrupted while trying to update cache entry:  " + e
-                    + ":  path=" + path, e);
+        return childList;
+    }
+
+    boolean isNoNode(String path) {
+        if (noNodeCache.isEmpty() || noNodeCache.get(path) == null) {
+            return false;
+        }
+        noNodeHitCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remember path as not existing. Caller has set an exists() watch, which fires (and invalidates) on creation.
+     * 
+     * @param cacheOnlyWatch
+     *            true if the watch was set only to back this entry, not at the request of the caller
+     */
+    void putNoNode(String path, long invalidationCount, boolean cacheOnlyWatch) {
+        if (getInvalidationCount(path) != invalidationCount) {
+            return;
+        }
+        Boolean previous = noNodeCache.put(path, cacheOnlyWatch);
+        if (Boolean.FALSE.equals(previous) && cacheOnlyWatch) {
+            // a caller asked for this watch earlier: keep restoring it
+            noNodeCache.replace(path, Boolean.TRUE, Boolean.FALSE);
+        }
+        if (getInvalidationCount(path) != invalidationCount) {
+            noNodeCache.remove(path);
+        }
+    }
+
+    /**
+     * An invalidation may have slipped in between check and put.
+     */
+    void removeIfInvalidated(String path, long invalidationCount) {
+        if (getInvalidationCount(path) != invalidationCount) {
+            pathCache.remove(path);
+        }
+    }
+
+    /**
+     * Remove path and its parent from cache.
+     */
+    void invalidate(String path) {
+        if (path == null) {
+            return;
+        }
+        invalidationCounts.incrementAndGet(getInvalidationStripe(path));
+        restoredPathSet.remove(path);
+        noNodeCache.remove(path);
+        PathCacheEntry removed = pathCache.remove(path);
+        if (removed != null) {
+            logger.debug("Change detected:  removed cache entry:  path={}", path);
+        }
+    }
+
+    /**
+     * invalidate() for a node created or deleted: the parent's child list changes too.
+     */
+    void invalidateWithParent(String path) {
+        if (path == null) {
+            return;
         }
+        invalidate(path);
+
+        int lastSlashIndex = path.lastIndexOf('/');
+        if (lastSlashIndex >= 0 && path.length() > 1) {
+            String parentPath = lastSlashIndex == 0 ? "/" : path.substring(0, lastSlashIndex);
+            invalidationCounts.incrementAndGet(getInvalidationStripe(parentPath));
+            noNodeCache.remove(parentPath);
+            PathCacheEntry removed = pathCache.remove(parentPath);
+            if (removed != null) {
+                logger.debug("Change detected:  removed parent cache entry:  path={}", parentPath);
+            }
+        }
+    }
+
+    long getInvalidationCount(String path) {
+        return invalidationCounts.get(getInvalidationStripe(path));
+    }
 
+    int getInvalidationStripe(String path) {
+        return (path.hashCode() & 0x7fffffff) % INVALIDATION_STRIPES;
+    }
+
+    /**
+     * Callers may sort or otherwise modify child lists, so never hand out the cached instance.
+     */
+    List<String> copyChildList(List<String> childList) {
+        if (childList == null) {
+            return null;
+        }
+        return new ArrayList<String>(childList);
     }
 
     /**
@@ -304,19 +995,7 @@ public class ResilientZkClientWithCache extends AbstractZkEventHandler implement
      * @return
      */
     Stat copyStat(Stat src, Stat target) {
-        target.setAversion(src.getAversion());
-        target.setCtime(src.getCtime());
-        target.setCversion(src.getCversion());
-        target.setCzxid(src.getCzxid());
-        target.setDataLength(src.getDataLength());
-        target.setEphemeralOwner(src.getEphemeralOwner());
-        target.setMtime(src.getMtime());
-        target.setMzxid(src.getMzxid());
-        target.setNumChildren(src.getNumChildren());
-        target.setPzxid(src.getPzxid());
-        target.setVersion(src.getVersion());
-
-        return target;
+        return ResilientZkClient.copyStat(src, target);
     }
 
 }
@@ -17,33 +17,91 @@
 package io.reign.zk;
 
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EntryWeigher;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 
 /**
  * A thread-safe LRU cache of ZooKeeper path data, will auto-update on watched node changes.
  * 
+ * Entries are weighed by their approximate heap footprint (data length plus child names plus fixed overhead), and the
+ * cache evicts least recently used entries to stay within a byte budget, so a few large znodes cannot crowd out the
+ * heap.
+ * 
  * @author ypai
  * 
  */
 public class SimplePathCache implements PathCache {
     private static final Logger logger = LoggerFactory.getLogger(SimplePathCache.class);
 
+    /** budget per entry used when only a max entry count is given */
+    public static final long DEFAULT_BYTES_PER_ENTRY = 4096;
+
+    /** approximate fixed cost of an entry: key, Stat, entry object, map node */
+    static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    /** approximate fixed cost of each child name in a child list */
+    static final int CHILD_OVERHEAD_BYTES = 48;
+
+    /** upper bounds (inclusive) of entry size classes used for per-class counters; last class is unbounded */
+    private static final int[] SIZE_CLASS_LIMITS = { 1024, 16 * 1024, 256 * 1024, Integer.MAX_VALUE };
+
     private final AtomicLong hitCount = new AtomicLong(0);
     private final AtomicLong missCount = new AtomicLong(0);
 
-    private final ConcurrentMap<String, PathCacheEntry> cache;
+    private final AtomicLongArray hitCountBySizeClass = new AtomicLongArray(SIZE_CLASS_LIMITS.length);
+    private final AtomicLongArray putCountBySizeClass = new AtomicLongArray(SIZE_CLASS_LIMITS.length);
+    private final AtomicLongArray evictionCountBySizeClass = new AtomicLongArray(SIZE_CLASS_LIMITS.length);
+
+    private final long maxBytes;
 
+    private final ConcurrentLinkedHashMap<String, PathCacheEntry> cache;
+
+    /**
+     * 
+     * @param maxSize
+     *            expected max number of entries; byte budget is maxSize * DEFAULT_BYTES_PER_ENTRY
+     * @param concurrencyLevel
+     */
     public SimplePathCache(int maxSize, int concurrencyLevel) {
-        cache = new ConcurrentLinkedHashMap.Builder<String, PathCacheEntry>().maximumWeightedCapacity(maxSize)
-                .initialCapacity(maxSize).concurrencyLevel(concurrencyLevel).build();
+        this(maxSize, concurrencyLevel, maxSize * DEFAULT_BYTES_PER_ENTRY);
+    }
+
+    /**
+     * 
+     * @param maxSize
+     *            expected max number of entries, used to size the cache initially
+     * @param concurrencyLevel
+     * @param maxBytes
+     *            approximate max heap used by cached data and child lists
+     */
+    public SimplePathCache(int maxSize, int concurrencyLevel, long maxBytes) {
+        this.maxBytes = maxBytes;
+        cache = new ConcurrentLinkedHashMap.Builder<String, PathCacheEntry>().maximumWeightedCapacity(maxBytes)
+                .initialCapacity(maxSize).concurrencyLevel(concurrencyLevel)
+                .weigher(new EntryWeigher<String, PathCacheEntry>() {
+                    @Override
+                    public int weightOf(String key, PathCacheEntry value) {
+                        return weigh(key, value);
+                    }
+                }).listener(new EvictionListener<String, PathCacheEntry>() {
+                    @Override
+                    public void onEviction(String key, PathCacheEntry value) {
+                        evictionCountBySizeClass.incrementAndGet(getSizeClass(weigh(key, value)));
+                        logger.trace("Evicted cache entry:  path={}", key);
+                    }
+                }).build();
 
     }
 
@@ -73,7 +131,7 @@ public class SimplePathCache implements PathCache {
             return null;
         }
 
-        hitCount.incrementAndGet();
+        recordHit(absolutePath, cacheEntry);
 
         return cacheEntry;
     }
@@ -115,11 +173,10 @@ public class SimplePathCache implements PathCache {
     public PathCacheEntry updateData(String absolutePath, byte[] updatedData) {
         PathCacheEntry pathCacheEntry = cache.get(absolutePath);
         if (pathCacheEntry != null) {
-            List<String> children = pathCacheEntry.getChildList();
-            Stat stat = pathCacheEntry.getStat();
-
             /** update cache **/
-            PathCacheEntry updatedPathCacheEntry = this.put(absolutePath, stat, updatedData, children);
+            PathCacheEntry updatedPathCacheEntry = new SimplePathCacheEntry(pathCacheEntry.getStat(), updatedData,
+                    pathCacheEntry.getChildList(), true, pathCacheEntry.hasChildList(), System.currentTimeMillis());
+            putEntry(absolutePath, updatedPathCacheEntry);
 
             return updatedPathCacheEntry;
         }
@@ -131,11 +188,11 @@ public class SimplePathCache implements PathCache {
     public PathCacheEntry updateChildList(String absolutePath, List<String> updatedChildList) {
         PathCacheEntry pathCacheEntry = cache.get(absolutePath);
         if (pathCacheEntry != null) {
-            byte[] data = pathCacheEntry.getData();
-            Stat stat = pathCacheEntry.getStat();
-
             /** update cache **/
-            PathCacheEntry updatedPathCacheEntry = this.put(absolutePath, stat, data, updatedChildList);
+            PathCacheEntry updatedPathCacheEntry = new SimplePathCacheEntry(pathCacheEntry.getStat(),
+                    pathCacheEntry.getData(), updatedChildList, pathCacheEntry.hasData(), true,
+                    System.currentTimeMillis());
+            putEntry(absolutePath, updatedPathCacheEntry);
 
             return updatedPathCacheEntry;
         }
@@ -147,11 +204,11 @@ public class SimplePathCache implements PathCache {
     public PathCacheEntry updateStat(String absolutePath, Stat updatedStat) {
         PathCacheEntry pathCacheEntry = cache.get(absolutePath);
         if (pathCacheEntry != null) {
-            List<String> childList = pathCacheEntry.getChildList();
-            byte[] data = pathCacheEntry.getData();
-
             /** update cache **/
-            PathCacheEntry updatedPathCacheEntry = this.put(absolutePath, updatedStat, data, childList);
+            PathCacheEntry updatedPathCacheEntry = new SimplePathCacheEntry(updatedStat, pathCacheEntry.getData(),
+                    pathCacheEntry.getChildList(), pathCacheEntry.hasData(), pathCacheEntry.hasChildList(),
+                    System.currentTimeMillis());
+            putEntry(absolutePath, updatedPathCacheEntry);
 
             return updatedPathCacheEntry;
         }
@@ -159,6 +216,43 @@ public class SimplePathCache implements PathCache {
         return null;
     }
 
+    @Override
+    public PathCacheEntry putData(String absolutePath, Stat stat, byte[] bytes) {
+        return merge(absolutePath, stat, bytes, null, true, false);
+    }
+
+    @Override
+    public PathCacheEntry putChildList(String absolutePath, Stat stat, List<String> childList) {
+        return merge(absolutePath, stat, null, childList, false, true);
+    }
+
+    /**
+     * Merge a partial entry into what is already cached for a path.
+     */
+    PathCacheEntry merge(String absolutePath, Stat stat, byte[] bytes, List<String> childList, boolean hasData,
+            boolean hasChildList) {
+        while (true) {
+            PathCacheEntry pathCacheEntry = cache.get(absolutePath);
+            if (pathCacheEntry == null) {
+                PathCacheEntry newPathCacheEntry = new SimplePathCacheEntry(stat, bytes, childList, hasData,
+                        hasChildList, System.currentTimeMillis());
+                if (cache.putIfAbsent(absolutePath, newPathCacheEntry) == null) {
+                    recordPut(absolutePath, newPathCacheEntry);
+                    return newPathCacheEntry;
+                }
+            } else {
+                PathCacheEntry newPathCacheEntry = new SimplePathCacheEntry(stat, hasData ? bytes
+                        : pathCacheEntry.getData(), hasChildList ? childList : pathCacheEntry.getChildList(), hasData
+                        || pathCacheEntry.hasData(), hasChildList || pathCacheEntry.hasChildList(),
+                        System.currentTimeMillis());
+                if (cache.replace(absolutePath, pathCacheEntry, newPathCacheEntry)) {
+                    recordPut(absolutePath, newPathCacheEntry);
+                    return newPathCacheEntry;
+                }
+            }
+        }
+    }
+
     /**
      * Get with no TTL.
      * 
@@ -171,7 +265,7 @@ public class SimplePathCache implements PathCache {
         if (cacheEntry == null) {
             missCount.incrementAndGet();
         } else {
-            hitCount.incrementAndGet();
+            recordHit(absolutePath, cacheEntry);
         }
         return cacheEntry;
     }
@@ -182,19 +276,14 @@ public class SimplePathCache implements PathCache {
         if (removed != null) {
             logger.debug("Removed cache entry:  path={}", absolutePath);
         }
-
-        // also remove parent cache entry
-        String parentPath = parentPath(absolutePath);
-        if (parentPath != null) {
-            removed = cache.remove(parentPath);
-            if (removed != null) {
-                logger.debug("Removed parent cache entry:  path={}", parentPath);
-            }
-        }
-
         return removed;
     }
 
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
     @Override
     public long getHitCount() {
         return hitCount.get();
@@ -212,23 +301,120 @@ public class SimplePathCache implements PathCache {
      * @param bytes
      *            Zookeeper node data
      */
+    @Override
+    public PathCacheEntry peek(String absolutePath) {
+        return cache.getQuietly(absolutePath);
+    }
+
+    @Override
+    public Set<String> getPathSet() {
+        return new HashSet<String>(cache.keySet());
+    }
+
     @Override
     public PathCacheEntry put(String absolutePath, Stat stat, byte[] bytes, List<String> childList) {
         if (childList == null) {
             childList = Collections.EMPTY_LIST;
         }
 
-        return cache.put(absolutePath, new SimplePathCacheEntry(stat, bytes, childList, System.currentTimeMillis()));
+        return putEntry(absolutePath, new SimplePathCacheEntry(stat, bytes, childList, System.currentTimeMillis()));
     }
 
-    boolean isExpired(PathCacheEntry cacheEntry, int ttlMillis) {
-        return (ttlMillis > 0 && System.currentTimeMillis() - cacheEntry.getLastUpdatedTimestampMillis() > ttlMillis);
+    PathCacheEntry putEntry(String absolutePath, PathCacheEntry pathCacheEntry) {
+        PathCacheEntry previous = cache.put(absolutePath, pathCacheEntry);
+        recordPut(absolutePath, pathCacheEntry);
+        return previous;
     }
 
-    String parentPath(String path) {
-        if ("/".equals(path)) {
-            return null;
+    void recordHit(String absolutePath, PathCacheEntry pathCacheEntry) {
+        hitCount.incrementAndGet();
+        hitCountBySizeClass.incrementAndGet(getSizeClass(weigh(absolutePath, pathCacheEntry)));
+    }
+
+    void recordPut(String absolutePath, PathCacheEntry pathCacheEntry) {
+        putCountBySizeClass.incrementAndGet(getSizeClass(weigh(absolutePath, pathCacheEntry)));
+    }
+
+    /**
+     * 
+     * @return approximate heap footprint of entry in bytes
+     */
+    static int weigh(String absolutePath, PathCacheEntry pathCacheEntry) {
+        long weight = ENTRY_OVERHEAD_BYTES + 2L * absolutePath.length();
+        byte[] data = pathCacheEntry.getData();
+        if (data != null) {
+            weight += data.length;
+        }
+        List<String> childList = pathCacheEntry.getChildList();
+        if (childList != null) {
+            for (String child : childList) {
+                weight += CHILD_OVERHEAD_BYTES + 2L * child.length();
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    static int getSizeClass(int weight) {
+        for (int i = 0; i < SIZE_CLASS_LIMITS.length; i++) {
+            if (weight <= SIZE_CLASS_LIMITS[i]) {
+                return i;
+            }
         }
-        return path.substring(0, path.lastIndexOf("/"));
+        return SIZE_CLASS_LIMITS.length - 1;
+    }
+
+    /**
+     * 
+     * @return number of entry size classes tracked by per-class counters
+     */
+    public static int getSizeClassCount() {
+        return SIZE_CLASS_LIMITS.length;
+    }
+
+    /**
+     * 
+     * @param sizeClass
+     * @return largest entry size in bytes counted in sizeClass
+     */
+    public static int getSizeClassLimit(int sizeClass) {
+        return SIZE_CLASS_LIMITS[sizeClass];
+    }
+
+    public long getHitCount(int sizeClass) {
+        return hitCountBySizeClass.get(sizeClass);
+    }
+
+    /**
+     * Entries are put after a miss is read from ZooKeeper, so this approximates misses by size class.
+     * 
+     * @param sizeClass
+     * @return
+     */
+    public long getPutCount(int sizeClass) {
+        return putCountBySizeClass.get(sizeClass);
+    }
+
+    public long getEvictionCount(int sizeClass) {
+        return evictionCountBySizeClass.get(sizeClass);
+    }
+
+    /**
+     * 
+     * @return approximate heap used by cache entries in bytes
+     */
+    public long getWeightedSize() {
+        return cache.weightedSize();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    boolean isExpired(PathCacheEntry cacheEntry, int ttlMillis) {
+        return (ttlMillis > 0 && System.currentTimeMillis() - cacheEntry.getLastUpdatedTimestampMillis() > ttlMillis);
     }
 }
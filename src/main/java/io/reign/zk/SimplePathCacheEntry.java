@@ -32,11 +32,34 @@ public class SimplePathCacheEntry implements PathCacheEntry {
     private final byte[] data;
     private final List<String> childList;
     private final long lastUpdatedTimestampMillis;
+    private final boolean hasData;
+    private final boolean hasChildList;
 
     public SimplePathCacheEntry(Stat stat, byte[] data, List<String> childList, long lastUpdatedTimestampMillis) {
+        this(stat, data, childList, true, true, lastUpdatedTimestampMillis);
+    }
+
+    /**
+     * Partial entry: holds data, child list, or both.
+     * 
+     * @param stat
+     * @param data
+     * @param childList
+     * @param hasData
+     * @param hasChildList
+     * @param lastUpdatedTimestampMillis
+     */
+    public SimplePathCacheEntry(Stat stat, byte[] data, List<String> childList, boolean hasData,
+            boolean hasChildList, long lastUpdatedTimestampMillis) {
         this.stat = stat;
-        this.data = data;
-        this.childList = childList == null || childList.size() == 0 ? Collections.EMPTY_LIST : childList;
+        this.data = hasData ? data : null;
+        if (hasChildList) {
+            this.childList = childList == null || childList.size() == 0 ? Collections.EMPTY_LIST : childList;
+        } else {
+            this.childList = null;
+        }
+        this.hasData = hasData;
+        this.hasChildList = hasChildList;
         this.lastUpdatedTimestampMillis = lastUpdatedTimestampMillis;
     }
 
@@ -60,4 +83,14 @@ public class SimplePathCacheEntry implements PathCacheEntry {
         return childList;
     }
 
+    @Override
+    public boolean hasData() {
+        return hasData;
+    }
+
+    @Override
+    public boolean hasChildList() {
+        return hasChildList;
+    }
+
 }
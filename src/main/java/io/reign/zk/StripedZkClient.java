@@ -0,0 +1,433 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import io.reign.AsyncZkClient;
+import io.reign.ZkClient;
+import io.reign.metrics.MetricRegistryManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * ZkClient spreading load over several ZooKeeper sessions, each with its own connection and event thread.
+ * 
+ * Reads are routed to a session by path hash, so all reads and watches on a given path always go through the same
+ * session (each session tracks and restores its own watches). Writes, multi() and reads under primary path prefixes
+ * (e.g. coordination paths, where a client must see its own ephemeral nodes) go through the primary session. sync()
+ * goes to the session that serves reads of the path.
+ * 
+ * Like reads from any other client, reads through a non-primary session may briefly lag writes made through the
+ * primary session; sync(path) first if that matters.
+ * 
+ * Connection state events (connected, disconnected, expired) are passed on to registered Watchers from the primary
+ * session only; watch events are passed on from all sessions.
+ * 
+ * @author ypai
+ * 
+ */
+public class StripedZkClient implements ZkClient, AsyncZkClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(StripedZkClient.class);
+
+    private final ResilientZkClient[] sessions;
+
+    private final Set<Watcher> watcherSet = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>(32, 0.9f,
+            2));
+
+    /** reads of paths under these prefixes go through the primary session */
+    private final List<String> primaryPathPrefixes = new CopyOnWriteArrayList<String>();
+
+    /**
+     * 
+     * @param zkConnectString
+     * @param zkSessionTimeout
+     * @param sessionCount
+     *            number of sessions to open; ZooKeeper picks a random ensemble member for each
+     * @throws IOException
+     */
+    public StripedZkClient(String zkConnectString, int zkSessionTimeout, int sessionCount) throws IOException {
+        this(Collections.nCopies(sessionCount, zkConnectString), zkSessionTimeout);
+    }
+
+    /**
+     * 
+     * @param zkConnectStrings
+     *            one connect string per session, e.g. to pin sessions to different ensemble members; first is primary
+     * @param zkSessionTimeout
+     * @throws IOException
+     */
+    public StripedZkClient(List<String> zkConnectStrings, int zkSessionTimeout) throws IOException {
+        if (zkConnectStrings.isEmpty()) {
+            throw new IllegalArgumentException("At least one session required!");
+        }
+
+        sessions = new ResilientZkClient[zkConnectStrings.size()];
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = new ResilientZkClient(zkConnectStrings.get(i), zkSessionTimeout);
+                sessions[i].register(new SessionWatcher(i == 0));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        logger.info("Opened {} ZooKeeper sessions", sessions.length);
+    }
+
+    public int getSessionCount() {
+        return sessions.length;
+    }
+
+    public ResilientZkClient getPrimarySession() {
+        return sessions[0];
+    }
+
+    public ResilientZkClient getSession(int index) {
+        return sessions[index];
+    }
+
+    /**
+     * 
+     * @param prefix
+     *            reads of paths starting with prefix go through the primary session
+     */
+    public void addPrimaryPathPrefix(String prefix) {
+        if (!primaryPathPrefixes.contains(prefix)) {
+            primaryPathPrefixes.add(prefix);
+        }
+    }
+
+    /**
+     * Set watch restore priority on all sessions.
+     * 
+     * @see ResilientZkClient#setWatchRestorePriority(String, int)
+     */
+    public void setWatchRestorePriority(String prefix, int priority) {
+        for (ResilientZkClient session : sessions) {
+            session.setWatchRestorePriority(prefix, priority);
+        }
+    }
+
+    /**
+     * Count operations of all sessions in hotPathTracker.
+     * 
+     * @see ResilientZkClient#setHotPathTracker(HotPathTracker)
+     */
+    public void setHotPathTracker(HotPathTracker hotPathTracker) {
+        for (ResilientZkClient session : sessions) {
+            session.setHotPathTracker(hotPathTracker);
+        }
+    }
+
+    public HotPathTracker getHotPathTracker() {
+        return sessions[0].getHotPathTracker();
+    }
+
+    /**
+     * All sessions record into the same metricRegistryManager.
+     * 
+     * @see ResilientZkClient#setMetricRegistryManager(MetricRegistryManager)
+     */
+    public void setMetricRegistryManager(MetricRegistryManager metricRegistryManager) {
+        for (ResilientZkClient session : sessions) {
+            session.setMetricRegistryManager(metricRegistryManager);
+        }
+    }
+
+    /**
+     * All sessions share rateLimiter's budgets.
+     * 
+     * @see ResilientZkClient#setRateLimiter(ZkRateLimiter)
+     */
+    public void setRateLimiter(ZkRateLimiter rateLimiter) {
+        for (ResilientZkClient session : sessions) {
+            session.setRateLimiter(rateLimiter);
+        }
+    }
+
+    public ZkRateLimiter getRateLimiter() {
+        return sessions[0].getRateLimiter();
+    }
+
+    /**
+     * @see ResilientZkClient#setOperationTimeoutMillis(long)
+     */
+    public void setOperationTimeoutMillis(long operationTimeoutMillis) {
+        for (ResilientZkClient session : sessions) {
+            session.setOperationTimeoutMillis(operationTimeoutMillis);
+        }
+    }
+
+    public long getOperationTimeoutMillis() {
+        return sessions[0].getOperationTimeoutMillis();
+    }
+
+    /**
+     * 
+     * @param path
+     * @return session serving reads of path
+     */
+    ResilientZkClient getReadSession(String path) {
+        if (sessions.length == 1) {
+            return sessions[0];
+        }
+        for (String prefix : primaryPathPrefixes) {
+            if (path.startsWith(prefix)) {
+                return sessions[0];
+            }
+        }
+        return sessions[(path.hashCode() & Integer.MAX_VALUE) % sessions.length];
+    }
+
+    @Override
+    public void register(Watcher watcher) {
+        watcherSet.add(watcher);
+    }
+
+    @Override
+    public void close() {
+        for (ResilientZkClient session : sessions) {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    @Override
+    public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
+        return getReadSession(path).exists(path, watch);
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return getReadSession(path).exists(path, watcher);
+    }
+
+    @Override
+    public List<String> getChildren(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+        return getReadSession(path).getChildren(path, watch, stat);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        return getReadSession(path).getChildren(path, watcher);
+    }
+
+    @Override
+    public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+        return getReadSession(path).getChildren(path, watch);
+    }
+
+    @Override
+    public byte[] getData(String path, boolean watch, Stat stat) throws KeeperException, InterruptedException {
+        return getReadSession(path).getData(path, watch, stat);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        return sessions[0].setData(path, data, version);
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws KeeperException,
+            InterruptedException {
+        return sessions[0].create(path, data, acl, createMode);
+    }
+
+    @Override
+    public void delete(String path, int version) throws InterruptedException, KeeperException {
+        sessions[0].delete(path, version);
+    }
+
+    @Override
+    public void sync(String path, VoidCallback cb, Object ctx) {
+        getReadSession(path).sync(path, cb, ctx);
+    }
+
+    @Override
+    public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+        return sessions[0].multi(ops);
+    }
+
+    @Override
+    public ListenableFuture<Stat> existsAsync(String path, boolean watch) {
+        return getReadSession(path).existsAsync(path, watch);
+    }
+
+    @Override
+    public ListenableFuture<byte[]> getDataAsync(String path, boolean watch, Stat stat) {
+        return getReadSession(path).getDataAsync(path, watch, stat);
+    }
+
+    @Override
+    public ListenableFuture<List<String>> getChildrenAsync(String path, boolean watch, Stat stat) {
+        return getReadSession(path).getChildrenAsync(path, watch, stat);
+    }
+
+    @Override
+    public ListenableFuture<String> createAsync(String path, byte[] data, List<ACL> acl, CreateMode createMode) {
+        return sessions[0].createAsync(path, data, acl, createMode);
+    }
+
+    @Override
+    public ListenableFuture<Stat> setDataAsync(String path, byte[] data, int version) {
+        return sessions[0].setDataAsync(path, data, version);
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAsync(String path, int version) {
+        return sessions[0].deleteAsync(path, version);
+    }
+
+    @Override
+    public ListenableFuture<Void> syncAsync(String path) {
+        return getReadSession(path).syncAsync(path);
+    }
+
+    @Override
+    public ListenableFuture<Void> syncAsync(String path, long maxAgeMillis) {
+        return getReadSession(path).syncAsync(path, maxAgeMillis);
+    }
+
+    @Override
+    public Map<String, PathReadResult> getDataBatch(Collection<String> paths, boolean watch)
+            throws InterruptedException {
+        ResilientZkClient session = getReadSession(paths);
+        if (session != null) {
+            return session.getDataBatch(paths, watch);
+        }
+
+        // issue all reads before waiting on any session's results
+        List<ListenableFuture<byte[]>> futureList = new ArrayList<ListenableFuture<byte[]>>(paths.size());
+        List<Stat> statList = new ArrayList<Stat>(paths.size());
+        for (String path : paths) {
+            Stat stat = new Stat();
+            statList.add(stat);
+            futureList.add(getReadSession(path).getDataAsync(path, watch, stat));
+        }
+
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+        int i = 0;
+        for (String path : paths) {
+            try {
+                resultMap.put(path, new PathReadResult(path, statList.get(i), futureList.get(i).get(), null));
+            } catch (ExecutionException e) {
+                resultMap.put(path, new PathReadResult(path, ResilientZkClient.toKeeperException(e, path)));
+            }
+            i++;
+        }
+        return resultMap;
+    }
+
+    @Override
+    public Map<String, PathReadResult> getChildrenBatch(Collection<String> paths, boolean watch)
+            throws InterruptedException {
+        ResilientZkClient session = getReadSession(paths);
+        if (session != null) {
+            return session.getChildrenBatch(paths, watch);
+        }
+
+        // issue all reads before waiting on any session's results
+        List<ListenableFuture<List<String>>> futureList = new ArrayList<ListenableFuture<List<String>>>(paths.size());
+        List<Stat> statList = new ArrayList<Stat>(paths.size());
+        for (String path : paths) {
+            Stat stat = new Stat();
+            statList.add(stat);
+            futureList.add(getReadSession(path).getChildrenAsync(path, watch, stat));
+        }
+
+        Map<String, PathReadResult> resultMap = new LinkedHashMap<String, PathReadResult>(paths.size() + 1, 1.0f);
+        int i = 0;
+        for (String path : paths) {
+            try {
+                resultMap.put(path, new PathReadResult(path, statList.get(i), null, futureList.get(i).get()));
+            } catch (ExecutionException e) {
+                resultMap.put(path, new PathReadResult(path, ResilientZkClient.toKeeperException(e, path)));
+            }
+            i++;
+        }
+        return resultMap;
+    }
+
+    /**
+     * 
+     * @param paths
+     * @return session serving reads of all paths; or null if they are spread over more than one session
+     */
+    ResilientZkClient getReadSession(Collection<String> paths) {
+        ResilientZkClient session = null;
+        for (String path : paths) {
+            ResilientZkClient pathSession = getReadSession(path);
+            if (session == null) {
+                session = pathSession;
+            } else if (session != pathSession) {
+                return null;
+            }
+        }
+        return session != null ? session : sessions[0];
+    }
+
+    /**
+     * Passes session events on to Watchers registered with this client.
+     */
+    private class SessionWatcher implements Watcher {
+
+        private final boolean primary;
+
+        SessionWatcher(boolean primary) {
+            this.primary = primary;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (!primary && event.getType() == EventType.None) {
+                // connection state of other sessions is handled by their ResilientZkClient
+                return;
+            }
+            for (Watcher watcher : watcherSet) {
+                watcher.process(event);
+            }
+        }
+    }
+}
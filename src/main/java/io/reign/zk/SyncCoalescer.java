@@ -0,0 +1,278 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * Coalesces concurrent sync() requests on the same path: at most one sync per path is outstanding; callers arriving
+ * while it is outstanding share a single follow-up sync issued when it completes (joining the outstanding one would
+ * not cover writes committed after it was issued). Callers may also accept a recent enough sync and skip the round
+ * trip entirely.
+ * 
+ * Returned futures fail with OperationTimeoutException if the sync does not complete within timeoutMillis, so a lost
+ * callback cannot hang callers.
+ * 
+ * @author ypai
+ * 
+ */
+public abstract class SyncCoalescer {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    /** max number of paths whose last sync time is remembered */
+    private static final int MAX_PATHS = 4096;
+
+    private final ConcurrentMap<String, PathSync> pathSyncMap = new ConcurrentLinkedHashMap.Builder<String, PathSync>()
+            .maximumWeightedCapacity(MAX_PATHS).initialCapacity(64).concurrencyLevel(4).build();
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /** fails syncs at their deadline; created on first use */
+    private volatile ScheduledExecutorService timeoutExecutorService;
+
+    private final AtomicLong issuedCount = new AtomicLong(0);
+
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    private final AtomicLong skippedCount = new AtomicLong(0);
+
+    /**
+     * Send sync() to ZooKeeper.
+     * 
+     * @param path
+     * @return future completing when ZooKeeper has acknowledged the sync
+     */
+    protected abstract ListenableFuture<Void> issue(String path);
+
+    /**
+     * 
+     * @param path
+     * @return future completing once all writes committed before this call are visible to the session
+     */
+    public ListenableFuture<Void> sync(String path) {
+        return sync(path, 0);
+    }
+
+    /**
+     * 
+     * @param path
+     * @param maxAgeMillis
+     *            completes immediately if a sync on path issued no more than maxAgeMillis ago has completed; 0 to
+     *            always sync
+     * @return
+     */
+    public ListenableFuture<Void> sync(String path, long maxAgeMillis) {
+        PathSync pathSync = pathSyncMap.get(path);
+        if (pathSync == null) {
+            PathSync newPathSync = new PathSync(path);
+            pathSync = pathSyncMap.putIfAbsent(path, newPathSync);
+            if (pathSync == null) {
+                pathSync = newPathSync;
+            }
+        }
+        return pathSync.sync(maxAgeMillis);
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 
+     * @return number of syncs sent to ZooKeeper
+     */
+    public long getIssuedCount() {
+        return issuedCount.get();
+    }
+
+    /**
+     * 
+     * @return number of sync requests sharing a sync issued for another caller
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * 
+     * @return number of sync requests satisfied by a recent sync
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public void close() {
+        ScheduledExecutorService executorService = timeoutExecutorService;
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    ScheduledExecutorService getTimeoutExecutorService() {
+        if (timeoutExecutorService == null) {
+            synchronized (this) {
+                if (timeoutExecutorService == null) {
+                    timeoutExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                            .setNameFormat(getClass().getSimpleName() + ".timeout-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return timeoutExecutorService;
+    }
+
+    /**
+     * Sync state of one path.
+     */
+    private class PathSync {
+        private final String path;
+
+        /** outstanding sync; null if none */
+        private SettableFuture<Void> inFlight;
+
+        private long inFlightIssuedMillis;
+
+        /** shared by callers arriving while a sync is outstanding; null if none */
+        private SettableFuture<Void> next;
+
+        /** issue time of most recent successful sync */
+        private volatile long lastSyncedMillis = -1;
+
+        PathSync(String path) {
+            this.path = path;
+        }
+
+        ListenableFuture<Void> sync(long maxAgeMillis) {
+            long nowMillis = System.currentTimeMillis();
+            if (maxAgeMillis > 0 && lastSyncedMillis >= 0 && nowMillis - lastSyncedMillis <= maxAgeMillis) {
+                skippedCount.incrementAndGet();
+                return Futures.immediateFuture(null);
+            }
+
+            SettableFuture<Void> future;
+            synchronized (this) {
+                if (inFlight != null && inFlightIssuedMillis >= nowMillis - maxAgeMillis && maxAgeMillis > 0) {
+                    // outstanding sync is recent enough
+                    coalescedCount.incrementAndGet();
+                    return inFlight;
+                }
+                if (inFlight != null) {
+                    if (next == null) {
+                        next = SettableFuture.create();
+                    } else {
+                        coalescedCount.incrementAndGet();
+                    }
+                    return next;
+                }
+                future = SettableFuture.create();
+                inFlight = future;
+                inFlightIssuedMillis = nowMillis;
+            }
+            issue(future, nowMillis);
+            return future;
+        }
+
+        void issue(final SettableFuture<Void> future, final long issuedMillis) {
+            issuedCount.incrementAndGet();
+
+            // fail at deadline in case callback never comes
+            ScheduledFuture<?> scheduledTimeout = null;
+            try {
+                scheduledTimeout = getTimeoutExecutorService().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        completed(future, issuedMillis,
+                                KeeperException.create(KeeperException.Code.OPERATIONTIMEOUT, path), null);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // closed: no deadline
+            }
+
+            final ScheduledFuture<?> timeout = scheduledTimeout;
+
+            ListenableFuture<Void> issued;
+            try {
+                issued = SyncCoalescer.this.issue(path);
+            } catch (RuntimeException e) {
+                completed(future, issuedMillis, e, timeout);
+                return;
+            }
+            Futures.addCallback(issued, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    completed(future, issuedMillis, null, timeout);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    completed(future, issuedMillis, t, timeout);
+                }
+            });
+        }
+
+        void completed(SettableFuture<Void> future, long issuedMillis, Throwable error, ScheduledFuture<?> timeout) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            SettableFuture<Void> nextFuture = null;
+            long nowMillis = System.currentTimeMillis();
+            synchronized (this) {
+                if (future.isDone()) {
+                    // already timed out or completed
+                    return;
+                }
+                if (error == null && issuedMillis > lastSyncedMillis) {
+                    lastSyncedMillis = issuedMillis;
+                }
+                if (inFlight == future) {
+                    inFlight = next;
+                    inFlightIssuedMillis = nowMillis;
+                    nextFuture = next;
+                    next = null;
+                }
+            }
+            if (nextFuture != null) {
+                issue(nextFuture, nowMillis);
+            }
+            if (error == null) {
+                future.set(null);
+            } else {
+                future.setException(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.Watcher;
+
+/**
+ * Tracks which Watchers are registered on which paths, stored as a trie of path segments: common path prefixes are
+ * stored once, and a path with a single Watcher (the common case) holds it directly instead of in a Set. Supports
+ * enumerating and removing all watched paths under a path.
+ * 
+ * Thread-safe: lookups do not lock; updates lock the affected node (and its parent when pruning empty nodes).
+ * 
+ * @author ypai
+ * 
+ */
+public class WatchRegistry {
+
+    private final Node root = new Node(null, "");
+
+    /** number of paths with at least one Watcher */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * 
+     * @param path
+     * @param watcher
+     * @return true if watcher was not already registered on path
+     */
+    public boolean add(String path, Watcher watcher) {
+        while (true) {
+            Node node = getOrCreateNode(path);
+            synchronized (node) {
+                if (node.removed) {
+                    // pruned before we could add: try again
+                    continue;
+                }
+                Object watchers = node.watchers;
+                if (watchers == null) {
+                    node.watchers = watcher;
+                    size.incrementAndGet();
+                    return true;
+                }
+                if (watchers instanceof Watcher) {
+                    if (watchers.equals(watcher)) {
+                        return false;
+                    }
+                    node.watchers = new Watcher[] { (Watcher) watchers, watcher };
+                    return true;
+                }
+                Watcher[] watcherArray = (Watcher[]) watchers;
+                for (Watcher existing : watcherArray) {
+                    if (existing.equals(watcher)) {
+                        return false;
+                    }
+                }
+                Watcher[] newWatcherArray = new Watcher[watcherArray.length + 1];
+                System.arraycopy(watcherArray, 0, newWatcherArray, 0, watcherArray.length);
+                newWatcherArray[watcherArray.length] = watcher;
+                node.watchers = newWatcherArray;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param path
+     * @return copy of Watchers registered on path; empty if none
+     */
+    public Set<Watcher> get(String path) {
+        Node node = getNode(path);
+        return node == null ? new HashSet<Watcher>(0) : toSet(node.watchers);
+    }
+
+    /**
+     * 
+     * @param path
+     * @param watcher
+     * @return true if watcher was registered on path
+     */
+    public boolean remove(String path, Watcher watcher) {
+        Node node = getNode(path);
+        if (node == null) {
+            return false;
+        }
+        boolean removed = false;
+        synchronized (node) {
+            Object watchers = node.watchers;
+            if (watchers instanceof Watcher) {
+                if (watchers.equals(watcher)) {
+                    node.watchers = null;
+                    size.decrementAndGet();
+                    removed = true;
+                }
+            } else if (watchers != null) {
+                Watcher[] watcherArray = (Watcher[]) watchers;
+                for (int i = 0; i < watcherArray.length; i++) {
+                    if (watcherArray[i].equals(watcher)) {
+                        if (watcherArray.length == 2) {
+                            node.watchers = watcherArray[1 - i];
+                        } else {
+                            Watcher[] newWatcherArray = new Watcher[watcherArray.length - 1];
+                            System.arraycopy(watcherArray, 0, newWatcherArray, 0, i);
+                            System.arraycopy(watcherArray, i + 1, newWatcherArray, i, watcherArray.length - i - 1);
+                            node.watchers = newWatcherArray;
+                        }
+                        removed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        if (removed) {
+            prune(node);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all Watchers registered on path, e.g. when the watch has fired.
+     * 
+     * @param path
+     * @return Watchers that were registered on path
+     */
+    public Set<Watcher> removeAll(String path) {
+        Node node = getNode(path);
+        if (node == null) {
+            return new HashSet<Watcher>(0);
+        }
+        Object watchers;
+        synchronized (node) {
+            watchers = node.watchers;
+            if (watchers != null) {
+                node.watchers = null;
+                size.decrementAndGet();
+            }
+        }
+        prune(node);
+        return toSet(watchers);
+    }
+
+    /**
+     * Remove all Watchers registered on path and paths below it.
+     * 
+     * @param path
+     * @return number of paths that had Watchers
+     */
+    public int removeSubtree(String path) {
+        Node node = getNode(path);
+        if (node == null) {
+            return 0;
+        }
+        int removedCount = clearSubtree(node);
+        prune(node);
+        return removedCount;
+    }
+
+    /**
+     * 
+     * @return all watched paths
+     */
+    public List<String> getPaths() {
+        return getPaths("/");
+    }
+
+    /**
+     * 
+     * @param path
+     * @return path (if watched) and watched paths below it
+     */
+    public List<String> getPaths(String path) {
+        List<String> pathList = new ArrayList<String>();
+        Node node = getNode(path);
+        if (node != null) {
+            StringBuilder sb = new StringBuilder(path.length() + 32);
+            if (!"/".equals(path)) {
+                sb.append(path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+            }
+            collectPaths(node, sb, pathList);
+        }
+        return pathList;
+    }
+
+    /**
+     * 
+     * @return number of watched paths
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    public void clear() {
+        removeSubtree("/");
+    }
+
+    Node getNode(String path) {
+        Node node = root;
+        int start = 1;
+        int length = path.length();
+        while (start < length && node != null) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                Map<String, Node> children = node.children;
+                node = children == null ? null : children.get(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    Node getOrCreateNode(String path) {
+        Node node = root;
+        int start = 1;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                String name = path.substring(start, end);
+                Map<String, Node> children = node.children;
+                Node child = children == null ? null : children.get(name);
+                if (child == null) {
+                    synchronized (node) {
+                        if (node.removed) {
+                            // pruned while we were descending: start over
+                            return getOrCreateNode(path);
+                        }
+                        if (node.children == null) {
+                            node.children = new ConcurrentHashMap<String, Node>(4, 0.75f, 1);
+                        }
+                        child = node.children.get(name);
+                        if (child == null) {
+                            child = new Node(node, name);
+                            node.children.put(name, child);
+                        }
+                    }
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Detach node and any ancestors left without Watchers or children.
+     */
+    void prune(Node node) {
+        while (node.parent != null) {
+            Node parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || node.watchers != null
+                            || (node.children != null && !node.children.isEmpty())) {
+                        return;
+                    }
+                    node.removed = true;
+                    parent.children.remove(node.name);
+                }
+            }
+            node = parent;
+        }
+    }
+
+    int clearSubtree(Node node) {
+        int removedCount = 0;
+        synchronized (node) {
+            if (node.watchers != null) {
+                node.watchers = null;
+                size.decrementAndGet();
+                removedCount++;
+            }
+        }
+        ConcurrentMap<String, Node> children = node.children;
+        if (children != null) {
+            for (Node child : children.values()) {
+                removedCount += clearSubtree(child);
+                synchronized (node) {
+                    synchronized (child) {
+                        if (child.watchers == null && (child.children == null || child.children.isEmpty())) {
+                            child.removed = true;
+                            children.remove(child.name);
+                        }
+                    }
+                }
+            }
+        }
+        return removedCount;
+    }
+
+    void collectPaths(Node node, StringBuilder sb, List<String> pathList) {
+        if (node.watchers != null) {
+            pathList.add(sb.length() == 0 ? "/" : sb.toString());
+        }
+        Map<String, Node> children = node.children;
+        if (children != null) {
+            int length = sb.length();
+            for (Node child : children.values()) {
+                sb.append('/').append(child.name);
+                collectPaths(child, sb, pathList);
+                sb.setLength(length);
+            }
+        }
+    }
+
+    static Set<Watcher> toSet(Object watchers) {
+        if (watchers == null) {
+            return new HashSet<Watcher>(0);
+        }
+        if (watchers instanceof Watcher) {
+            Set<Watcher> watcherSet = new HashSet<Watcher>(2, 1.0f);
+            watcherSet.add((Watcher) watchers);
+            return watcherSet;
+        }
+        Watcher[] watcherArray = (Watcher[]) watchers;
+        Set<Watcher> watcherSet = new HashSet<Watcher>(watcherArray.length * 2);
+        Collections.addAll(watcherSet, watcherArray);
+        return watcherSet;
+    }
+
+    /**
+     * One path segment.
+     */
+    static class Node {
+        final Node parent;
+        final String name;
+
+        /** created on first child */
+        volatile ConcurrentMap<String, Node> children;
+
+        /** null, a single Watcher or a Watcher[] */
+        volatile Object watchers;
+
+        /** set when detached from parent; no longer usable */
+        volatile boolean removed = false;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import io.reign.metrics.MetricRegistryManager;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+
+/**
+ * Latency and outcome metrics for ZooKeeper operations issued through ResilientZkClient, published through a
+ * MetricRegistryManager so they can be exported by MetricsService like any other application metrics. For each
+ * operation type (e.g. "getData", "createAsync"):
+ * 
+ * <pre>
+ * zk.[operation]                  timer:  from first attempt until final outcome, including retries and waits
+ * zk.[operation].[outcome]        counter:  final outcome, "ok" or lowercase error code, e.g. "nonode", "connectionloss"
+ * zk.[operation].retried          counter:  operations that needed more than one attempt
+ * zk.[operation].retries          counter:  total retry attempts
+ * zk.[operation].backoffMillis    counter:  total time spent waiting for connection or backing off between attempts
+ * </pre>
+ * 
+ * Metrics are looked up from the MetricRegistryManager on every update, so registry rotation is handled.
+ * 
+ * @author ypai
+ * 
+ */
+public class ZkClientMetrics {
+
+    public static final String DEFAULT_PREFIX = "zk.";
+
+    private final String prefix;
+
+    private volatile MetricRegistryManager metricRegistryManager;
+
+    public ZkClientMetrics() {
+        this(DEFAULT_PREFIX);
+    }
+
+    public ZkClientMetrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public MetricRegistryManager getMetricRegistryManager() {
+        return metricRegistryManager;
+    }
+
+    /**
+     * 
+     * @param metricRegistryManager
+     *            null to stop recording
+     */
+    public void setMetricRegistryManager(MetricRegistryManager metricRegistryManager) {
+        this.metricRegistryManager = metricRegistryManager;
+    }
+
+    public boolean isEnabled() {
+        return metricRegistryManager != null;
+    }
+
+    /**
+     * 
+     * @param operation
+     * @param startNanos
+     *            System.nanoTime() at first attempt
+     * @param code
+     *            final outcome; null if operation failed with something other than a KeeperException
+     * @param retries
+     * @param backoffMillis
+     */
+    public void record(String operation, long startNanos, Code code, int retries, long backoffMillis) {
+        MetricRegistryManager registryManager = metricRegistryManager;
+        if (registryManager == null || operation == null) {
+            return;
+        }
+
+        String name = prefix + operation;
+        registryManager.timer(name).update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        registryManager.counter(name + "." + getOutcome(code)).inc();
+        if (retries > 0) {
+            registryManager.counter(name + ".retried").inc();
+            registryManager.counter(name + ".retries").inc(retries);
+        }
+        if (backoffMillis > 0) {
+            registryManager.counter(name + ".backoffMillis").inc(backoffMillis);
+        }
+    }
+
+    String getOutcome(Code code) {
+        if (code == null) {
+            return "error";
+        }
+        if (code == Code.OK) {
+            return "ok";
+        }
+        return code.name().toLowerCase();
+    }
+
+    static Code getCode(Throwable t) {
+        if (t instanceof KeeperException) {
+            return ((KeeperException) t).code();
+        }
+        return null;
+    }
+}
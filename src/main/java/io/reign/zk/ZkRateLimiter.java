@@ -0,0 +1,395 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import io.reign.metrics.MetricRegistryManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * Client-side admission control: token buckets limit the rate of reads, writes and creates sent to ZooKeeper, with
+ * paths assigned a priority by prefix.
+ * 
+ * When a bucket is empty: HIGH priority operations (e.g. presence heartbeats, locks) proceed without waiting, running
+ * the bucket into debt so lower priorities yield to them; NORMAL operations wait for a token up to maxWaitMillis and
+ * then proceed; LOW priority operations (e.g. metrics export, data structure scans) only proceed while a reserve of
+ * tokens is left for higher priorities, and are shed with OperationTimeoutException if none frees up within
+ * maxWaitMillis.
+ * 
+ * @author ypai
+ * 
+ */
+public class ZkRateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZkRateLimiter.class);
+
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+    /** fraction of a bucket's burst that LOW priority operations leave for others */
+    public static final double DEFAULT_LOW_PRIORITY_RESERVE = 0.25;
+
+    public static enum OpType {
+        READ, WRITE, CREATE
+    }
+
+    public static enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private final TokenBucket[] buckets = new TokenBucket[OpType.values().length];
+
+    /** indexed by OpType then Priority: admitted, delayed, shed, waitMillis */
+    private final AtomicLong[][] counters = new AtomicLong[OpType.values().length * Priority.values().length][4];
+
+    private final ConcurrentMap<String, Priority> priorityMap = new ConcurrentHashMap<String, Priority>(8, 0.9f, 1);
+
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+
+    private volatile double lowPriorityReserve = DEFAULT_LOW_PRIORITY_RESERVE;
+
+    private volatile long sinceTimestamp = System.currentTimeMillis();
+
+    /**
+     * 
+     * @param readsPerSecond
+     * @param writesPerSecond
+     * @param createsPerSecond
+     *            limits for each type of operation; burst is one second's worth; <= 0 for unlimited
+     */
+    public ZkRateLimiter(double readsPerSecond, double writesPerSecond, double createsPerSecond) {
+        setRate(OpType.READ, readsPerSecond, readsPerSecond);
+        setRate(OpType.WRITE, writesPerSecond, writesPerSecond);
+        setRate(OpType.CREATE, createsPerSecond, createsPerSecond);
+        for (int i = 0; i < counters.length; i++) {
+            for (int j = 0; j < counters[i].length; j++) {
+                counters[i][j] = new AtomicLong(0);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param opType
+     * @param permitsPerSecond
+     *            <= 0 for unlimited
+     * @param burst
+     *            maximum tokens accumulated while idle
+     */
+    public void setRate(OpType opType, double permitsPerSecond, double burst) {
+        buckets[opType.ordinal()] = permitsPerSecond > 0 ? new TokenBucket(permitsPerSecond, Math.max(1, burst))
+                : null;
+    }
+
+    /**
+     * Assign priority to operations on paths under pathPrefix; longest matching prefix wins. Other paths are NORMAL.
+     * 
+     * @param pathPrefix
+     * @param priority
+     */
+    public void setPriority(String pathPrefix, Priority priority) {
+        priorityMap.put(pathPrefix, priority);
+    }
+
+    /**
+     * Assign priority to paths under pathPrefix unless already assigned.
+     * 
+     * @param pathPrefix
+     * @param priority
+     */
+    public void setPriorityIfAbsent(String pathPrefix, Priority priority) {
+        priorityMap.putIfAbsent(pathPrefix, priority);
+    }
+
+    public Priority getPriority(String path) {
+        Priority priority = Priority.NORMAL;
+        int matchedPrefixLength = -1;
+        for (Map.Entry<String, Priority> entry : priorityMap.entrySet()) {
+            String pathPrefix = entry.getKey();
+            if (path.startsWith(pathPrefix) && pathPrefix.length() > matchedPrefixLength) {
+                priority = entry.getValue();
+                matchedPrefixLength = pathPrefix.length();
+            }
+        }
+        return priority;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public double getLowPriorityReserve() {
+        return lowPriorityReserve;
+    }
+
+    public void setLowPriorityReserve(double lowPriorityReserve) {
+        this.lowPriorityReserve = lowPriorityReserve;
+    }
+
+    /**
+     * Wait for admission of an operation on path.
+     * 
+     * @param opType
+     * @param path
+     * @throws KeeperException.OperationTimeoutException
+     *             if shed
+     * @throws InterruptedException
+     */
+    public void acquire(OpType opType, String path) throws KeeperException, InterruptedException {
+        acquire(opType, path, getPriority(path), true);
+    }
+
+    /**
+     * Admission without waiting: NORMAL operations are admitted regardless, LOW operations are shed if no token is
+     * available.
+     * 
+     * @param opType
+     * @param path
+     * @return false if shed
+     */
+    public boolean tryAcquire(OpType opType, String path) {
+        try {
+            acquire(opType, path, getPriority(path), false);
+            return true;
+        } catch (KeeperException e) {
+            return false;
+        } catch (InterruptedException e) {
+            // does not wait
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    void acquire(OpType opType, String path, Priority priority, boolean wait) throws KeeperException,
+            InterruptedException {
+        long startMillis = System.currentTimeMillis();
+        long deadlineMillis = wait ? startMillis + maxWaitMillis : startMillis;
+        boolean delayed = false;
+        while (true) {
+            long retryMillis = admit(opType, path, priority, startMillis, deadlineMillis, delayed);
+            if (retryMillis == 0) {
+                return;
+            }
+            delayed = true;
+            Thread.sleep(retryMillis);
+        }
+    }
+
+    /**
+     * One admission attempt for an asynchronous operation, which waits by trying again later rather than blocking:
+     * the same bounded wait as acquire().
+     * 
+     * @param opType
+     * @param path
+     * @param startMillis
+     *            when the operation first asked for admission
+     * @param delayed
+     *            true if an earlier attempt was told to wait
+     * @return 0 if admitted; otherwise millis to wait before the next attempt
+     * @throws KeeperException.OperationTimeoutException
+     *             if shed
+     */
+    long admit(OpType opType, String path, long startMillis, boolean delayed) throws KeeperException {
+        return admit(opType, path, getPriority(path), startMillis, startMillis + maxWaitMillis, delayed);
+    }
+
+    long admit(OpType opType, String path, Priority priority, long startMillis, long deadlineMillis, boolean delayed)
+            throws KeeperException {
+        TokenBucket bucket = buckets[opType.ordinal()];
+        AtomicLong[] opCounters = counters[opType.ordinal() * Priority.values().length + priority.ordinal()];
+        if (bucket == null) {
+            opCounters[0].incrementAndGet();
+            return 0;
+        }
+
+        double threshold;
+        if (priority == Priority.HIGH) {
+            // take what's left, down to one burst of debt
+            threshold = 1 - bucket.burst;
+        } else if (priority == Priority.NORMAL) {
+            threshold = 1;
+        } else {
+            threshold = 1 + bucket.burst * lowPriorityReserve;
+        }
+
+        long waitMillis = bucket.take(threshold);
+        long nowMillis = System.currentTimeMillis();
+        if (waitMillis != 0) {
+            if (priority != Priority.HIGH && nowMillis < deadlineMillis) {
+                return Math.max(1, Math.min(waitMillis, deadlineMillis - nowMillis));
+            }
+            if (priority == Priority.LOW) {
+                opCounters[2].incrementAndGet();
+                if (delayed) {
+                    opCounters[3].addAndGet(nowMillis - startMillis);
+                }
+                throw KeeperException.create(KeeperException.Code.OPERATIONTIMEOUT, path);
+            }
+            // over budget but admitted anyway
+            bucket.takeUnconditionally();
+        }
+
+        opCounters[0].incrementAndGet();
+        if (delayed) {
+            opCounters[1].incrementAndGet();
+            opCounters[3].addAndGet(nowMillis - startMillis);
+        }
+        return 0;
+    }
+
+    public long getAdmittedCount(OpType opType, Priority priority) {
+        return getCounter(opType, priority, 0);
+    }
+
+    /**
+     * 
+     * @return number of admitted operations that had to wait for a token
+     */
+    public long getDelayedCount(OpType opType, Priority priority) {
+        return getCounter(opType, priority, 1);
+    }
+
+    public long getShedCount(OpType opType, Priority priority) {
+        return getCounter(opType, priority, 2);
+    }
+
+    public long getWaitMillis(OpType opType, Priority priority) {
+        return getCounter(opType, priority, 3);
+    }
+
+    long getCounter(OpType opType, Priority priority, int index) {
+        return counters[opType.ordinal() * Priority.values().length + priority.ordinal()][index].get();
+    }
+
+    public void reset() {
+        for (AtomicLong[] opCounters : counters) {
+            for (AtomicLong counter : opCounters) {
+                counter.set(0);
+            }
+        }
+        sinceTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * 
+     * @return map of "since" to reset timestamp and "[opType].[priority]" to counts
+     */
+    public Map<String, Object> getReport() {
+        Map<String, Object> report = new HashMap<String, Object>(16, 1.0f);
+        report.put("since", sinceTimestamp);
+        for (OpType opType : OpType.values()) {
+            for (Priority priority : Priority.values()) {
+                Map<String, Long> counts = new HashMap<String, Long>(8, 1.0f);
+                counts.put("admitted", getAdmittedCount(opType, priority));
+                counts.put("delayed", getDelayedCount(opType, priority));
+                counts.put("shed", getShedCount(opType, priority));
+                counts.put("waitMillis", getWaitMillis(opType, priority));
+                report.put(opType.name().toLowerCase() + "." + priority.name().toLowerCase(), counts);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Register gauges [prefix][opType].[priority].delayed and .shed for each type and priority.
+     * 
+     * @param registryManager
+     * @param prefix
+     *            e.g. "zk.throttle."
+     */
+    public void registerGauges(MetricRegistryManager registryManager, String prefix) {
+        for (final OpType opType : OpType.values()) {
+            for (final Priority priority : Priority.values()) {
+                String name = prefix + opType.name().toLowerCase() + "." + priority.name().toLowerCase();
+                registryManager.gauge(name + ".delayed", new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return getDelayedCount(opType, priority);
+                    }
+                });
+                registryManager.gauge(name + ".shed", new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return getShedCount(opType, priority);
+                    }
+                });
+            }
+        }
+        logger.debug("Registered throttling gauges:  prefix={}", prefix);
+    }
+
+    /**
+     * Tokens refill continuously at permitsPerSecond up to burst; balance may go negative (debt) for HIGH priority.
+     */
+    static class TokenBucket {
+        final double permitsPerSecond;
+        final double burst;
+
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        TokenBucket(double permitsPerSecond, double burst) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        /**
+         * Take a token if at least threshold tokens are available.
+         * 
+         * @return 0 if taken; otherwise estimated millis until threshold is reached
+         */
+        synchronized long take(double threshold) {
+            refill();
+            if (tokens >= threshold) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((threshold - tokens) * 1000 / permitsPerSecond));
+        }
+
+        synchronized void takeUnconditionally() {
+            refill();
+            tokens = Math.max(tokens - 1, -burst);
+        }
+
+        synchronized double getTokens() {
+            refill();
+            return tokens;
+        }
+
+        private void refill() {
+            long nowNanos = System.nanoTime();
+            tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * permitsPerSecond / 1000000000d);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
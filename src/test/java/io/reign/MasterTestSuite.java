@@ -8,6 +8,8 @@ import io.reign.data.DataServiceTestSuite;
 import io.reign.mesg.MessagingServiceTestSuite;
 import io.reign.metrics.MetricsServiceTestSuite;
 import io.reign.presence.PresenceServiceTestSuite;
+import io.reign.util.StripedDispatcherTest;
+import io.reign.zk.ZkClientTestSuite;
 
 import java.io.File;
 import java.util.UUID;
@@ -28,7 +30,8 @@ import org.slf4j.LoggerFactory;
 @RunWith(Suite.class)
 @SuiteClasses({ PresenceServiceTestSuite.class, DataServiceTestSuite.class, CoordServiceTestSuite.class,
         ConfServiceTestSuite.class, MetricsServiceTestSuite.class, MessagingServiceTestSuite.class,
-        ObserverManagerTest.class, DefaultPathSchemeTest.class })
+        ObserverManagerTest.class, DefaultPathSchemeTest.class, ZkClientTestSuite.class,
+        StripedDispatcherTest.class, SubtreeMirrorTest.class })
 public class MasterTestSuite {
 
 	private static final Logger logger = LoggerFactory.getLogger(MasterTestSuite.class);
@@ -16,15 +16,25 @@
 
 package io.reign;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.junit.Test;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+
 public class ObserverManagerTest {
 
     @Test
@@ -53,4 +63,178 @@ public class ObserverManagerTest {
         assertTrue(ObserverManager.childListsDiffer(list1, list3));
         assertTrue(ObserverManager.childListsDiffer(list1, list4));
     }
+
+    @Test
+    public void testChildListDiff() throws Exception {
+        List<String> previous = new ArrayList<String>();
+        previous.add("C");
+        previous.add("A");
+        previous.add("B");
+        List<String> updated = new ArrayList<String>();
+        updated.add("D");
+        updated.add("B");
+        updated.add("A");
+
+        ChildListDiff diff = ChildListDiff.diff(updated, previous);
+        assertEquals(Collections.singletonList("D"), diff.getAddedChildList());
+        assertEquals(Collections.singletonList("C"), diff.getRemovedChildList());
+
+        assertTrue(ChildListDiff.diff(null, Collections.EMPTY_LIST).isEmpty());
+        assertEquals(Arrays.asList("A", "B", "C"), ChildListDiff.diff(null, previous).getRemovedChildList());
+
+        // observers sharing a previous list share the diff
+        ObserverManager.ChildListDiffer childListDiffer = new ObserverManager.ChildListDiffer(updated);
+        assertTrue(childListDiffer.diff(previous) == childListDiffer.diff(previous));
+        assertTrue(childListDiffer.diff(updated).isEmpty());
+    }
+
+    @Test
+    public void testRecheck() throws Exception {
+        ZkClient zkClient = MasterTestSuite.getReign().getZkClient();
+        String path = "/observer-recheck-test-" + System.currentTimeMillis();
+        zkClient.create(path, "current".getBytes("UTF-8"), Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+
+        ObserverManager<AbstractObserver> observerManager = new ObserverManager<AbstractObserver>(zkClient);
+        observerManager.init();
+        observerManager.setSweeperIntervalMillis(200);
+
+        final AtomicInteger dataChangedCount = new AtomicInteger(0);
+        AbstractObserver observer = new AbstractObserver() {
+            @Override
+            public void nodeDataChanged(byte[] updatedData, byte[] previousData) {
+                dataChangedCount.incrementAndGet();
+            }
+        };
+
+        try {
+            observerManager.put(path, observer);
+
+            // simulate a missed change
+            synchronized (observer) {
+                observer.setData("stale".getBytes("UTF-8"));
+            }
+            WatchedEvent event = new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, path);
+            observerManager.scheduleCheck(event);
+            observerManager.scheduleCheck(event);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dataChangedCount.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(500);
+
+            assertEquals(1, dataChangedCount.get());
+            synchronized (observer) {
+                assertEquals("current", new String(observer.getData(), "UTF-8"));
+            }
+        } finally {
+            observerManager.removeAll(path);
+            observerManager.destroy();
+        }
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        ZkClient zkClient = MasterTestSuite.getReign().getZkClient();
+        String path = "/observer-putall-test-" + System.currentTimeMillis();
+        String missingPath = path + "-missing";
+        zkClient.create(path, "data".getBytes("UTF-8"), Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+        zkClient.create(path + "/child", new byte[0], Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+
+        ObserverManager<AbstractObserver> observerManager = new ObserverManager<AbstractObserver>(zkClient);
+        observerManager.init();
+
+        final AtomicInteger createdCount = new AtomicInteger(0);
+        AbstractObserver observer1 = new AbstractObserver() {
+        };
+        AbstractObserver observer2 = new AbstractObserver() {
+        };
+        AbstractObserver missingObserver = new AbstractObserver() {
+            @Override
+            public void nodeCreated(byte[] data, List<String> childList) {
+                createdCount.incrementAndGet();
+            }
+        };
+
+        Multimap<String, AbstractObserver> pathObserverMultimap = ArrayListMultimap.create();
+        pathObserverMultimap.put(path, observer1);
+        pathObserverMultimap.put(path, observer2);
+        pathObserverMultimap.put(missingPath, missingObserver);
+
+        try {
+            observerManager.putAll(pathObserverMultimap);
+
+            for (AbstractObserver observer : new AbstractObserver[] { observer1, observer2 }) {
+                assertEquals(path, observer.getPath());
+                assertEquals("data", new String(observer.getData(), "UTF-8"));
+                assertEquals(Collections.singletonList("child"), observer.getChildList());
+            }
+            assertEquals(null, missingObserver.getData());
+            assertTrue(missingObserver.getChildList().isEmpty());
+
+            // watch set on missing path
+            zkClient.create(missingPath, new byte[0], Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (createdCount.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, createdCount.get());
+        } finally {
+            observerManager.removeAll(path);
+            observerManager.removeAll(missingPath);
+            observerManager.destroy();
+        }
+    }
+
+    @Test
+    public void testDebounce() throws Exception {
+        ZkClient zkClient = MasterTestSuite.getReign().getZkClient();
+        String path = "/observer-debounce-test-" + System.currentTimeMillis();
+        zkClient.create(path, new byte[0], Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+
+        ObserverManager<AbstractObserver> observerManager = new ObserverManager<AbstractObserver>(zkClient);
+        observerManager.init();
+        observerManager.setDebounce(500, 3000);
+
+        final AtomicInteger debouncedCount = new AtomicInteger(0);
+        final AtomicInteger debouncedChildCount = new AtomicInteger(0);
+        AbstractObserver debouncedObserver = new AbstractObserver() {
+            @Override
+            public void nodeChildrenChanged(List<String> updatedChildList, List<String> previousChildList) {
+                debouncedCount.incrementAndGet();
+                debouncedChildCount.set(updatedChildList.size());
+            }
+        };
+        final AtomicInteger undebouncedCount = new AtomicInteger(0);
+        AbstractObserver undebouncedObserver = new AbstractObserver() {
+            @Override
+            public void nodeChildrenChanged(List<String> updatedChildList, List<String> previousChildList) {
+                undebouncedCount.incrementAndGet();
+            }
+        };
+        undebouncedObserver.setDebounced(false);
+
+        try {
+            observerManager.put(path, debouncedObserver);
+            observerManager.put(path, undebouncedObserver);
+
+            for (int i = 0; i < 10; i++) {
+                zkClient.create(path + "/child" + i, new byte[0], Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (debouncedChildCount.get() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+
+            // one delivery of the final state
+            assertEquals(1, debouncedCount.get());
+            assertEquals(10, debouncedChildCount.get());
+            assertTrue(undebouncedCount.get() > 0);
+            assertEquals(1, observerManager.getDebounceFlushCount());
+        } finally {
+            observerManager.removeAll(path);
+            observerManager.destroy();
+        }
+    }
 }
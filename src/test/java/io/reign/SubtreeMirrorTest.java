@@ -0,0 +1,147 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.zookeeper.CreateMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubtreeMirrorTest {
+
+    private ZkClient zkClient;
+
+    private ObserverManager<Observer> observerManager;
+
+    private String rootPath;
+
+    private final List<String> eventList = new CopyOnWriteArrayList<String>();
+
+    private final SubtreeObserver subtreeObserver = new SubtreeObserver() {
+        @Override
+        public void nodeAdded(String path, byte[] data) {
+            eventList.add("added " + path);
+        }
+
+        @Override
+        public void nodeDataChanged(String path, byte[] updatedData, byte[] previousData) {
+            eventList.add("changed " + path);
+        }
+
+        @Override
+        public void nodeRemoved(String path, byte[] previousData) {
+            eventList.add("removed " + path);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        zkClient = MasterTestSuite.getReign().getZkClient();
+        rootPath = "/subtree-mirror-test-" + System.currentTimeMillis();
+        observerManager = new ObserverManager<Observer>(zkClient);
+        observerManager.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        observerManager.destroy();
+    }
+
+    @Test
+    public void testMirror() throws Exception {
+        create(rootPath);
+        create(rootPath + "/a");
+        create(rootPath + "/a/x");
+        create(rootPath + "/b");
+
+        SubtreeMirror subtreeMirror = observerManager.observeSubtree(rootPath, subtreeObserver);
+        try {
+            assertEquals(new HashSet<String>(Arrays.asList(rootPath, rootPath + "/a", rootPath + "/a/x", rootPath
+                    + "/b")), subtreeMirror.getPaths());
+            assertEquals(4, eventList.size());
+            assertEquals("added " + rootPath, eventList.get(0));
+            eventList.clear();
+
+            // added deeper in tree
+            create(rootPath + "/a/y");
+            waitForEvents(1);
+            assertEquals("added " + rootPath + "/a/y", eventList.get(0));
+            assertEquals(Arrays.asList("x", "y"), sorted(subtreeMirror.getChildList(rootPath + "/a")));
+            eventList.clear();
+
+            // data changed
+            zkClient.setData(rootPath + "/b", "updated".getBytes("UTF-8"), -1);
+            waitForEvents(1);
+            assertEquals("changed " + rootPath + "/b", eventList.get(0));
+            assertEquals("updated", new String(subtreeMirror.getData(rootPath + "/b"), "UTF-8"));
+            eventList.clear();
+
+            // removed
+            zkClient.delete(rootPath + "/a/x", -1);
+            zkClient.delete(rootPath + "/a/y", -1);
+            zkClient.delete(rootPath + "/a", -1);
+            waitForEvents(3);
+            assertEquals("removed " + rootPath + "/a", eventList.get(2));
+            assertEquals(new HashSet<String>(Arrays.asList(rootPath, rootPath + "/b")), subtreeMirror.getPaths());
+        } finally {
+            subtreeMirror.close();
+        }
+    }
+
+    @Test
+    public void testRootCreatedLater() throws Exception {
+        SubtreeMirror subtreeMirror = observerManager.observeSubtree(rootPath, subtreeObserver);
+        try {
+            assertTrue(subtreeMirror.getPaths().isEmpty());
+
+            create(rootPath);
+            create(rootPath + "/a");
+            waitForEvents(2);
+            assertEquals(new HashSet<String>(Arrays.asList(rootPath, rootPath + "/a")), subtreeMirror.getPaths());
+        } finally {
+            subtreeMirror.close();
+        }
+    }
+
+    void create(String path) throws Exception {
+        zkClient.create(path, new byte[0], Reign.DEFAULT_ACL_LIST, CreateMode.PERSISTENT);
+    }
+
+    void waitForEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (eventList.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        assertEquals(eventList.toString(), count, eventList.size());
+    }
+
+    static List<String> sorted(List<String> list) {
+        String[] array = list.toArray(new String[list.size()]);
+        Arrays.sort(array);
+        return Arrays.asList(array);
+    }
+}
@@ -1,7 +1,11 @@
 package io.reign.metrics;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import io.reign.MasterTestSuite;
+import io.reign.mesg.ResponseMessage;
+import io.reign.mesg.ResponseStatus;
+import io.reign.mesg.SimpleRequestMessage;
 import io.reign.presence.PresenceService;
 import io.reign.util.JacksonUtil;
 
@@ -202,6 +206,19 @@ public class MetricsServiceTest {
                 .getCount() == 2);
     }
 
+    @Test
+    public void testHotPathsInvalidK() throws Exception {
+        ResponseMessage responseMessage = metricsService.handleMessage(new SimpleRequestMessage("metrics",
+                "/?k=abc#hotpaths"));
+        assertEquals(ResponseStatus.ERROR_UNEXPECTED, responseMessage.getStatus());
+
+        responseMessage = metricsService.handleMessage(new SimpleRequestMessage("metrics", "/?k=0#hotpaths"));
+        assertEquals(ResponseStatus.ERROR_UNEXPECTED, responseMessage.getStatus());
+
+        assertEquals(MetricsService.DEFAULT_HOT_PATH_REPORT_SIZE, MetricsService.parseHotPathReportSize(null));
+        assertEquals(5, MetricsService.parseHotPathReportSize("5"));
+    }
+
     @Test
     public void testExportSelfMetrics() throws Exception {
         MetricRegistryManager registryManager = getMetricRegistryManager(new StaticMetricRegistryManager());
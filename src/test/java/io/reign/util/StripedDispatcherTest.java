@@ -0,0 +1,96 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class StripedDispatcherTest {
+
+    @Test
+    public void testOrderingAndParallelism() throws Exception {
+        StripedDispatcher dispatcher = new StripedDispatcher("test", 4, "test.");
+        try {
+            // find two keys on different stripes
+            String slowKey = "/slow";
+            String fastKey = null;
+            for (int i = 0; fastKey == null; i++) {
+                if (dispatcher.getStripe("/fast" + i) != dispatcher.getStripe(slowKey)) {
+                    fastKey = "/fast" + i;
+                }
+            }
+
+            final CountDownLatch release = new CountDownLatch(1);
+            dispatcher.dispatch(slowKey, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+            final CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                final int sequence = i;
+                dispatcher.dispatch(fastKey, new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(sequence);
+                        done.countDown();
+                    }
+                });
+            }
+
+            // blocked stripe does not hold up others
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, order.get(i).intValue());
+            }
+
+            // depth is decremented just after each task returns
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dispatcher.getQueueDepth() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, dispatcher.getQueueDepth());
+            assertEquals(1, dispatcher.getMaxQueueDepth());
+
+            release.countDown();
+        } finally {
+            dispatcher.shutdown();
+        }
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.reign.metrics.MetricRegistryManager;
+import io.reign.metrics.StaticMetricRegistryManager;
+import io.reign.zk.HotPathTracker.HotPath;
+import io.reign.zk.HotPathTracker.Kind;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class HotPathTrackerTest {
+
+    @Test
+    public void testTopK() throws Exception {
+        HotPathTracker tracker = new HotPathTracker(8, HotPathTracker.DEFAULT_MAX_DEPTH);
+
+        // two hot paths among many cold ones
+        for (int i = 0; i < 1000; i++) {
+            tracker.record(Kind.READ, "/reign/conf/polled");
+            if (i % 2 == 0) {
+                tracker.record(Kind.READ, "/reign/conf/warm");
+            }
+            tracker.record(Kind.READ, "/reign/cold/" + i);
+        }
+
+        List<HotPath> top = tracker.getTop(Kind.READ, 2);
+        assertEquals(2, top.size());
+        assertEquals("/reign/conf/polled", top.get(0).getPath());
+        assertEquals("/reign/conf/warm", top.get(1).getPath());
+        assertTrue(top.get(0).getCount() >= 1000);
+        assertTrue(top.get(0).getCount() - top.get(0).getError() <= 1000);
+        assertEquals(2500, tracker.getTotal(Kind.READ));
+        assertTrue(tracker.getTopShare(Kind.READ, 2) > 0.5);
+
+        // other kinds counted separately
+        assertEquals(0, tracker.getTotal(Kind.WRITE));
+        assertTrue(tracker.getTop(Kind.WRITE, 10).isEmpty());
+
+        tracker.reset();
+        assertEquals(0, tracker.getTotal(Kind.READ));
+        assertTrue(tracker.getTop(Kind.READ, 10).isEmpty());
+    }
+
+    @Test
+    public void testManyDistinctPaths() throws Exception {
+        HotPathTracker tracker = new HotPathTracker(16, HotPathTracker.DEFAULT_MAX_DEPTH);
+
+        // one hot path among a stream of distinct paths, each taking over the minimum counter
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            tracker.record(Kind.WRITE, "/reign/hot");
+            tracker.record(Kind.WRITE, "/reign/client/" + random.nextInt(100000));
+        }
+
+        List<HotPath> top = tracker.getTop(Kind.WRITE, 100);
+        assertEquals(16, top.size());
+        assertEquals("/reign/hot", top.get(0).getPath());
+        assertTrue(top.get(0).getCount() - top.get(0).getError() <= 10000);
+        assertTrue(top.get(0).getCount() >= 10000);
+
+        // counts are non-increasing and add up to the number of operations recorded
+        long sum = 0;
+        for (int i = 0; i < top.size(); i++) {
+            if (i > 0) {
+                assertTrue(top.get(i - 1).getCount() >= top.get(i).getCount());
+            }
+            sum += top.get(i).getCount();
+        }
+        assertEquals(tracker.getTotal(Kind.WRITE), sum);
+    }
+
+    @Test
+    public void testNormalize() throws Exception {
+        HotPathTracker tracker = new HotPathTracker(16, 4);
+
+        // sequential nodes aggregate
+        tracker.record(Kind.WRITE, "/reign/coord/lock/lk_0000000001");
+        tracker.record(Kind.WRITE, "/reign/coord/lock/lk_0000000002");
+        List<HotPath> top = tracker.getTop(Kind.WRITE, 10);
+        assertEquals(1, top.size());
+        assertEquals("/reign/coord/lock/lk_#", top.get(0).getPath());
+        assertEquals(2, top.get(0).getCount());
+
+        // truncated to max depth
+        assertEquals("/a/b/c/d", tracker.normalize("/a/b/c/d/e/f"));
+        assertEquals("/a/b", tracker.normalize("/a/b"));
+        assertEquals("/a/member-#", tracker.normalize("/a/member-0000000042"));
+        assertEquals("/a/member-00000x0042", tracker.normalize("/a/member-00000x0042"));
+    }
+
+    @Test
+    public void testRegisterGauges() throws Exception {
+        HotPathTracker tracker = new HotPathTracker(8, HotPathTracker.DEFAULT_MAX_DEPTH);
+        MetricRegistryManager registryManager = new StaticMetricRegistryManager();
+        tracker.registerGauges(registryManager);
+
+        tracker.record(Kind.READ, "/reign/conf/polled");
+        tracker.record(Kind.READ, "/reign/conf/polled");
+        assertEquals(2L, registryManager.get().getGauges().get("zk.hot.read.total").getValue());
+        assertEquals(1.0, registryManager.get().getGauges().get("zk.hot.read.topShare").getValue());
+        assertEquals(0L, registryManager.get().getGauges().get("zk.hot.write.total").getValue());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class OffHeapPathCacheTest {
+
+    @Test
+    public void testPutGet() {
+        OffHeapPathCache pathCache = new OffHeapPathCache(64 * 1024, 16 * 1024, 1);
+
+        Stat stat = new Stat();
+        stat.setCzxid(1);
+        stat.setMzxid(2);
+        stat.setVersion(3);
+        stat.setEphemeralOwner(4);
+        stat.setNumChildren(2);
+        pathCache.put("/a", stat, "hello".getBytes(), Arrays.asList("x", "yy"));
+        pathCache.put("/b", stat, null, null);
+
+        PathCacheEntry entry = pathCache.get("/a");
+        assertNotNull(entry);
+        assertEquals(stat, entry.getStat());
+        assertEquals("hello", new String(entry.getData()));
+        assertEquals(Arrays.asList("x", "yy"), entry.getChildList());
+        assertTrue(entry.hasData());
+        assertTrue(entry.hasChildList());
+
+        entry = pathCache.get("/b");
+        assertNull(entry.getData());
+        assertTrue(entry.getChildList().isEmpty());
+
+        assertNull(pathCache.get("/c"));
+        assertEquals(2, pathCache.getHitCount());
+        assertEquals(1, pathCache.getMissCount());
+    }
+
+    @Test
+    public void testPartialEntries() {
+        OffHeapPathCache pathCache = new OffHeapPathCache(64 * 1024, 16 * 1024, 1);
+
+        pathCache.putChildList("/a", new Stat(), Arrays.asList("x"));
+        PathCacheEntry entry = pathCache.get("/a");
+        assertTrue(entry.hasChildList());
+        assertFalse(entry.hasData());
+
+        pathCache.putData("/a", new Stat(), "data".getBytes());
+        entry = pathCache.get("/a");
+        assertTrue(entry.hasChildList());
+        assertTrue(entry.hasData());
+        assertEquals(Arrays.asList("x"), entry.getChildList());
+        assertEquals("data", new String(entry.getData()));
+
+        // update of absent entry does nothing
+        assertNull(pathCache.updateData("/b", new byte[1]));
+        assertNull(pathCache.get("/b"));
+
+        // removing child leaves parent to the caller
+        pathCache.put("/a/x", new Stat(), new byte[1], null);
+        pathCache.remove("/a/x");
+        assertNull(pathCache.get("/a/x"));
+        assertNotNull(pathCache.get("/a"));
+        pathCache.remove("/a");
+        assertEquals(0, pathCache.getSize());
+        assertEquals(0, pathCache.getUsedBytes());
+    }
+
+    @Test
+    public void testEvictionAndReuse() {
+        OffHeapPathCache pathCache = new OffHeapPathCache(16 * 1024, 4 * 1024, 1);
+
+        // fill well past budget: least recently used entries make room
+        for (int i = 0; i < 100; i++) {
+            pathCache.put("/node/" + i, new Stat(), new byte[400], null);
+        }
+        assertEquals(16 * 1024, pathCache.getAllocatedBytes());
+        assertTrue(pathCache.getUsedBytes() <= 16 * 1024);
+        assertTrue(pathCache.getEvictionCount() > 0);
+        assertNotNull(pathCache.get("/node/99"));
+        assertNull(pathCache.get("/node/0"));
+
+        // freed blocks are reused without growing
+        pathCache.clear();
+        assertEquals(0, pathCache.getSize());
+        for (int i = 0; i < 20; i++) {
+            pathCache.put("/other/" + i, new Stat(), new byte[900], null);
+        }
+        assertEquals(16 * 1024, pathCache.getAllocatedBytes());
+        assertNotNull(pathCache.get("/other/19"));
+
+        // entry larger than a segment is not cached and does not leave an old value behind
+        pathCache.put("/other/19", new Stat(), new byte[8 * 1024], null);
+        assertNull(pathCache.get("/other/19"));
+        assertEquals(1, pathCache.getAllocationFailureCount());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class PathCacheSnapshotTest {
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        File file = File.createTempFile("reign-path-cache", ".snapshot");
+        file.deleteOnExit();
+
+        Stat stat = new Stat();
+        stat.setMzxid(12345);
+        stat.setPzxid(678);
+        PathCache pathCache = new SimplePathCache(16, 1);
+        pathCache.put("/a", stat, "data".getBytes("UTF-8"), Arrays.asList("x", "y"));
+        pathCache.putData("/b", stat, null);
+        pathCache.putChildList("/c", stat, Arrays.asList("z"));
+
+        PathCacheSnapshot pathCacheSnapshot = new PathCacheSnapshot(file);
+        assertEquals(3, pathCacheSnapshot.save(pathCache));
+
+        PathCache loadedPathCache = new OffHeapPathCache(64 * 1024, 16 * 1024, 1);
+        List<String> loadedPathList = pathCacheSnapshot.load(loadedPathCache);
+        assertEquals(3, loadedPathList.size());
+
+        PathCacheEntry entry = loadedPathCache.get("/a");
+        assertEquals(stat, entry.getStat());
+        assertEquals("data", new String(entry.getData(), "UTF-8"));
+        assertEquals(Arrays.asList("x", "y"), entry.getChildList());
+
+        entry = loadedPathCache.get("/b");
+        assertTrue(entry.hasData());
+        assertFalse(entry.hasChildList());
+        assertNull(entry.getData());
+
+        entry = loadedPathCache.get("/c");
+        assertFalse(entry.hasData());
+        assertEquals(Arrays.asList("z"), entry.getChildList());
+    }
+
+    @Test
+    public void testTruncatedOrMissing() throws Exception {
+        File file = File.createTempFile("reign-path-cache", ".snapshot");
+        file.deleteOnExit();
+
+        PathCache pathCache = new SimplePathCache(16, 1);
+        pathCache.put("/a", new Stat(), new byte[100], null);
+        pathCache.put("/b", new Stat(), new byte[100], null);
+        PathCacheSnapshot pathCacheSnapshot = new PathCacheSnapshot(file);
+        pathCacheSnapshot.save(pathCache);
+
+        // cut off part of second entry: first is kept
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 50);
+        randomAccessFile.close();
+        assertEquals(1, pathCacheSnapshot.load(new SimplePathCache(16, 1)).size());
+
+        file.delete();
+        assertTrue(pathCacheSnapshot.load(new SimplePathCache(16, 1)).isEmpty());
+    }
+}
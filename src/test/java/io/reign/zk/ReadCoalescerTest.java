@@ -0,0 +1,153 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class ReadCoalescerTest {
+
+    @Test
+    public void testConcurrentReadsShareOneRead() throws Exception {
+        final ReadCoalescer readCoalescer = new ReadCoalescer();
+        final AtomicInteger readCount = new AtomicInteger(0);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+
+        final ReadCoalescer.CoalescedRead<byte[]> read = new ReadCoalescer.CoalescedRead<byte[]>() {
+            @Override
+            public byte[] read(Stat stat) throws KeeperException, InterruptedException {
+                readCount.incrementAndGet();
+                leaderStartedLatch.countDown();
+                releaseLatch.await();
+                stat.setVersion(7);
+                return new byte[] { 1, 2, 3 };
+            }
+
+            @Override
+            public byte[] copy(byte[] result) {
+                return result.clone();
+            }
+        };
+
+        final int threadCount = 10;
+        final List<byte[]> resultList = new ArrayList<byte[]>();
+        final List<Stat> statList = new ArrayList<Stat>();
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Stat stat = new Stat();
+                        byte[] result = readCoalescer.read("getData", "/a", true, stat, read);
+                        synchronized (resultList) {
+                            resultList.add(result);
+                            statList.add(stat);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // let followers pile up behind leader
+        leaderStartedLatch.await();
+        Thread.sleep(200);
+        releaseLatch.countDown();
+        doneLatch.await();
+
+        assertEquals(threadCount, resultList.size());
+        assertEquals(readCount.get(), readCoalescer.getIssuedCount());
+        assertEquals(threadCount, readCoalescer.getIssuedCount() + readCoalescer.getCoalescedCount());
+        assertTrue(readCoalescer.getCoalescedCount() > 0);
+        for (int i = 1; i < threadCount; i++) {
+            assertNotSame(resultList.get(0), resultList.get(i));
+            assertEquals(3, resultList.get(i).length);
+            assertEquals(7, statList.get(i).getVersion());
+        }
+    }
+
+    @Test
+    public void testNoJoinAcrossWrite() throws Exception {
+        final ReadCoalescer readCoalescer = new ReadCoalescer();
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    readCoalescer.read("getData", "/a", false, null, new ReadCoalescer.CoalescedRead<String>() {
+                        @Override
+                        public String read(Stat stat) throws KeeperException, InterruptedException {
+                            leaderStartedLatch.countDown();
+                            releaseLatch.await();
+                            return "old";
+                        }
+
+                        @Override
+                        public String copy(String result) {
+                            return result;
+                        }
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        leader.start();
+        leaderStartedLatch.await();
+
+        // a write completing after leader issued its read means leader's result may not reflect it
+        readCoalescer.writeCompleted();
+        String result = readCoalescer.read("getData", "/a", false, null, new ReadCoalescer.CoalescedRead<String>() {
+            @Override
+            public String read(Stat stat) throws KeeperException, InterruptedException {
+                return "new";
+            }
+
+            @Override
+            public String copy(String result) {
+                return result;
+            }
+        });
+        assertEquals("new", result);
+        assertEquals(0, readCoalescer.getCoalescedCount());
+
+        releaseLatch.countDown();
+        leader.join();
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.reign.AsyncZkClient;
+import io.reign.MasterTestSuite;
+import io.reign.ZkClient;
+import io.reign.metrics.MetricRegistryManager;
+import io.reign.metrics.StaticMetricRegistryManager;
+import io.reign.util.ZkClientUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class ResilientZkClientTest {
+
+    private AsyncZkClient zkClient;
+
+    @Before
+    public void setUp() throws Exception {
+        zkClient = (AsyncZkClient) MasterTestSuite.getReign().getZkClient();
+    }
+
+    @Test
+    public void testAsyncCreateReadDelete() throws Exception {
+        String path = "/reign/async-test-" + System.currentTimeMillis();
+
+        assertNull(zkClient.existsAsync(path, false).get(10, TimeUnit.SECONDS));
+
+        // parent does not exist yet
+        try {
+            zkClient.createAsync(path + "/child", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+                    .get(10, TimeUnit.SECONDS);
+            fail("Expected NoNodeException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KeeperException.NoNodeException);
+        }
+
+        String created = zkClient.createAsync(path, "hello".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        assertEquals(path, created);
+
+        Stat stat = new Stat();
+        byte[] data = zkClient.getDataAsync(path, false, stat).get(10, TimeUnit.SECONDS);
+        assertEquals("hello", new String(data, "UTF-8"));
+        assertEquals(0, stat.getVersion());
+
+        Stat updated = zkClient.setDataAsync(path, "world".getBytes("UTF-8"), stat.getVersion()).get(10,
+                TimeUnit.SECONDS);
+        assertEquals(1, updated.getVersion());
+
+        zkClient.syncAsync(path).get(10, TimeUnit.SECONDS);
+        assertNotNull(zkClient.existsAsync(path, false).get(10, TimeUnit.SECONDS));
+
+        zkClient.deleteAsync(path, -1).get(10, TimeUnit.SECONDS);
+        assertNull(zkClient.existsAsync(path, false).get(10, TimeUnit.SECONDS));
+
+        // delete and getChildren on a missing node behave like the blocking calls
+        zkClient.deleteAsync(path, -1).get(10, TimeUnit.SECONDS);
+        List<String> children = zkClient.getChildrenAsync(path, false, null).get(10, TimeUnit.SECONDS);
+        assertTrue(children.isEmpty());
+    }
+
+    @Test
+    public void testMulti() throws Exception {
+        ZkClient client = MasterTestSuite.getReign().getZkClient();
+        String path = "/reign/multi-test-" + System.currentTimeMillis();
+
+        List<Op> ops = new ArrayList<Op>();
+        ops.add(Op.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        ops.add(Op.create(path + "/a", "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        assertEquals(2, client.multi(ops).size());
+        assertEquals("a", new String(client.getData(path + "/a", false, new Stat()), "UTF-8"));
+
+        // second transaction fails atomically: nothing is applied
+        ops = new ArrayList<Op>();
+        ops.add(Op.create(path + "/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        ops.add(Op.create(path + "/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        try {
+            client.multi(ops);
+            fail("Expected NodeExistsException");
+        } catch (KeeperException.NodeExistsException e) {
+            // expected
+        }
+        assertNull(client.exists(path + "/b", false));
+    }
+
+    @Test
+    public void testUpdatePathBuildsParents() throws Exception {
+        ZkClient client = MasterTestSuite.getReign().getZkClient();
+        String path = "/reign/update-path-test-" + System.currentTimeMillis() + "/a/b/c/d";
+
+        String pathCreated = new ZkClientUtil().updatePath(client, MasterTestSuite.getReign().getPathScheme(), path,
+                "leaf".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+        assertEquals(path, pathCreated);
+        assertEquals("leaf", new String(client.getData(path, false, new Stat()), "UTF-8"));
+
+        // sibling under partially existing path
+        String sibling = path.substring(0, path.lastIndexOf("/b/")) + "/x/y";
+        pathCreated = new ZkClientUtil().updatePath(client, MasterTestSuite.getReign().getPathScheme(), sibling,
+                null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL, -1);
+        assertTrue(pathCreated.startsWith(sibling));
+        assertNotNull(client.exists(pathCreated, false));
+    }
+
+    @Test
+    public void testBatchReads() throws Exception {
+        ZkClient client = MasterTestSuite.getReign().getZkClient();
+        String basePath = "/reign/batch-test-" + System.currentTimeMillis();
+        client.create(basePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            String path = basePath + "/" + i;
+            client.create(path, ("" + i).getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            paths.add(path);
+        }
+        paths.add(basePath + "/missing");
+
+        Map<String, PathReadResult> resultMap = zkClient.getDataBatch(paths, false);
+        assertEquals(paths, new ArrayList<String>(resultMap.keySet()));
+        for (int i = 0; i < 50; i++) {
+            PathReadResult result = resultMap.get(paths.get(i));
+            assertTrue(result.isOk());
+            assertEquals("" + i, new String(result.getData(), "UTF-8"));
+            assertTrue(result.getStat().getCzxid() > 0);
+        }
+        assertTrue(resultMap.get(basePath + "/missing").isNoNode());
+
+        List<String> parentPaths = new ArrayList<String>();
+        parentPaths.add(basePath);
+        parentPaths.add(paths.get(0));
+        resultMap = zkClient.getChildrenBatch(parentPaths, false);
+        assertEquals(50, resultMap.get(basePath).getChildList().size());
+        assertEquals(50, resultMap.get(basePath).getStat().getNumChildren());
+        assertTrue(resultMap.get(paths.get(0)).getChildList().isEmpty());
+    }
+
+    @Test
+    public void testWatchRestorePriority() throws Exception {
+        ResilientZkClient client = new ResilientZkClient("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000);
+        try {
+            client.setWatchRestorePriority("/reign/coord", 10);
+            client.setWatchRestorePriority("/reign/metrics", 90);
+            client.setWatchRestorePriority("/reign/metrics/important", 5);
+
+            assertEquals(10, client.getWatchRestorePriority("/reign/coord/lock"));
+            assertEquals(90, client.getWatchRestorePriority("/reign/metrics/a"));
+            assertEquals(5, client.getWatchRestorePriority("/reign/metrics/important/a"));
+            assertEquals(ResilientZkClient.DEFAULT_WATCH_RESTORE_PRIORITY,
+                    client.getWatchRestorePriority("/reign/other"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRestoreWatches() throws Exception {
+        String path = "/reign/restore-test-" + System.currentTimeMillis();
+        new ZkClientUtil().updatePath((ZkClient) zkClient, MasterTestSuite.getReign().getPathScheme(), path,
+                "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        ResilientZkClient client = new ResilientZkClient("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000);
+        try {
+            final CountDownLatch watcherLatch = new CountDownLatch(2);
+            Watcher watcher1 = new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    watcherLatch.countDown();
+                }
+            };
+            Watcher watcher2 = new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    watcherLatch.countDown();
+                }
+            };
+            // let restore from initial connect finish
+            long start = System.currentTimeMillis();
+            while ((client.getWatchRestoreGeneration() == 0 || client.isWatchRestoreInProgress())
+                    && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+
+            client.getData(path, true, new Stat());
+            client.exists(path, watcher1);
+            client.exists(path, watcher2);
+            client.getChildren(path, true);
+            client.exists(path + "/missing", true);
+
+            // data watch on path and missing path, child watch on path
+            client.restoreWatches(client.getWatchRestoreGeneration());
+            assertEquals(3, client.getWatchRestorePathCount());
+            assertEquals(3, client.getWatchRestoreCompletedCount());
+            assertEquals(0, client.getWatchRestoreFailedCount());
+            assertTrue(!client.isWatchRestoreInProgress());
+
+            // both Watchers still notified through shared watch
+            ((ZkClient) zkClient).setData(path, "b".getBytes("UTF-8"), -1);
+            assertTrue(watcherLatch.await(10, TimeUnit.SECONDS));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAsyncThrottleWaits() throws Exception {
+        ResilientZkClient client = new ResilientZkClient("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000);
+        try {
+            // LOW priority keeps 2 of 4 tokens in reserve, so most of a burst must wait for refill
+            ZkRateLimiter rateLimiter = new ZkRateLimiter(0, 0, 0);
+            rateLimiter.setRate(ZkRateLimiter.OpType.READ, 20, 4);
+            rateLimiter.setPriority("/reign", ZkRateLimiter.Priority.LOW);
+            rateLimiter.setMaxWaitMillis(5000);
+            client.setRateLimiter(rateLimiter);
+
+            List<ListenableFuture<Stat>> futureList = new ArrayList<ListenableFuture<Stat>>();
+            for (int i = 0; i < 10; i++) {
+                futureList.add(client.existsAsync("/reign", false));
+            }
+            for (ListenableFuture<Stat> future : futureList) {
+                assertNotNull(future.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(0, rateLimiter.getShedCount(ZkRateLimiter.OpType.READ, ZkRateLimiter.Priority.LOW));
+            assertTrue(rateLimiter.getDelayedCount(ZkRateLimiter.OpType.READ, ZkRateLimiter.Priority.LOW) > 0);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRestoreWatchesNotThrottled() throws Exception {
+        String path = "/reign/restore-throttle-test-" + System.currentTimeMillis();
+        new ZkClientUtil().updatePath((ZkClient) zkClient, MasterTestSuite.getReign().getPathScheme(), path,
+                "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        ResilientZkClient client = new ResilientZkClient("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000);
+        try {
+            long start = System.currentTimeMillis();
+            while ((client.getWatchRestoreGeneration() == 0 || client.isWatchRestoreInProgress())
+                    && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+
+            client.getData(path, true, new Stat());
+            client.getChildren(path, true);
+
+            // LOW priority paths with an empty read bucket would be shed
+            ZkRateLimiter rateLimiter = new ZkRateLimiter(0.001, 0, 0);
+            rateLimiter.setPriority(path, ZkRateLimiter.Priority.LOW);
+            rateLimiter.tryAcquire(ZkRateLimiter.OpType.READ, "/reign");
+            client.setRateLimiter(rateLimiter);
+            assertTrue(!rateLimiter.tryAcquire(ZkRateLimiter.OpType.READ, path));
+            long shedCount = rateLimiter.getShedCount(ZkRateLimiter.OpType.READ, ZkRateLimiter.Priority.LOW);
+
+            client.restoreWatches(client.getWatchRestoreGeneration());
+            assertEquals(2, client.getWatchRestorePathCount());
+            assertEquals(2, client.getWatchRestoreCompletedCount());
+            assertEquals(0, client.getWatchRestoreFailedCount());
+            assertEquals(shedCount, rateLimiter.getShedCount(ZkRateLimiter.OpType.READ, ZkRateLimiter.Priority.LOW));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testOperationDeadline() throws Exception {
+        // nothing listening here, so the client never gets a connection
+        ResilientZkClient client = new ResilientZkClient("localhost:1", 30000);
+        try {
+            assertEquals(30000, client.getOperationTimeoutMillis());
+            client.setOperationTimeoutMillis(500);
+            long start = System.currentTimeMillis();
+            try {
+                client.exists("/reign", false);
+                fail("Expected ConnectionLossException");
+            } catch (KeeperException.ConnectionLossException e) {
+                // expected
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("elapsed=" + elapsed, elapsed >= 500 && elapsed < 10000);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAsyncSubmitDoesNotBlock() throws Exception {
+        // nothing listening here, so the client never gets a connection
+        ResilientZkClient client = new ResilientZkClient("localhost:1", 30000);
+        try {
+            client.setOperationTimeoutMillis(500);
+            long start = System.currentTimeMillis();
+            ListenableFuture<Stat> future = client.existsAsync("/reign", false);
+            assertTrue(System.currentTimeMillis() - start < 250);
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("Expected ConnectionLossException");
+            } catch (ExecutionException e) {
+                assertTrue("" + e.getCause(), e.getCause() instanceof KeeperException.ConnectionLossException);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("elapsed=" + elapsed, elapsed >= 500 && elapsed < 10000);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testOperationMetrics() throws Exception {
+        // ensure base path exists
+        String path = "/reign/metrics-test-" + System.currentTimeMillis();
+        new ZkClientUtil().updatePath((ZkClient) zkClient, MasterTestSuite.getReign().getPathScheme(), path,
+                "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        ResilientZkClient client = new ResilientZkClient("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000);
+        try {
+            MetricRegistryManager registryManager = new StaticMetricRegistryManager();
+            client.setMetricRegistryManager(registryManager);
+
+            client.getData(path, false, new Stat());
+            client.getData(path, false, new Stat());
+            try {
+                client.getData(path + "/missing", false, new Stat());
+                fail("Expected NoNodeException");
+            } catch (KeeperException.NoNodeException e) {
+            }
+            client.setDataAsync(path, "b".getBytes("UTF-8"), -1).get(10, TimeUnit.SECONDS);
+
+            MetricRegistry registry = registryManager.get();
+            assertEquals(3, registry.getTimers().get("zk.getData").getCount());
+            assertEquals(2, registry.getCounters().get("zk.getData.ok").getCount());
+            assertEquals(1, registry.getCounters().get("zk.getData.nonode").getCount());
+            assertEquals(1, registry.getTimers().get("zk.setDataAsync").getCount());
+            assertEquals(1, registry.getCounters().get("zk.setDataAsync.ok").getCount());
+            assertNull(registry.getCounters().get("zk.getData.retried"));
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.reign.MasterTestSuite;
+import io.reign.ZkClient;
+import io.reign.util.ZkClientUtil;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class ResilientZkClientWithCacheTest {
+
+    private ZkClient writer;
+
+    private PathCache pathCache;
+
+    private ResilientZkClientWithCache cachingClient;
+
+    @Before
+    public void setUp() throws Exception {
+        writer = MasterTestSuite.getReign().getZkClient();
+        pathCache = new SimplePathCache(1024, 2);
+        cachingClient = new ResilientZkClientWithCache("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000,
+                pathCache, true);
+    }
+
+    @After
+    public void tearDown() {
+        cachingClient.close();
+    }
+
+    @Test
+    public void testWatchEventInvalidatesBeforeNotify() throws Exception {
+        final String path = "/reign/cache-test-" + System.currentTimeMillis();
+        new ZkClientUtil().updatePath(writer, MasterTestSuite.getReign().getPathScheme(), path, "a".getBytes("UTF-8"),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        final AtomicBoolean staleOnNotify = new AtomicBoolean(true);
+        final Object monitor = new Object();
+        cachingClient.register(new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getType() == EventType.NodeDataChanged && path.equals(event.getPath())) {
+                    staleOnNotify.set(pathCache.get(path) != null);
+                    synchronized (monitor) {
+                        monitor.notifyAll();
+                    }
+                }
+            }
+        });
+
+        // watched reads are served from cache in coherent mode
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+        long hitCount = pathCache.getHitCount();
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+        assertTrue(pathCache.getHitCount() > hitCount);
+
+        // update from another session fires watch, which invalidates entry before watchers are notified
+        synchronized (monitor) {
+            writer.setData(path, "b".getBytes("UTF-8"), -1);
+            monitor.wait(10000);
+        }
+        assertTrue("Cache entry should be invalidated before watchers are notified", !staleOnNotify.get());
+        assertEquals("b", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+    }
+
+    @Test
+    public void testRootChildListCached() throws Exception {
+        // root has czxid 0 but exists
+        assertTrue(cachingClient.getChildren("/", true).contains("reign"));
+        assertNotNull(pathCache.peek("/"));
+        assertEquals(0, cachingClient.getNoNodeCacheSize());
+
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-missing-children";
+        assertTrue(cachingClient.getChildren(path, true).isEmpty());
+        assertNull(pathCache.peek(path));
+        assertEquals(1, cachingClient.getNoNodeCacheSize());
+    }
+
+    @Test
+    public void testInvalidateParent() throws Exception {
+        pathCache.putChildList("/", new Stat(), Collections.singletonList("a"));
+        pathCache.putChildList("/a", new Stat(), Collections.singletonList("b"));
+        pathCache.putData("/a/b", new Stat(), new byte[0]);
+
+        // data change: parent child list still valid
+        cachingClient.invalidate("/a/b");
+        assertNull(pathCache.peek("/a/b"));
+        assertNotNull(pathCache.peek("/a"));
+
+        pathCache.putData("/a/b", new Stat(), new byte[0]);
+        cachingClient.invalidateWithParent("/a/b");
+        assertNull(pathCache.peek("/a/b"));
+        assertNull(pathCache.peek("/a"));
+        assertNotNull(pathCache.peek("/"));
+
+        // root is parent of top-level paths
+        cachingClient.invalidateWithParent("/a");
+        assertNull(pathCache.peek("/"));
+    }
+
+    @Test
+    public void testReadOwnCreate() throws Exception {
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-children";
+        new ZkClientUtil().updatePath(cachingClient, MasterTestSuite.getReign().getPathScheme(), path, null,
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+        assertTrue(cachingClient.getChildren(path, true).isEmpty());
+
+        cachingClient.create(path + "/child", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        // parent entry dropped by the write itself, not by the watch event
+        assertNull(pathCache.get(path));
+        List<String> childList = cachingClient.getChildren(path, true);
+        assertEquals(1, childList.size());
+
+        // callers are free to modify returned lists
+        childList.clear();
+        assertEquals(1, cachingClient.getChildren(path, true).size());
+
+        cachingClient.delete(path + "/child", -1);
+        assertTrue(cachingClient.getChildren(path, true).isEmpty());
+        assertNull(pathCache.get(path + "/child"));
+    }
+
+    @Test
+    public void testPartialEntries() throws Exception {
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-partial";
+        new ZkClientUtil().updatePath(writer, MasterTestSuite.getReign().getPathScheme(), path, "a".getBytes("UTF-8"),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        // data miss fills data only
+        cachingClient.getData(path, true, new Stat());
+        PathCacheEntry pathCacheEntry = pathCache.get(path);
+        assertTrue(pathCacheEntry.hasData());
+        assertFalse(pathCacheEntry.hasChildList());
+
+        // child list miss is merged into existing entry
+        cachingClient.getChildren(path, true);
+        pathCacheEntry = pathCache.get(path);
+        assertTrue(pathCacheEntry.hasData());
+        assertTrue(pathCacheEntry.hasChildList());
+        assertEquals("a", new String(pathCacheEntry.getData(), "UTF-8"));
+    }
+
+    @Test
+    public void testSnapshotRevalidation() throws Exception {
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-snapshot";
+        String changedPath = path + "-changed";
+        ZkClientUtil zkClientUtil = new ZkClientUtil();
+        zkClientUtil.updatePath(writer, MasterTestSuite.getReign().getPathScheme(), path, "a".getBytes("UTF-8"),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+        zkClientUtil.updatePath(writer, MasterTestSuite.getReign().getPathScheme(), changedPath,
+                "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        cachingClient.getData(path, true, new Stat());
+        cachingClient.getData(changedPath, true, new Stat());
+
+        File file = File.createTempFile("reign-path-cache", ".snapshot");
+        file.deleteOnExit();
+        PathCacheSnapshot pathCacheSnapshot = new PathCacheSnapshot(file);
+        assertEquals(2, cachingClient.saveSnapshot(pathCacheSnapshot));
+
+        writer.setData(changedPath, "b".getBytes("UTF-8"), -1);
+
+        // restart with snapshot
+        PathCache restoredPathCache = new SimplePathCache(1024, 2);
+        ResilientZkClientWithCache restoredClient = new ResilientZkClientWithCache("localhost:"
+                + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000, restoredPathCache, true);
+        try {
+            assertEquals(2, restoredClient.loadSnapshot(pathCacheSnapshot));
+
+            // unchanged entry is served once confirmed; changed entry is re-read
+            assertEquals("a", new String(restoredClient.getData(path, true, new Stat()), "UTF-8"));
+            assertEquals("b", new String(restoredClient.getData(changedPath, true, new Stat()), "UTF-8"));
+            assertEquals(1, restoredClient.getRestoredHitCount());
+            assertEquals(1, restoredClient.getRestoredStaleCount());
+
+            // confirmed entry is watched like any other
+            long hitCount = restoredPathCache.getHitCount();
+            assertEquals("a", new String(restoredClient.getData(path, true, new Stat()), "UTF-8"));
+            assertTrue(restoredPathCache.getHitCount() > hitCount);
+            assertEquals(1, restoredClient.getRestoredHitCount());
+        } finally {
+            restoredClient.close();
+        }
+    }
+
+    @Test
+    public void testNoNodeCache() throws Exception {
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-nonode";
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                cachingClient.getData(path, true, new Stat());
+                fail("Expected NONODE");
+            } catch (KeeperException.NoNodeException e) {
+            }
+        }
+        assertNull(cachingClient.exists(path, true));
+        assertTrue(cachingClient.getChildren(path, true).isEmpty());
+        assertEquals(4, cachingClient.getNoNodeHitCount());
+
+        // created by another session: exists() watch clears negative entry
+        new ZkClientUtil().updatePath(writer, MasterTestSuite.getReign().getPathScheme(), path,
+                "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+        long start = System.currentTimeMillis();
+        while (cachingClient.exists(path, true) == null && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(50);
+        }
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+
+        // own create clears negative entry immediately
+        String childPath = path + "/child";
+        assertNull(cachingClient.exists(childPath, true));
+        cachingClient.create(childPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertNotNull(cachingClient.exists(childPath, true));
+    }
+
+    @Test
+    public void testNoNodeWatchTracking() throws Exception {
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-nonode-watch";
+        ResilientZkClient zkClient = cachingClient.getResilientZkClient();
+
+        // caller's watch=false: existing node's watch is not restored
+        assertNotNull(cachingClient.exists("/reign", false));
+        assertTrue(!zkClient.getDataWatchPaths("/reign").contains("/reign"));
+
+        // missing node gets a watch to back its negative entry
+        assertNull(cachingClient.exists(path, false));
+        assertEquals(1, cachingClient.getNoNodeCacheSize());
+        assertTrue(zkClient.getDataWatchPaths(path).contains(path));
+
+        // eviction stops that watch from being restored
+        cachingClient.setNoNodeCacheCapacity(0);
+        assertEquals(0, cachingClient.getNoNodeCacheSize());
+        assertTrue(zkClient.getDataWatchPaths(path).isEmpty());
+    }
+
+    @Test
+    public void testServeStale() throws Exception {
+        String path = "/reign/cache-test-" + System.currentTimeMillis() + "-stale";
+        new ZkClientUtil().updatePath(writer, MasterTestSuite.getReign().getPathScheme(), path,
+                "a".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+        assertNull(cachingClient.exists(path + "/missing", true));
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+
+        cachingClient.setServeStaleMaxMillis(60000);
+        assertFalse(cachingClient.isLastReadStale());
+
+        // disconnected: cached paths served from cache and flagged
+        cachingClient.process(new WatchedEvent(EventType.None, KeeperState.Disconnected, null));
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+        assertTrue(cachingClient.isLastReadStale());
+        assertNull(cachingClient.exists(path + "/missing", true));
+        assertTrue(cachingClient.isLastReadStale());
+        assertEquals(2, cachingClient.getStaleReadCount());
+
+        // beyond staleness limit: read goes to ZooKeeper
+        cachingClient.setServeStaleMaxMillis(0);
+        Thread.sleep(10);
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+        assertFalse(cachingClient.isLastReadStale());
+
+        // reconnected
+        cachingClient.setServeStaleMaxMillis(60000);
+        cachingClient.process(new WatchedEvent(EventType.None, KeeperState.SyncConnected, null));
+        assertEquals("a", new String(cachingClient.getData(path, true, new Stat()), "UTF-8"));
+        assertFalse(cachingClient.isLastReadStale());
+        assertEquals(2, cachingClient.getStaleReadCount());
+    }
+}
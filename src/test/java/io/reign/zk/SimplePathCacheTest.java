@@ -0,0 +1,99 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class SimplePathCacheTest {
+
+    @Test
+    public void testByteBudget() {
+        SimplePathCache pathCache = new SimplePathCache(16, 1, 64 * 1024);
+
+        // many small entries fit
+        for (int i = 0; i < 16; i++) {
+            pathCache.put("/small/" + i, new Stat(), new byte[100], null);
+        }
+        assertEquals(16, pathCache.getSize());
+        assertTrue(pathCache.getWeightedSize() <= pathCache.getMaxBytes());
+
+        // one large entry pushes out older entries instead of growing past budget
+        pathCache.put("/large", new Stat(), new byte[60 * 1024], null);
+        assertNotNull(pathCache.get("/large"));
+        assertTrue(pathCache.getWeightedSize() <= pathCache.getMaxBytes());
+        assertTrue(pathCache.getSize() < 17);
+
+        long evictionCount = 0;
+        for (int i = 0; i < SimplePathCache.getSizeClassCount(); i++) {
+            evictionCount += pathCache.getEvictionCount(i);
+        }
+        assertEquals(17 - pathCache.getSize(), evictionCount);
+
+        // entry larger than budget is not retained
+        pathCache.put("/huge", new Stat(), new byte[128 * 1024], null);
+        assertNull(pathCache.get("/huge"));
+    }
+
+    @Test
+    public void testSizeClassCounters() {
+        SimplePathCache pathCache = new SimplePathCache(16, 1, 1024 * 1024);
+
+        pathCache.put("/a", new Stat(), new byte[10], null);
+        pathCache.put("/b", new Stat(), new byte[100 * 1024], null);
+        pathCache.get("/a");
+        pathCache.get("/b");
+        pathCache.get("/b");
+
+        assertEquals(1, pathCache.getHitCount(0));
+        assertEquals(1, pathCache.getPutCount(0));
+        assertEquals(2, pathCache.getHitCount(2));
+        assertEquals(1, pathCache.getPutCount(2));
+        assertEquals(3, pathCache.getHitCount());
+    }
+
+    @Test
+    public void testMergePartialEntries() {
+        SimplePathCache pathCache = new SimplePathCache(16, 1);
+
+        pathCache.putData("/a", new Stat(), new byte[] { 1 });
+        PathCacheEntry pathCacheEntry = pathCache.get("/a");
+        assertTrue(pathCacheEntry.hasData());
+        assertFalse(pathCacheEntry.hasChildList());
+        assertNull(pathCacheEntry.getChildList());
+
+        pathCache.putChildList("/a", new Stat(), Arrays.asList("x", "y"));
+        pathCacheEntry = pathCache.get("/a");
+        assertTrue(pathCacheEntry.hasData());
+        assertTrue(pathCacheEntry.hasChildList());
+        assertEquals(1, pathCacheEntry.getData()[0]);
+        assertEquals(2, pathCacheEntry.getChildList().size());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.reign.MasterTestSuite;
+import io.reign.util.ZkClientUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class StripedZkClientTest {
+
+    private StripedZkClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        // ensure test ZooKeeper server is up
+        MasterTestSuite.getReign();
+        client = new StripedZkClient("localhost:" + MasterTestSuite.ZK_TEST_SERVER_PORT, 30000, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        assertEquals(3, client.getSessionCount());
+
+        Set<ResilientZkClient> usedSessions = new HashSet<ResilientZkClient>();
+        for (int i = 0; i < 100; i++) {
+            String path = "/reign/striped/" + i;
+            assertSame(client.getReadSession(path), client.getReadSession(path));
+            usedSessions.add(client.getReadSession(path));
+        }
+        assertEquals(3, usedSessions.size());
+
+        client.addPrimaryPathPrefix("/reign/striped/coord");
+        for (int i = 0; i < 100; i++) {
+            assertSame(client.getPrimarySession(), client.getReadSession("/reign/striped/coord/" + i));
+        }
+    }
+
+    @Test
+    public void testReadWriteAndWatch() throws Exception {
+        String basePath = "/reign/striped-test-" + System.currentTimeMillis();
+        new ZkClientUtil().updatePath(client, MasterTestSuite.getReign().getPathScheme(), basePath, null,
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, -1);
+
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String path = basePath + "/" + i;
+            client.create(path, ("" + i).getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            paths.add(path);
+        }
+
+        Map<String, PathReadResult> resultMap = client.getDataBatch(paths, false);
+        assertEquals(paths, new ArrayList<String>(resultMap.keySet()));
+        for (int i = 0; i < 20; i++) {
+            assertEquals("" + i, new String(resultMap.get(paths.get(i)).getData(), "UTF-8"));
+        }
+        assertEquals(20, client.getChildren(basePath, false).size());
+
+        // find a path read through a non-primary session: its watch events still reach registered Watchers
+        String watchedPath = null;
+        for (String path : paths) {
+            if (client.getReadSession(path) != client.getPrimarySession()) {
+                watchedPath = path;
+                break;
+            }
+        }
+        assertNotNull(watchedPath);
+
+        final String expectedPath = watchedPath;
+        final CountDownLatch latch = new CountDownLatch(1);
+        client.register(new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getType() == EventType.NodeDataChanged && expectedPath.equals(event.getPath())) {
+                    latch.countDown();
+                }
+            }
+        });
+        client.getData(watchedPath, true, new Stat());
+        client.setData(watchedPath, "changed".getBytes("UTF-8"), -1);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class SyncCoalescerTest {
+
+    @Test
+    public void testCoalesce() throws Exception {
+        TestSyncCoalescer syncCoalescer = new TestSyncCoalescer();
+
+        ListenableFuture<Void> first = syncCoalescer.sync("/a");
+        assertEquals(1, syncCoalescer.issued.size());
+
+        // arrive while first is outstanding: share one follow-up sync
+        ListenableFuture<Void> second = syncCoalescer.sync("/a");
+        ListenableFuture<Void> third = syncCoalescer.sync("/a");
+        assertSame(second, third);
+        assertEquals(1, syncCoalescer.issued.size());
+
+        // other paths are independent
+        syncCoalescer.sync("/b");
+        assertEquals(2, syncCoalescer.issued.size());
+
+        syncCoalescer.issued.get(0).set(null);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(3, syncCoalescer.issued.size());
+
+        syncCoalescer.issued.get(2).set(null);
+        second.get();
+        assertEquals(3, syncCoalescer.getIssuedCount());
+        assertEquals(1, syncCoalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        TestSyncCoalescer syncCoalescer = new TestSyncCoalescer();
+
+        ListenableFuture<Void> first = syncCoalescer.sync("/a", 60000);
+        // outstanding sync is recent enough
+        assertSame(first, syncCoalescer.sync("/a", 60000));
+        syncCoalescer.issued.get(0).set(null);
+
+        // completed sync is recent enough
+        assertTrue(syncCoalescer.sync("/a", 60000).isDone());
+        assertEquals(1, syncCoalescer.getSkippedCount());
+        assertEquals(1, syncCoalescer.issued.size());
+
+        // always sync
+        assertFalse(syncCoalescer.sync("/a").isDone());
+        assertEquals(2, syncCoalescer.issued.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        TestSyncCoalescer syncCoalescer = new TestSyncCoalescer();
+        syncCoalescer.setTimeoutMillis(50);
+        try {
+            // callback never comes
+            ListenableFuture<Void> lost = syncCoalescer.sync("/a");
+            ListenableFuture<Void> next = syncCoalescer.sync("/a");
+            try {
+                lost.get(5, TimeUnit.SECONDS);
+                fail("Expected timeout");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof KeeperException.OperationTimeoutException);
+            }
+
+            // follow-up sync issued once lost sync timed out
+            assertEquals(2, syncCoalescer.issued.size());
+            syncCoalescer.issued.get(1).set(null);
+            next.get(5, TimeUnit.SECONDS);
+
+            // late callback is ignored
+            syncCoalescer.issued.get(0).set(null);
+        } finally {
+            syncCoalescer.close();
+        }
+    }
+
+    @Test
+    public void testError() throws Exception {
+        TestSyncCoalescer syncCoalescer = new TestSyncCoalescer();
+        ListenableFuture<Void> future = syncCoalescer.sync("/a", 60000);
+        syncCoalescer.issued.get(0).setException(KeeperException.create(KeeperException.Code.CONNECTIONLOSS));
+        try {
+            future.get();
+            fail("Expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KeeperException.ConnectionLossException);
+        }
+
+        // failed sync does not count as recent
+        assertFalse(syncCoalescer.sync("/a", 60000).isDone());
+    }
+
+    static class TestSyncCoalescer extends SyncCoalescer {
+        final List<SettableFuture<Void>> issued = new CopyOnWriteArrayList<SettableFuture<Void>>();
+
+        @Override
+        protected ListenableFuture<Void> issue(String path) {
+            SettableFuture<Void> future = SettableFuture.create();
+            issued.add(future);
+            return future;
+        }
+    }
+}
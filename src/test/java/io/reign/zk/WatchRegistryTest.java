@@ -0,0 +1,148 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class WatchRegistryTest {
+
+    @Test
+    public void testAddRemove() throws Exception {
+        WatchRegistry registry = new WatchRegistry();
+        Watcher w1 = new TestWatcher();
+        Watcher w2 = new TestWatcher();
+        Watcher w3 = new TestWatcher();
+
+        assertTrue(registry.add("/reign/presence/a", w1));
+        assertFalse(registry.add("/reign/presence/a", w1));
+        assertEquals(1, registry.get("/reign/presence/a").size());
+
+        // upgrade from single watcher to several and back
+        assertTrue(registry.add("/reign/presence/a", w2));
+        assertTrue(registry.add("/reign/presence/a", w3));
+        assertEquals(3, registry.get("/reign/presence/a").size());
+        assertEquals(1, registry.size());
+
+        assertTrue(registry.remove("/reign/presence/a", w2));
+        assertFalse(registry.remove("/reign/presence/a", w2));
+        assertEquals(set(w1, w3), registry.get("/reign/presence/a"));
+        assertTrue(registry.remove("/reign/presence/a", w1));
+        assertEquals(set(w3), registry.get("/reign/presence/a"));
+
+        // intermediate paths are not watched themselves
+        assertTrue(registry.get("/reign/presence").isEmpty());
+
+        assertEquals(set(w3), registry.removeAll("/reign/presence/a"));
+        assertTrue(registry.get("/reign/presence/a").isEmpty());
+        assertEquals(0, registry.size());
+        assertTrue(registry.getPaths().isEmpty());
+
+        // empty nodes are pruned
+        assertTrue(registry.getNode("/reign") == null);
+    }
+
+    @Test
+    public void testSubtree() throws Exception {
+        WatchRegistry registry = new WatchRegistry();
+        Watcher w1 = new TestWatcher();
+
+        registry.add("/", w1);
+        registry.add("/reign/presence/cluster1/service1/node1", w1);
+        registry.add("/reign/presence/cluster1/service1/node2", w1);
+        registry.add("/reign/presence/cluster1/service2", w1);
+        registry.add("/reign/presence/cluster10", w1);
+        registry.add("/reign/conf/cluster1", w1);
+        assertEquals(6, registry.size());
+
+        List<String> paths = registry.getPaths("/reign/presence/cluster1");
+        assertEquals(new HashSet<String>(paths), set("/reign/presence/cluster1/service1/node1",
+                "/reign/presence/cluster1/service1/node2", "/reign/presence/cluster1/service2"));
+        assertEquals(paths, registry.getPaths("/reign/presence/cluster1/"));
+        assertEquals(6, registry.getPaths().size());
+        assertTrue(registry.getPaths().contains("/"));
+
+        assertEquals(3, registry.removeSubtree("/reign/presence/cluster1"));
+        assertEquals(3, registry.size());
+        assertEquals(set("/", "/reign/presence/cluster10", "/reign/conf/cluster1"),
+                new HashSet<String>(registry.getPaths()));
+        assertTrue(registry.getNode("/reign/presence/cluster1") == null);
+
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertTrue(registry.getPaths().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAddRemove() throws Exception {
+        final WatchRegistry registry = new WatchRegistry();
+        final Watcher w1 = new TestWatcher();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        String path = "/reign/test/" + (i % 16) + "/node";
+                        registry.add(path, w1);
+                        registry.removeAll(path);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // adds must not be lost to concurrent pruning
+        for (int i = 0; i < 16; i++) {
+            registry.add("/reign/test/" + i + "/node", w1);
+        }
+        assertEquals(16, registry.size());
+        assertEquals(16, registry.getPaths("/reign/test").size());
+    }
+
+    static <T> Set<T> set(T... items) {
+        Set<T> set = new HashSet<T>();
+        for (T item : items) {
+            set.add(item);
+        }
+        return set;
+    }
+
+    static class TestWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+        }
+    }
+}
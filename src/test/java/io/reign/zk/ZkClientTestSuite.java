@@ -0,0 +1,11 @@
+package io.reign.zk;
+
+import org.junit.extensions.cpsuite.ClasspathSuite;
+import org.junit.extensions.cpsuite.ClasspathSuite.ClassnameFilters;
+import org.junit.runner.RunWith;
+
+@RunWith(value = ClasspathSuite.class)
+@ClassnameFilters({ "io.reign.zk.*" })
+public class ZkClientTestSuite {
+
+}
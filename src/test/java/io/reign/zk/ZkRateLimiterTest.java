@@ -0,0 +1,113 @@
+/*
+ Copyright 2013 Yen Pai ypai@reign.io
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package io.reign.zk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.reign.zk.ZkRateLimiter.OpType;
+import io.reign.zk.ZkRateLimiter.Priority;
+
+import java.util.Map;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+
+/**
+ * 
+ * @author ypai
+ * 
+ */
+public class ZkRateLimiterTest {
+
+    @Test
+    public void testPriority() throws Exception {
+        ZkRateLimiter limiter = new ZkRateLimiter(10, 10, 10);
+        limiter.setPriority("/reign/coord", Priority.HIGH);
+        limiter.setPriority("/reign/metrics", Priority.LOW);
+        limiter.setPriority("/reign/metrics/important", Priority.NORMAL);
+        limiter.setPriorityIfAbsent("/reign/metrics", Priority.HIGH);
+
+        assertEquals(Priority.HIGH, limiter.getPriority("/reign/coord/cluster1/lock/l1"));
+        assertEquals(Priority.LOW, limiter.getPriority("/reign/metrics/cluster1/service1"));
+        assertEquals(Priority.NORMAL, limiter.getPriority("/reign/metrics/important/x"));
+        assertEquals(Priority.NORMAL, limiter.getPriority("/reign/conf/cluster1"));
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        // slow refill so the test controls when tokens run out
+        ZkRateLimiter limiter = new ZkRateLimiter(2, 2, 2);
+        limiter.setRate(OpType.READ, 2, 8);
+        limiter.setPriority("/high", Priority.HIGH);
+        limiter.setPriority("/low", Priority.LOW);
+        limiter.setMaxWaitMillis(50);
+
+        // LOW leaves a reserve of 2 of 8 tokens
+        for (int i = 0; i < 6; i++) {
+            limiter.acquire(OpType.READ, "/low/" + i);
+        }
+        try {
+            limiter.acquire(OpType.READ, "/low/shed");
+            fail("Expected OperationTimeoutException");
+        } catch (KeeperException.OperationTimeoutException e) {
+            assertEquals("/low/shed", e.getPath());
+        }
+        assertTrue(!limiter.tryAcquire(OpType.READ, "/low/shed"));
+        assertEquals(6, limiter.getAdmittedCount(OpType.READ, Priority.LOW));
+        assertEquals(2, limiter.getShedCount(OpType.READ, Priority.LOW));
+
+        // NORMAL takes the reserve, then waits and proceeds anyway
+        limiter.acquire(OpType.READ, "/normal/1");
+        limiter.acquire(OpType.READ, "/normal/2");
+        long startMillis = System.currentTimeMillis();
+        limiter.acquire(OpType.READ, "/normal/3");
+        assertTrue(System.currentTimeMillis() - startMillis >= 40);
+        assertEquals(3, limiter.getAdmittedCount(OpType.READ, Priority.NORMAL));
+        assertEquals(1, limiter.getDelayedCount(OpType.READ, Priority.NORMAL));
+
+        // HIGH never waits
+        startMillis = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(OpType.READ, "/high/" + i);
+        }
+        assertTrue(System.currentTimeMillis() - startMillis < 40);
+        assertEquals(20, limiter.getAdmittedCount(OpType.READ, Priority.HIGH));
+        assertEquals(0, limiter.getDelayedCount(OpType.READ, Priority.HIGH));
+
+        // other budgets unaffected
+        limiter.acquire(OpType.WRITE, "/low/write");
+        assertEquals(1, limiter.getAdmittedCount(OpType.WRITE, Priority.LOW));
+
+        Map<String, Object> report = limiter.getReport();
+        assertEquals(2L, ((Map<?, ?>) report.get("read.low")).get("shed"));
+
+        limiter.reset();
+        assertEquals(0, limiter.getShedCount(OpType.READ, Priority.LOW));
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        ZkRateLimiter limiter = new ZkRateLimiter(0, 0, 0);
+        limiter.setPriority("/low", Priority.LOW);
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire(OpType.CREATE, "/low/" + i);
+        }
+        assertEquals(1000, limiter.getAdmittedCount(OpType.CREATE, Priority.LOW));
+    }
+}